@@ -101,20 +101,30 @@ public class FileSelector implements ActivityResultCallback<Uri> {
         InputStream inputStream = null;
         try {
             inputStream = this.host.getContentResolver().openInputStream(selectedFileUri);
-            final int fileSize = inputStream.available();
-            if (fileSize > 0) {
-                final byte[] buf = new byte[fileSize];
-                int pos = 0;
-                while (pos < fileSize) {
-                    int readSize = inputStream.read(buf, pos, fileSize - pos);
-                    if (readSize < 1) {
+            if (inputStream == null) {
+                return null;
+            }
+            // available() is unreliable for content URIs, so read until the end of stream.
+            byte[] buf = new byte[selectedFileSize > 0 && selectedFileSize < Integer.MAX_VALUE ? (int) selectedFileSize : 64 * 1024];
+            int pos = 0;
+            while (true) {
+                if (pos == buf.length) {
+                    // check the end of stream before growing the buffer
+                    final int b = inputStream.read();
+                    if (b < 0) {
                         break;
                     }
-                    pos += readSize;
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    buf[pos++] = (byte) b;
                 }
-                if (pos != fileSize) {
-                    return Arrays.copyOf(buf, pos);
+                int readSize = inputStream.read(buf, pos, buf.length - pos);
+                if (readSize < 0) {
+                    break;
                 }
+                pos += readSize;
+            }
+            if (pos > 0) {
+                return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
             }
         } catch (IOException e) {
             e.printStackTrace();
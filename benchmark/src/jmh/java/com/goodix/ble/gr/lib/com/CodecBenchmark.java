@@ -0,0 +1,124 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Integer access of {@link HexSerializer} and {@link HexEndian} in both byte orders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean bigEndian;
+
+    private final byte[] packet = new byte[244];
+    private HexSerializer serializer;
+
+    @Setup
+    public void setup() {
+        new Random(size).nextBytes(packet);
+        serializer = new HexSerializer(packet.clone());
+        serializer.setEndian(bigEndian);
+    }
+
+    @Benchmark
+    public HexSerializer serializerPut() {
+        final HexSerializer serializer = this.serializer;
+        serializer.setPos(0);
+        if (size > 4) {
+            return serializer.put(size, 0x0123456789ABCDEFL, bigEndian);
+        }
+        return serializer.put(size, 0x89ABCDEF, bigEndian);
+    }
+
+    @Benchmark
+    public long serializerGet() {
+        final HexSerializer serializer = this.serializer;
+        serializer.setPos(0);
+        if (size > 4) {
+            return serializer.getLong(size, bigEndian);
+        }
+        return serializer.get(size, bigEndian);
+    }
+
+    @Benchmark
+    public long serializerGetFixed() {
+        final HexSerializer serializer = this.serializer;
+        serializer.setPos(0);
+        switch (size) {
+            case 1:
+                return serializer.getU8();
+            case 2:
+                return serializer.getU16();
+            case 4:
+                return serializer.getU32();
+            default:
+                return serializer.getU64();
+        }
+    }
+
+    @Benchmark
+    public long endianFromByte() {
+        if (size > 4) {
+            return HexEndian.fromByteLong(packet, 3, size, bigEndian);
+        }
+        return HexEndian.fromByte(packet, 3, size, bigEndian);
+    }
+
+    @Benchmark
+    public byte[] endianToByte() {
+        if (size > 4) {
+            return HexEndian.toByteLong(0x0123456789ABCDEFL, packet, 3, size, bigEndian);
+        }
+        return HexEndian.toByte(0x89ABCDEF, packet, 3, size, bigEndian);
+    }
+}
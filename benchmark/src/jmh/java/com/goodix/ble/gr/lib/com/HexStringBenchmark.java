@@ -0,0 +1,102 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting, parsing and checksum of a packet, and the MAC address conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexStringBenchmark {
+    private final byte[] packet = new byte[244];
+    private final long macValue = 0xC0A1B2C3D4E5L;
+    private String mac;
+    private String hex;
+
+    @Setup
+    public void setup() {
+        new Random(244).nextBytes(packet);
+        mac = HexString.valueToMac(macValue);
+        hex = HexString.toHexString(packet);
+    }
+
+    @Benchmark
+    public String hexString() {
+        return HexString.toHexString(packet);
+    }
+
+    @Benchmark
+    public String hexDump() {
+        return HexString.dump(packet);
+    }
+
+    @Benchmark
+    public String hexStringSeparated() {
+        return HexString.toHexString(packet, 0, packet.length, " ");
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return HexCodec.decode(hex);
+    }
+
+    @Benchmark
+    public int checksum() {
+        return HexSerializer.calcChecksum(packet, 0, packet.length);
+    }
+
+    @Benchmark
+    public long macToValue() {
+        return HexString.macToValue(mac);
+    }
+
+    @Benchmark
+    public String valueToMac() {
+        return HexString.valueToMac(macValue);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of a log call when 1 to 8 threads share a logger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+    // StringLogger never trims its buffer
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final String TAG = "DfuProfile";
+    private static final String MSG = "Send data: [244] 0102030405060708";
+
+    private StringLogger stringLogger;
+    private RingLogger ringLogger;
+
+    @Setup
+    public void setup() {
+        stringLogger = new StringLogger(MAX_BUFFER_SIZE + 1024);
+        ringLogger = new RingLogger(64 * 1024);
+    }
+
+    private long stringLoggerLogRaw() {
+        final StringLogger logger = this.stringLogger;
+        if (logger.logBuffer.length() > MAX_BUFFER_SIZE) {
+            logger.clearBuffer();
+        }
+        final long timestamp = System.currentTimeMillis();
+        logger.logRaw(timestamp, ILogger.DEBUG, TAG, MSG);
+        return timestamp;
+    }
+
+    private long ringLoggerLogRaw() {
+        final long timestamp = System.currentTimeMillis();
+        ringLogger.logRaw(timestamp, ILogger.DEBUG, TAG, MSG);
+        return timestamp;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long stringLogger1() {
+        return stringLoggerLogRaw();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long stringLogger2() {
+        return stringLoggerLogRaw();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long stringLogger4() {
+        return stringLoggerLogRaw();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long stringLogger8() {
+        return stringLoggerLogRaw();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long ringLogger1() {
+        return ringLoggerLogRaw();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long ringLogger8() {
+        return ringLoggerLogRaw();
+    }
+}
@@ -0,0 +1,343 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+/**
+ * A chain stage which hands records to a bounded queue. A background thread drains the queue in batches
+ * and forwards the records to the next logger, so the caller never waits for the downstream loggers.
+ * <p>
+ * When the queue is full, an incoming record evicts the oldest droppable record of a lower level. If there is
+ * nothing to evict, a record below the drop level is discarded and a record at or above it waits for the drain
+ * thread. Warnings and errors are never dropped, they are written synchronously after closing.
+ */
+@SuppressWarnings("unused")
+public class AsyncLogger implements ILogger, ILoggerChain {
+    private static final String TAG = "AsyncLogger";
+
+    private final int capacity;
+    private final int batchSize;
+    private final Object lock = new Object();
+
+    // queue, guarded by lock
+    private final long[] timestamps;
+    private final int[] levels;
+    private final String[] tags;
+    private final String[] messages;
+    private int head = 0;
+    private int size = 0;
+    private long droppedCount = 0;
+    private long reportedDroppedCount = 0;
+    private boolean draining = false;
+    private boolean closed = false;
+
+    // batch, owned by drain thread
+    private final long[] batchTimestamps;
+    private final int[] batchLevels;
+    private final String[] batchTags;
+    private final String[] batchMessages;
+
+    private volatile int levelFilter = ILogger.VERBOSE;
+    private volatile int dropLevel = ILogger.INFO;
+    private volatile ILogger nextLogger;
+    private final Thread drainThread;
+
+    public AsyncLogger(ILogger nextLogger) {
+        this(nextLogger, 1024, 64);
+    }
+
+    public AsyncLogger(ILogger nextLogger, int capacity, int batchSize) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new Error("AsyncLogger(): capacity and batchSize must be positive.");
+        }
+        this.nextLogger = nextLogger;
+        this.capacity = capacity;
+        this.batchSize = Math.min(batchSize, capacity);
+        timestamps = new long[capacity];
+        levels = new int[capacity];
+        tags = new String[capacity];
+        messages = new String[capacity];
+        batchTimestamps = new long[this.batchSize];
+        batchLevels = new int[this.batchSize];
+        batchTags = new String[this.batchSize];
+        batchMessages = new String[this.batchSize];
+
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    public AsyncLogger setLevelFilter(int levelFilter) {
+        this.levelFilter = levelFilter;
+        return this;
+    }
+
+    /**
+     * Records below this level may be dropped when the queue is full. It is INFO by default and capped at
+     * WARNING, so warnings and errors are never dropped.
+     */
+    public AsyncLogger setDropLevel(int dropLevel) {
+        this.dropLevel = Math.min(dropLevel, ILogger.WARNING);
+        return this;
+    }
+
+    @Override
+    public boolean isLoggable(int level) {
+        final ILogger nextLogger = this.nextLogger;
+        return level >= levelFilter && (nextLogger == null || nextLogger.isLoggable(level));
+    }
+
+    @Override
+    public void setNextLogger(ILogger nextLogger) {
+        this.nextLogger = nextLogger;
+    }
+
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return droppedCount;
+        }
+    }
+
+    @Override
+    public void v(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.VERBOSE, tag, msg);
+    }
+
+    @Override
+    public void d(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.DEBUG, tag, msg);
+    }
+
+    @Override
+    public void i(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.INFO, tag, msg);
+    }
+
+    @Override
+    public void w(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.WARNING, tag, msg);
+    }
+
+    @Override
+    public void e(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.ERROR, tag, msg);
+    }
+
+    @Override
+    public void logRaw(long timestamp, int level, String tag, String msg) {
+        if (level < levelFilter) {
+            return;
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                if (level < ILogger.WARNING) {
+                    return;
+                }
+            } else if (enqueue(timestamp, level, tag, msg)) {
+                return;
+            }
+        }
+
+        // the queue is gone or stuck, but the record must not be lost.
+        final ILogger nextLogger = this.nextLogger;
+        if (nextLogger != null) {
+            nextLogger.logRaw(timestamp, level, tag, msg);
+        }
+    }
+
+    // guarded by lock
+    private boolean enqueue(long timestamp, int level, String tag, String msg) {
+        if (size == capacity) {
+            final int dropLevel = this.dropLevel;
+            // make room by evicting a droppable record which is less important than this one
+            if (!evictOneBelow(Math.min(level, dropLevel))) {
+                if (level < dropLevel) {
+                    droppedCount++;
+                    return true;
+                }
+                // never drop it, wait for the drain thread even if this thread is interrupted
+                boolean interrupted = false;
+                while (size == capacity && drainThread.isAlive()) {
+                    try {
+                        lock.wait(100);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (size == capacity) {
+                    return false;
+                }
+            }
+        }
+
+        final int tail = (head + size) % capacity;
+        timestamps[tail] = timestamp;
+        levels[tail] = level;
+        tags[tail] = tag;
+        messages[tail] = msg;
+        size++;
+        if (size == 1) {
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    // guarded by lock
+    private boolean evictOneBelow(int dropLevel) {
+        for (int i = 0; i < size; i++) {
+            final int idx = (head + i) % capacity;
+            if (levels[idx] < dropLevel) {
+                // shift the newer records to fill the hole
+                for (int j = i; j < size - 1; j++) {
+                    final int dst = (head + j) % capacity;
+                    final int src = (dst + 1) % capacity;
+                    timestamps[dst] = timestamps[src];
+                    levels[dst] = levels[src];
+                    tags[dst] = tags[src];
+                    messages[dst] = messages[src];
+                }
+                final int last = (head + size - 1) % capacity;
+                tags[last] = null;
+                messages[last] = null;
+                size--;
+                droppedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (true) {
+            int count;
+            long dropped = 0;
+            synchronized (lock) {
+                while (size == 0 && !closed) {
+                    draining = false;
+                    lock.notifyAll(); // wake up flush()
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (size == 0) {
+                    draining = false;
+                    lock.notifyAll();
+                    return; // closed
+                }
+                draining = true;
+
+                count = Math.min(size, batchSize);
+                for (int i = 0; i < count; i++) {
+                    final int idx = (head + i) % capacity;
+                    batchTimestamps[i] = timestamps[idx];
+                    batchLevels[i] = levels[idx];
+                    batchTags[i] = tags[idx];
+                    batchMessages[i] = messages[idx];
+                    tags[idx] = null;
+                    messages[idx] = null;
+                }
+                head = (head + count) % capacity;
+                size -= count;
+                lock.notifyAll(); // wake up producers waiting for room
+
+                if (droppedCount != reportedDroppedCount) {
+                    dropped = droppedCount - reportedDroppedCount;
+                    reportedDroppedCount = droppedCount;
+                }
+            }
+
+            final ILogger nextLogger = this.nextLogger;
+            if (nextLogger != null) {
+                if (dropped > 0) {
+                    nextLogger.logRaw(System.currentTimeMillis(), ILogger.WARNING, TAG, "Dropped " + dropped + " records because the queue is full.");
+                }
+                for (int i = 0; i < count; i++) {
+                    try {
+                        nextLogger.logRaw(batchTimestamps[i], batchLevels[i], batchTags[i], batchMessages[i]);
+                    } catch (Throwable ignored) {
+                        // a broken logger must not stop the drain thread
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                batchTags[i] = null;
+                batchMessages[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Wait until the queued records have been forwarded to the next logger.
+     *
+     * @return false if it timed out.
+     */
+    public boolean flush(long timeout) {
+        final long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            while (size > 0 || draining) {
+                if (Thread.currentThread() == drainThread) {
+                    return false;
+                }
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting records. The queued records are still forwarded. Later warnings and errors are
+     * forwarded synchronously.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+
+package com.goodix.ble.gr.lib.com;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Additive checksum of bytes, which is the same as adding the unsigned bytes one by one into an int.
+ * <p>
+ * Eight bytes are read at a time as a long, and the byte lanes are summed in parallel (SWAR):
+ * the even and odd bytes are added into four 16-bit lanes, which are folded before they could overflow.
+ * Large data is split across cores with fork/join.
+ */
+@SuppressWarnings("unused")
+public class HexChecksum {
+    /**
+     * Data larger than this is summed in parallel by {@link #calc(byte[], int, int)}.
+     */
+    public static final int PARALLEL_THRESHOLD = 1024 * 1024;
+    // size of data handled by one task
+    private static final int TASK_SIZE = 256 * 1024;
+
+    // each 16-bit lane gets at most 0xFF * 2 per long, so 128 longs can be added without overflow.
+    private static final int LONGS_PER_FOLD = 128;
+    private static final long LANE_MASK = 0x00FF00FF00FF00FFL;
+
+    private static class PoolHolder {
+        // ForkJoinPool.commonPool() is unavailable below API 24.
+        static final ForkJoinPool POOL = new ForkJoinPool(Math.max(Runtime.getRuntime().availableProcessors(), 1));
+    }
+
+    /**
+     * Sum the bytes. Large data is summed in parallel.
+     */
+    public static int calc(byte[] dat, int offset, int size) {
+        if (size >= PARALLEL_THRESHOLD && Runtime.getRuntime().availableProcessors() > 1) {
+            return calcParallel(dat, offset, size, PoolHolder.POOL);
+        }
+        return calcSequential(dat, offset, size);
+    }
+
+    /**
+     * Sum the bytes in the calling thread with SWAR.
+     */
+    public static int calcSequential(byte[] dat, int offset, int size) {
+        return (int) sum(dat, offset, size);
+    }
+
+    /**
+     * Sum the bytes with the specified pool.
+     */
+    public static int calcParallel(byte[] dat, int offset, int size, ForkJoinPool pool) {
+        checkRange(dat, offset, size);
+        return (int) (long) pool.invoke(new SumTask(dat, offset, size));
+    }
+
+    /**
+     * Sum the bytes one by one. It's the reference implementation.
+     */
+    public static int calcByteByByte(byte[] dat, int offset, int size) {
+        checkRange(dat, offset, size);
+        int sum = 0;
+        final int endPos = offset + size;
+        for (int i = offset; i < endPos; i++) {
+            sum += 0xFF & dat[i];
+        }
+        return sum;
+    }
+
+    private static void checkRange(byte[] dat, int offset, int size) {
+        if (offset < 0 || size < 0 || offset + size > dat.length) {
+            throw new IndexOutOfBoundsException("offset = [" + offset + "], size = [" + size + "], length = [" + dat.length + "]");
+        }
+    }
+
+    private static long sum(byte[] dat, int offset, int size) {
+        checkRange(dat, offset, size);
+
+        final ByteBuffer buf = ByteBuffer.wrap(dat).order(ByteOrder.LITTLE_ENDIAN);
+        final int longCount = size >>> 3;
+        final int endOfLongs = offset + (longCount << 3);
+        long total = 0;
+        int pos = offset;
+
+        while (pos < endOfLongs) {
+            int foldEnd = pos + (LONGS_PER_FOLD << 3);
+            if (foldEnd > endOfLongs) {
+                foldEnd = endOfLongs;
+            }
+
+            long lanes = 0; // four 16-bit lanes
+            for (; pos < foldEnd; pos += 8) {
+                final long v = buf.getLong(pos);
+                lanes += (v & LANE_MASK) + ((v >>> 8) & LANE_MASK);
+            }
+
+            // fold 16-bit lanes into 32-bit lanes, and then into one.
+            lanes = (lanes & 0x0000FFFF0000FFFFL) + ((lanes >>> 16) & 0x0000FFFF0000FFFFL);
+            total += (lanes & 0xFFFFFFFFL) + (lanes >>> 32);
+        }
+
+        // the rest bytes
+        final int endPos = offset + size;
+        for (; pos < endPos; pos++) {
+            total += 0xFF & dat[pos];
+        }
+
+        return total;
+    }
+
+    private static class SumTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] dat;
+        private final int offset;
+        private final int size;
+
+        SumTask(byte[] dat, int offset, int size) {
+            this.dat = dat;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        protected Long compute() {
+            if (size <= TASK_SIZE) {
+                return sum(dat, offset, size);
+            }
+            // split at a boundary of long
+            final int half = (size >>> 1) & ~7;
+            final SumTask left = new SumTask(dat, offset, half);
+            final SumTask right = new SumTask(dat, offset + half, size - half);
+            left.fork();
+            final long rightSum = right.compute();
+            return left.join() + rightSum;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+/**
+ * Hex encoder and decoder shared by all the dump and format helpers.
+ * <p>
+ * Encoding looks up both digits of a byte at once in a 512-char table and writes the chars in bulk,
+ * either into a char array or into a StringBuilder through one append per chunk.
+ * Decoding looks up a 128-entry table and checks the validity once per byte.
+ */
+@SuppressWarnings("unused")
+public class HexCodec {
+    public static final char[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+    // two chars for each byte value
+    private static final char[] PAIRS = new char[256 * 2];
+    // value of a hex digit, or -1
+    private static final byte[] VALUES = new byte[128];
+
+    private static final int CHUNK_SIZE = 512;
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            PAIRS[i * 2] = DIGITS[i >> 4];
+            PAIRS[i * 2 + 1] = DIGITS[i & 0xF];
+        }
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * @return how many chars are required to encode the bytes.
+     */
+    public static int encodedLength(int size, String byteSeparator) {
+        if (size < 1) {
+            return 0;
+        }
+        final int separatorLen = byteSeparator == null ? 0 : byteSeparator.length();
+        return size * 2 + (size - 1) * separatorLen;
+    }
+
+    /**
+     * Encode dat[offset, offset + size) into out. The range must be valid.
+     *
+     * @return the position in out after the last written char.
+     */
+    public static int encode(byte[] dat, int offset, int size, char[] out, int outPos) {
+        final char[] pairs = PAIRS;
+        final int end = offset + size;
+        for (int i = offset; i < end; i++) {
+            final int idx = (dat[i] & 0xFF) << 1;
+            out[outPos] = pairs[idx];
+            out[outPos + 1] = pairs[idx + 1];
+            outPos += 2;
+        }
+        return outPos;
+    }
+
+    /**
+     * Encode with a separator between the bytes. The range must be valid.
+     *
+     * @return the position in out after the last written char.
+     */
+    public static int encode(byte[] dat, int offset, int size, String byteSeparator, char[] out, int outPos) {
+        final int separatorLen = byteSeparator == null ? 0 : byteSeparator.length();
+        if (separatorLen == 0) {
+            return encode(dat, offset, size, out, outPos);
+        }
+        final char[] pairs = PAIRS;
+        final int end = offset + size;
+        if (size > 0) {
+            final int idx = (dat[offset] & 0xFF) << 1;
+            out[outPos] = pairs[idx];
+            out[outPos + 1] = pairs[idx + 1];
+            outPos += 2;
+        }
+        if (separatorLen == 1) {
+            final char separator = byteSeparator.charAt(0);
+            for (int i = offset + 1; i < end; i++) {
+                final int idx = (dat[i] & 0xFF) << 1;
+                out[outPos] = separator;
+                out[outPos + 1] = pairs[idx];
+                out[outPos + 2] = pairs[idx + 1];
+                outPos += 3;
+            }
+            return outPos;
+        }
+        for (int i = offset + 1; i < end; i++) {
+            byteSeparator.getChars(0, separatorLen, out, outPos);
+            outPos += separatorLen;
+            final int idx = (dat[i] & 0xFF) << 1;
+            out[outPos] = pairs[idx];
+            out[outPos + 1] = pairs[idx + 1];
+            outPos += 2;
+        }
+        return outPos;
+    }
+
+    /**
+     * Append the encoded bytes to the builder in chunks. The range must be valid.
+     */
+    public static StringBuilder encode(byte[] dat, int offset, int size, String byteSeparator, StringBuilder out) {
+        final int total = encodedLength(size, byteSeparator);
+        if (total == 0) {
+            return out;
+        }
+        out.ensureCapacity(out.length() + total);
+
+        final int separatorLen = byteSeparator == null ? 0 : byteSeparator.length();
+        final int bytesPerChunk = Math.max(CHUNK_SIZE / (2 + separatorLen), 1);
+        final char[] chunk = new char[Math.min(total, bytesPerChunk * (2 + separatorLen))];
+        final int end = offset + size;
+        for (int pos = offset; pos < end; pos += bytesPerChunk) {
+            if (pos != offset && separatorLen > 0) {
+                out.append(byteSeparator);
+            }
+            final int len = encode(dat, pos, Math.min(bytesPerChunk, end - pos), byteSeparator, chunk, 0);
+            out.append(chunk, 0, len);
+        }
+        return out;
+    }
+
+    public static String encode(byte[] dat, int offset, int size) {
+        if (size < 1) {
+            return "";
+        }
+        final char[] out = new char[size * 2];
+        encode(dat, offset, size, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Append the lower sizeOfVal bytes of the value, the most significant byte first if bigEndian.
+     */
+    public static StringBuilder encode(long val, int sizeOfVal, boolean bigEndian, String byteSeparator, StringBuilder out) {
+        if (sizeOfVal < 1) {
+            return out;
+        }
+        if (sizeOfVal > 8) {
+            sizeOfVal = 8;
+        }
+        final int separatorLen = byteSeparator == null ? 0 : byteSeparator.length();
+        final char[] chars = new char[encodedLength(sizeOfVal, byteSeparator)];
+        int pos = 0;
+        for (int i = 0; i < sizeOfVal; i++) {
+            if (i > 0 && separatorLen > 0) {
+                byteSeparator.getChars(0, separatorLen, chars, pos);
+                pos += separatorLen;
+            }
+            final int shift = (bigEndian ? sizeOfVal - 1 - i : i) * 8;
+            final int idx = (int) ((val >>> shift) & 0xFF) << 1;
+            chars[pos] = PAIRS[idx];
+            chars[pos + 1] = PAIRS[idx + 1];
+            pos += 2;
+        }
+        return out.append(chars);
+    }
+
+    /**
+     * @return the value of a hex digit, or -1.
+     */
+    public static int digit(char ch) {
+        return ch < 128 ? VALUES[ch] : -1;
+    }
+
+    /**
+     * Decode the hex digits in text[start, end) without separators.
+     *
+     * @return the count of decoded bytes.
+     * @throws IllegalArgumentException if the length is odd or a char is not a hex digit.
+     */
+    public static int decode(CharSequence text, int start, int end, byte[] out, int outPos) {
+        if (((end - start) & 1) != 0) {
+            throw new IllegalArgumentException("decode(): Odd count of hex digits: " + (end - start));
+        }
+        final byte[] values = VALUES;
+        final int startPos = outPos;
+        for (int i = start; i < end; i += 2) {
+            final char hi = text.charAt(i);
+            final char lo = text.charAt(i + 1);
+            // a negative digit makes the whole value negative
+            final int val = (hi | lo) < 128 ? values[hi] << 4 | values[lo] : -1;
+            if (val < 0) {
+                throw new IllegalArgumentException("decode(): Invalid hex digit at " + (digit(hi) < 0 ? i : i + 1) + ": " + text.subSequence(i, i + 2));
+            }
+            out[outPos++] = (byte) val;
+        }
+        return outPos - startPos;
+    }
+
+    public static byte[] decode(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        final byte[] out = new byte[text.length() / 2];
+        decode(text, 0, text.length(), out, 0);
+        return out;
+    }
+}
@@ -51,6 +51,17 @@ public class HexEndian {
         int val = 0;
         int end = pos + size;
         if (dat != null && pos >= 0 && size >= 0) {
+            if (end <= dat.length) {
+                switch (size) {
+                    case 1:
+                        return dat[pos] & 0xFF;
+                    case 2:
+                        return bigEndian ? getU16BE(dat, pos) : getU16LE(dat, pos);
+                    case 4:
+                        return bigEndian ? getU32BE(dat, pos) : getU32LE(dat, pos);
+                }
+            }
+
             if (end > dat.length) {
                 end = dat.length;
             }
@@ -74,6 +85,22 @@ public class HexEndian {
     public static byte[] toByte(int val, byte[] out, int pos, int size, boolean bigEndian) {
         int end = pos + size;
         if (out != null && pos >= 0 && size >= 0) {
+            if (end <= out.length) {
+                switch (size) {
+                    case 1:
+                        out[pos] = (byte) val;
+                        return out;
+                    case 2:
+                        if (bigEndian) putU16BE(out, pos, val);
+                        else putU16LE(out, pos, val);
+                        return out;
+                    case 4:
+                        if (bigEndian) putU32BE(out, pos, val);
+                        else putU32LE(out, pos, val);
+                        return out;
+                }
+            }
+
             if (end > out.length) {
                 end = out.length;
             }
@@ -100,6 +127,15 @@ public class HexEndian {
         long val = 0;
         int end = pos + size;
         if (dat != null && pos >= 0 && size >= 0) {
+            if (end <= dat.length) {
+                switch (size) {
+                    case 4:
+                        return (bigEndian ? getU32BE(dat, pos) : getU32LE(dat, pos)) & 0xFFFFFFFFL;
+                    case 8:
+                        return bigEndian ? getU64BE(dat, pos) : getU64LE(dat, pos);
+                }
+            }
+
             if (end > dat.length) {
                 end = dat.length;
             }
@@ -123,6 +159,19 @@ public class HexEndian {
     public static byte[] toByteLong(long val, byte[] out, int pos, int size, boolean bigEndian) {
         int end = pos + size;
         if (out != null && pos >= 0 && size >= 0) {
+            if (end <= out.length) {
+                switch (size) {
+                    case 4:
+                        if (bigEndian) putU32BE(out, pos, (int) val);
+                        else putU32LE(out, pos, (int) val);
+                        return out;
+                    case 8:
+                        if (bigEndian) putU64BE(out, pos, val);
+                        else putU64LE(out, pos, val);
+                        return out;
+                }
+            }
+
             if (end > out.length) {
                 end = out.length;
             }
@@ -141,4 +190,74 @@ public class HexEndian {
         }
         return out;
     }
+
+    /*
+     * Fixed-width accessors. The bounds are checked by the array access only, so the caller must
+     * make sure that the field is in the array. The shifts are unrolled, which is what both HotSpot
+     * and ART compile best. VarHandle is not available on the minimal API level.
+     */
+
+    public static int getU16LE(byte[] dat, int pos) {
+        return (dat[pos] & 0xFF) | (dat[pos + 1] & 0xFF) << 8;
+    }
+
+    public static int getU16BE(byte[] dat, int pos) {
+        return (dat[pos] & 0xFF) << 8 | (dat[pos + 1] & 0xFF);
+    }
+
+    public static int getU32LE(byte[] dat, int pos) {
+        return (dat[pos] & 0xFF)
+                | (dat[pos + 1] & 0xFF) << 8
+                | (dat[pos + 2] & 0xFF) << 16
+                | dat[pos + 3] << 24;
+    }
+
+    public static int getU32BE(byte[] dat, int pos) {
+        return dat[pos] << 24
+                | (dat[pos + 1] & 0xFF) << 16
+                | (dat[pos + 2] & 0xFF) << 8
+                | (dat[pos + 3] & 0xFF);
+    }
+
+    public static long getU64LE(byte[] dat, int pos) {
+        return (getU32LE(dat, pos) & 0xFFFFFFFFL) | (long) getU32LE(dat, pos + 4) << 32;
+    }
+
+    public static long getU64BE(byte[] dat, int pos) {
+        return (long) getU32BE(dat, pos) << 32 | (getU32BE(dat, pos + 4) & 0xFFFFFFFFL);
+    }
+
+    public static void putU16LE(byte[] out, int pos, int val) {
+        out[pos] = (byte) val;
+        out[pos + 1] = (byte) (val >> 8);
+    }
+
+    public static void putU16BE(byte[] out, int pos, int val) {
+        out[pos] = (byte) (val >> 8);
+        out[pos + 1] = (byte) val;
+    }
+
+    public static void putU32LE(byte[] out, int pos, int val) {
+        out[pos] = (byte) val;
+        out[pos + 1] = (byte) (val >> 8);
+        out[pos + 2] = (byte) (val >> 16);
+        out[pos + 3] = (byte) (val >> 24);
+    }
+
+    public static void putU32BE(byte[] out, int pos, int val) {
+        out[pos] = (byte) (val >> 24);
+        out[pos + 1] = (byte) (val >> 16);
+        out[pos + 2] = (byte) (val >> 8);
+        out[pos + 3] = (byte) val;
+    }
+
+    public static void putU64LE(byte[] out, int pos, long val) {
+        putU32LE(out, pos, (int) val);
+        putU32LE(out, pos + 4, (int) (val >> 32));
+    }
+
+    public static void putU64BE(byte[] out, int pos, long val) {
+        putU32BE(out, pos, (int) (val >> 32));
+        putU32BE(out, pos + 4, (int) val);
+    }
 }
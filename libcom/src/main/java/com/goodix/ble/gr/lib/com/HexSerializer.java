@@ -178,10 +178,11 @@ public class HexSerializer {
             endPos = buffer.length;
         }
 
-        for (int i = offset; i < endPos; i++) {
-            sum += 0xFF & buffer[i];
+        if (endPos <= offset) {
+            return sum;
         }
-        return sum;
+
+        return HexChecksum.calc(buffer, offset, endPos - offset);
     }
 
     /**
@@ -203,7 +204,22 @@ public class HexSerializer {
     public HexSerializer put(int size, int val, boolean bigEndian) {
         if (readonly) throw new IllegalStateException("This buffer is readonly.");
         if (absPos + size <= this.rangeEnd) {
-            HexEndian.toByte(val, buffer, absPos, size, bigEndian);
+            switch (size) {
+                case 1:
+                    buffer[absPos] = (byte) val;
+                    break;
+                case 2:
+                    if (bigEndian) HexEndian.putU16BE(buffer, absPos, val);
+                    else HexEndian.putU16LE(buffer, absPos, val);
+                    break;
+                case 4:
+                    if (bigEndian) HexEndian.putU32BE(buffer, absPos, val);
+                    else HexEndian.putU32LE(buffer, absPos, val);
+                    break;
+                default:
+                    HexEndian.toByte(val, buffer, absPos, size, bigEndian);
+                    break;
+            }
             absPos += size;
         } else {
             throw new IllegalStateException("buffer is to small. pos = [" + absPos + "], size = [" + size + "]");
@@ -226,6 +242,30 @@ public class HexSerializer {
         return this;
     }
 
+    public HexSerializer putU8(int val) {
+        return put(1, val, bigEndian);
+    }
+
+    public HexSerializer putU16(int val) {
+        return put(2, val, bigEndian);
+    }
+
+    public HexSerializer putU32(int val) {
+        return put(4, val, bigEndian);
+    }
+
+    public HexSerializer putU64(long val) {
+        if (readonly) throw new IllegalStateException("This buffer is readonly.");
+        if (absPos + 8 <= this.rangeEnd) {
+            if (bigEndian) HexEndian.putU64BE(buffer, absPos, val);
+            else HexEndian.putU64LE(buffer, absPos, val);
+            absPos += 8;
+        } else {
+            throw new IllegalStateException("buffer is to small. pos = [" + absPos + "], size = [8]");
+        }
+        return this;
+    }
+
     public HexSerializer put(byte[] dat) {
         return put(dat.length, dat, 0);
     }
@@ -306,12 +346,50 @@ public class HexSerializer {
         if (this.absPos + size > this.rangeEnd) {
             return 0;
         } else {
-            int val = HexEndian.fromByte(buffer, absPos, size, bigEndian);
+            final int val;
+            switch (size) {
+                case 1:
+                    val = buffer[absPos] & 0xFF;
+                    break;
+                case 2:
+                    val = bigEndian ? HexEndian.getU16BE(buffer, absPos) : HexEndian.getU16LE(buffer, absPos);
+                    break;
+                case 4:
+                    val = bigEndian ? HexEndian.getU32BE(buffer, absPos) : HexEndian.getU32LE(buffer, absPos);
+                    break;
+                default:
+                    val = HexEndian.fromByte(buffer, absPos, size, bigEndian);
+                    break;
+            }
             absPos += size;
             return val;
         }
     }
 
+    /**
+     * Fixed-width fields in the byte order of this serializer. 0 is returned if the field is out of range.
+     */
+    public int getU8() {
+        return get(1, bigEndian);
+    }
+
+    public int getU16() {
+        return get(2, bigEndian);
+    }
+
+    public int getU32() {
+        return get(4, bigEndian);
+    }
+
+    public long getU64() {
+        if (this.absPos + 8 > this.rangeEnd) {
+            return 0;
+        }
+        final int pos = absPos;
+        absPos += 8;
+        return bigEndian ? HexEndian.getU64BE(buffer, pos) : HexEndian.getU64LE(buffer, pos);
+    }
+
     public long getLong(int size) {
         return getLong(size, this.bigEndian);
     }
@@ -34,7 +34,7 @@ import androidx.annotation.NonNull;
 
 @SuppressWarnings({"UnusedReturnValue", "unused"})
 public class HexString {
-    public final static char[] HEX_CHAR = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    public final static char[] HEX_CHAR = HexCodec.DIGITS;
     public final static String STR_FOR_NULL = "null";
 
     public static String toHexString(byte[] dat) {
@@ -57,14 +57,15 @@ public class HexString {
             return "";
         }
 
-        int byteSeparatorLen = 0;
-        if (byteSeparator != null) {
-            byteSeparatorLen = byteSeparator.length();
+        final int startPos = startOf(dat, offset);
+        final int endPos = Math.min(startPos + size, dat.length);
+        if (startPos >= endPos) {
+            return "";
         }
 
-        final StringBuilder builder = new StringBuilder(size * (2 + byteSeparatorLen));
-
-        return toHexString(dat, offset, size, byteSeparator, builder).toString();
+        final char[] out = new char[HexCodec.encodedLength(endPos - startPos, byteSeparator)];
+        HexCodec.encode(dat, startPos, endPos - startPos, byteSeparator, out, 0);
+        return new String(out);
     }
 
     public static StringBuilder toHexString(byte[] dat, int offset, int size, String byteSeparator, StringBuilder out) {
@@ -81,45 +82,23 @@ public class HexString {
             return out;
         }
 
-        int startPos = offset;
-        if (startPos < 0) {
-            startPos = dat.length + offset;
-            if (startPos < 0) {
-                startPos = 0;
-            }
-        } else if (startPos > dat.length) {
+        final int startPos = startOf(dat, offset);
+        final int endPos = Math.min(startPos + size, dat.length);
+        if (startPos >= endPos) {
             return out;
         }
 
-        int endPos = startPos + size;
-        if (endPos > dat.length) {
-            endPos = dat.length;
-        }
-
-        int byteSeparatorLen = 0;
-        if (byteSeparator != null) {
-            byteSeparatorLen = byteSeparator.length();
-        }
-
-        out.ensureCapacity(out.length() + (endPos - startPos) * (2 + byteSeparatorLen));
-
-        int cur = startPos;
-        while (true) {
-            int v = dat[cur];
-            out.append(HEX_CHAR[(v >> 4) & 0xF]);
-            out.append(HEX_CHAR[v & 0xF]);
+        return HexCodec.encode(dat, startPos, endPos - startPos, byteSeparator, out);
+    }
 
-            cur++;
-            if (cur < endPos) {
-                if (byteSeparatorLen > 0) {
-                    out.append(byteSeparator);
-                }
-            } else {
-                break;
-            }
+    /**
+     * A negative offset counts from the end of data.
+     */
+    private static int startOf(byte[] dat, int offset) {
+        if (offset < 0) {
+            return Math.max(dat.length + offset, 0);
         }
-
-        return out;
+        return Math.min(offset, dat.length);
     }
 
     public static String toHexString(long val, int sizeOfVal) {
@@ -136,47 +115,7 @@ public class HexString {
             return null;
         }
 
-        if (sizeOfVal < 1) {
-            return out;
-        }
-
-        int byteSeparatorLen = 0;
-        if (byteSeparator != null) {
-            byteSeparatorLen = byteSeparator.length();
-        }
-
-        out.ensureCapacity(out.length() + sizeOfVal * (2 + byteSeparatorLen));
-
-        long littleEndianVal;
-        if (bigEndian) {
-            littleEndianVal = 0;
-            for (int i = 0; i < sizeOfVal; i++) {
-                littleEndianVal <<= 8;
-                littleEndianVal |= val & 0xFFL;
-                val >>= 8;
-            }
-        } else {
-            littleEndianVal = val;
-        }
-
-        for (int i = 0; ; ) {
-            int byteVal = (int) (littleEndianVal & 0xFFL);
-            littleEndianVal >>= 8;
-
-            out.append(HEX_CHAR[(byteVal >> 4) & 0xF]);
-            out.append(HEX_CHAR[byteVal & 0xF]);
-
-            i++;
-            if (i < sizeOfVal) {
-                if (byteSeparatorLen > 0) {
-                    out.append(byteSeparator);
-                }
-            } else {
-                break;
-            }
-        }
-
-        return out;
+        return HexCodec.encode(val, sizeOfVal, bigEndian, byteSeparator, out);
     }
 
     public static String dump(byte[] dat) {
@@ -222,6 +161,26 @@ public class HexString {
         return toHexString(dat, offset, size, byteSeparator, out);
     }
 
+    /**
+     * Parse a MAC address like "AA:BB:CC:DD:EE:FF". Characters other than hex digits are ignored.
+     */
+    public static long macToValue(CharSequence mac) {
+        long val = 0;
+        if (mac != null) {
+            for (int i = 0; i < mac.length(); i++) {
+                final int digit = HexCodec.digit(mac.charAt(i));
+                if (digit >= 0) {
+                    val = (val << 4) | digit;
+                }
+            }
+        }
+        return val;
+    }
+
+    public static String valueToMac(long mac) {
+        return HexCodec.encode(mac, 6, true, ":", new StringBuilder(6 * 2 + 5)).toString();
+    }
+
     public final StringBuilder innerBuilder;
 
     public HexString() {
@@ -54,5 +54,12 @@ public interface ILogger {
     void e(String tag, String msg);
 
     void logRaw(long timestamp, int level, String tag, String msg);
+
+    /**
+     * Check it before building an expensive message. It is false only if the message will be dropped.
+     */
+    default boolean isLoggable(int level) {
+        return true;
+    }
 }
 
@@ -0,0 +1,225 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of latencies in nanoseconds. Each power of 2 is divided into 32 linear buckets,
+ * so the relative error of a percentile is less than 1/32.
+ * <p>
+ * The memory is allocated in the constructor, and {@link #record(long)} allocates nothing.
+ * It can be called from several threads. A snapshot may be taken at any time.
+ */
+@SuppressWarnings("unused")
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40; // about 18 minutes
+    public static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+    public static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxValue = new AtomicLong(0);
+
+    public static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            return BUCKET_COUNT - 1;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    }
+
+    public static long lowerBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return (long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT) << shift;
+    }
+
+    public static long upperBoundOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return ((long) ((index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(nanos);
+
+        long prv = minValue.get();
+        while (nanos < prv && !minValue.compareAndSet(prv, nanos)) {
+            prv = minValue.get();
+        }
+        prv = maxValue.get();
+        while (nanos > prv && !maxValue.compareAndSet(prv, nanos)) {
+            prv = maxValue.get();
+        }
+    }
+
+    /**
+     * Record the time elapsed since the start time which is got from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startTime) {
+        record(System.nanoTime() - startTime);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public Snapshot snapshot() {
+        return copy(false);
+    }
+
+    /**
+     * Take a snapshot and clear the histogram. Values recorded concurrently are kept in either of them.
+     */
+    public Snapshot snapshotAndReset() {
+        return copy(true);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalSum.set(0);
+        minValue.set(Long.MAX_VALUE);
+        maxValue.set(0);
+    }
+
+    private Snapshot copy(boolean reset) {
+        final Snapshot snapshot = new Snapshot();
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long c = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            snapshot.counts[i] = c;
+            count += c;
+        }
+        // the total count is derived from buckets, so that percentiles are consistent.
+        snapshot.count = count;
+        if (reset) {
+            totalCount.set(0);
+            snapshot.sum = totalSum.getAndSet(0);
+            snapshot.min = minValue.getAndSet(Long.MAX_VALUE);
+            snapshot.max = maxValue.getAndSet(0);
+        } else {
+            snapshot.sum = totalSum.get();
+            snapshot.min = minValue.get();
+            snapshot.max = maxValue.get();
+        }
+        if (count == 0) {
+            snapshot.min = 0;
+            snapshot.max = 0;
+        }
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count;
+        long sum;
+        long min;
+        long max;
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        /**
+         * @param percentile in [0, 100], e.g. 99.9
+         * @return the upper bound of the bucket where the percentile is, in nanoseconds.
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    final long value = upperBoundOf(i);
+                    return value > max ? max : value;
+                }
+            }
+            return max;
+        }
+
+        public long getCountOfBucket(int index) {
+            return counts[index];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(128);
+            builder.append("n=").append(count);
+            if (count > 0) {
+                builder.append(", min=").append(min / 1000).append("us");
+                builder.append(", p50=").append(getPercentile(50) / 1000).append("us");
+                builder.append(", p90=").append(getPercentile(90) / 1000).append("us");
+                builder.append(", p99=").append(getPercentile(99) / 1000).append("us");
+                builder.append(", p999=").append(getPercentile(99.9) / 1000).append("us");
+                builder.append(", max=").append(max / 1000).append("us");
+            }
+            return builder.toString();
+        }
+    }
+}
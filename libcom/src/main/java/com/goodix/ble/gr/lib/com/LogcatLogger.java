@@ -42,6 +42,11 @@ public class LogcatLogger implements ILogger {
         return this;
     }
 
+    @Override
+    public boolean isLoggable(int level) {
+        return level >= levelFilter;
+    }
+
     @Override
     public void v(String tag, String msg) {
         if (ILogger.VERBOSE < levelFilter) {
@@ -0,0 +1,201 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive long keys, e.g. MAC addresses, which avoids boxing the key on each lookup.
+ * Open addressing with linear probing. Not thread-safe.
+ */
+@SuppressWarnings({"unchecked", "unused"})
+public class LongHashMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values; // null for an empty slot
+    private int size = 0;
+    private int mask;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = 4;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    public LongHashMap(LongHashMap<V> that) {
+        this.keys = that.keys.clone();
+        this.values = that.values.clone();
+        this.size = that.size;
+        this.mask = that.mask;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(long key) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        int idx = indexOf(key, mask);
+        while (true) {
+            final Object val = values[idx];
+            if (val == null) {
+                return null;
+            }
+            if (keys[idx] == key) {
+                return (V) val;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param value must not be null.
+     * @return the previous value, or null.
+     */
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("put(): value is null.");
+        }
+        int idx = indexOf(key, mask);
+        while (values[idx] != null) {
+            if (keys[idx] == key) {
+                final V prev = (V) values[idx];
+                values[idx] = value;
+                return prev;
+            }
+            idx = (idx + 1) & mask;
+        }
+        keys[idx] = key;
+        values[idx] = value;
+        if (++size > values.length * LOAD_FACTOR) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    public V remove(long key) {
+        int idx = indexOf(key, mask);
+        while (values[idx] != null) {
+            if (keys[idx] == key) {
+                final V prev = (V) values[idx];
+                removeAt(idx);
+                return prev;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * The slots can be iterated from 0 to {@link #capacity()}, skipping the ones whose value is null.
+     */
+    public int capacity() {
+        return values.length;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * Remove the entry in the slot while iterating. An entry after this slot could be moved into it,
+     * so check the slot again before moving forward.
+     */
+    public void removeAt(int slot) {
+        values[slot] = null;
+        size--;
+        // shift back the following entries of the same cluster
+        int gap = slot;
+        int idx = (slot + 1) & mask;
+        while (values[idx] != null) {
+            final int home = indexOf(keys[idx], mask);
+            // move it if its home is not in (gap, idx]
+            if (((idx - home) & mask) >= ((idx - gap) & mask)) {
+                keys[gap] = keys[idx];
+                values[gap] = values[idx];
+                values[idx] = null;
+                gap = idx;
+            }
+            idx = (idx + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            final Object val = oldValues[i];
+            if (val != null) {
+                int idx = indexOf(oldKeys[i], mask);
+                while (values[idx] != null) {
+                    idx = (idx + 1) & mask;
+                }
+                keys[idx] = oldKeys[i];
+                values[idx] = val;
+            }
+        }
+    }
+
+    private static int indexOf(long key, int mask) {
+        // mix the bits, the low bytes of MAC addresses are not uniform
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append the log of a session to a memory-mapped file of fixed size. The oldest lines are overwritten
+ * when the file is full. Lines are copied into the mapping without any system call, and the dirty pages
+ * are forced to the storage periodically on a background thread.
+ * <p>
+ * The header is rewritten after each line, so a file left by a crashed process can still be read
+ * by {@link #read(File)}.
+ */
+@SuppressWarnings("unused")
+public class MappedFileLogger implements ILogger, ILoggerChain {
+    public static final int MAGIC = 0x47584C47; // "GXLG"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final int POS_MAGIC = 0;
+    private static final int POS_VERSION = 4;
+    private static final int POS_DATA_SIZE = 8;
+    private static final int POS_WRAPPED = 12;
+    private static final int POS_WRITE_POS = 16;
+    private static final int POS_TOTAL_SIZE = 24;
+    private static final int POS_SESSION_START = 32;
+    private static final int POS_CHECKSUM = 40;
+    private static final long CHECKSUM_SALT = 0x5A5A_C3C3_9696_0F0FL;
+
+    private static ScheduledExecutorService scheduler;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int dataSize;
+    private final long sessionStartTime;
+
+    // guarded by this
+    private int writePos = 0;
+    private long totalSize = 0;
+    private boolean wrapped = false;
+    private boolean closed = false;
+    private final SimpleDateFormat secondFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.", Locale.US);
+    private final Date date = new Date();
+    private long cachedSecond = -1;
+    private String cachedSecondStr = "";
+
+    private volatile boolean dirty = false;
+    private volatile int levelFilter = ILogger.VERBOSE;
+    private volatile ILogger nextLogger;
+    private ScheduledFuture<?> flushFuture;
+
+    /**
+     * Create a new session log. An existing file is overwritten.
+     *
+     * @param fileSize the total size of the file, including the header.
+     */
+    public MappedFileLogger(File file, int fileSize) throws IOException {
+        this(file, fileSize, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    public MappedFileLogger(File file, int fileSize, long flushInterval) throws IOException {
+        if (fileSize <= HEADER_SIZE + 256) {
+            throw new Error("MappedFileLogger(): fileSize is too small: " + fileSize);
+        }
+        this.file = file;
+        this.dataSize = fileSize - HEADER_SIZE;
+        this.sessionStartTime = System.currentTimeMillis();
+
+        raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(fileSize);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(POS_MAGIC, MAGIC);
+        buffer.putInt(POS_VERSION, VERSION);
+        buffer.putInt(POS_DATA_SIZE, dataSize);
+        buffer.putLong(POS_SESSION_START, sessionStartTime);
+        commitHeader();
+
+        if (flushInterval > 0) {
+            flushFuture = getScheduler().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public MappedFileLogger setLevelFilter(int levelFilter) {
+        this.levelFilter = levelFilter;
+        return this;
+    }
+
+    @Override
+    public boolean isLoggable(int level) {
+        return level >= levelFilter;
+    }
+
+    @Override
+    public void setNextLogger(ILogger nextLogger) {
+        this.nextLogger = nextLogger;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the count of bytes which have been written in this session, including the overwritten ones.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    @Override
+    public void v(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.VERBOSE, tag, msg);
+    }
+
+    @Override
+    public void d(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.DEBUG, tag, msg);
+    }
+
+    @Override
+    public void i(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.INFO, tag, msg);
+    }
+
+    @Override
+    public void w(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.WARNING, tag, msg);
+    }
+
+    @Override
+    public void e(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.ERROR, tag, msg);
+    }
+
+    @Override
+    public void logRaw(long timestamp, int level, String tag, String msg) {
+        if (level >= levelFilter) {
+            synchronized (this) {
+                if (!closed) {
+                    final long second = timestamp / 1000;
+                    if (second != cachedSecond) {
+                        date.setTime(second * 1000);
+                        cachedSecondStr = secondFormat.format(date);
+                        cachedSecond = second;
+                    }
+                    final int millis = (int) (timestamp - second * 1000);
+
+                    putChar('[');
+                    putString(cachedSecondStr);
+                    putChar((char) ('0' + millis / 100));
+                    putChar((char) ('0' + millis / 10 % 10));
+                    putChar((char) ('0' + millis % 10));
+                    putString("] <");
+                    putLong(Thread.currentThread().getId());
+                    putString("> ");
+                    putString(level >= 0 && level < LEVEL_STR.length ? LEVEL_STR[level] : "?");
+                    putChar(' ');
+                    putString(tag);
+                    putString(": ");
+                    putString(msg);
+                    putChar('\n');
+
+                    commitHeader();
+                    dirty = true;
+                }
+            }
+        }
+
+        final ILogger nextLogger = this.nextLogger;
+        if (nextLogger != null) {
+            nextLogger.logRaw(timestamp, level, tag, msg);
+        }
+    }
+
+    // guarded by this
+    private void putByte(int b) {
+        buffer.put(HEADER_SIZE + writePos, (byte) b);
+        writePos++;
+        totalSize++;
+        if (writePos == dataSize) {
+            writePos = 0;
+            wrapped = true;
+        }
+    }
+
+    private void putChar(char c) {
+        if (c < 0x80) {
+            putByte(c);
+        } else if (c < 0x800) {
+            putByte(0xC0 | (c >> 6));
+            putByte(0x80 | (c & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            putByte('?'); // rare in log, not worth pairing the surrogates
+        } else {
+            putByte(0xE0 | (c >> 12));
+            putByte(0x80 | ((c >> 6) & 0x3F));
+            putByte(0x80 | (c & 0x3F));
+        }
+    }
+
+    private void putString(String str) {
+        if (str == null) {
+            str = "null";
+        }
+        final int len = str.length();
+        for (int i = 0; i < len; i++) {
+            putChar(str.charAt(i));
+        }
+    }
+
+    private void putLong(long val) {
+        if (val < 0) {
+            putChar('-');
+            val = -val;
+        }
+        long div = 1;
+        while (val / div >= 10) {
+            div *= 10;
+        }
+        for (; div > 0; div /= 10) {
+            putByte((int) ('0' + val / div % 10));
+        }
+    }
+
+    // guarded by this
+    private void commitHeader() {
+        buffer.putInt(POS_WRAPPED, wrapped ? 1 : 0);
+        buffer.putLong(POS_WRITE_POS, writePos);
+        buffer.putLong(POS_TOTAL_SIZE, totalSize);
+        buffer.putLong(POS_CHECKSUM, checksumOf(writePos, totalSize, wrapped));
+    }
+
+    private static long checksumOf(long writePos, long totalSize, boolean wrapped) {
+        return (writePos * 31 + totalSize) ^ (wrapped ? ~CHECKSUM_SALT : CHECKSUM_SALT);
+    }
+
+    /**
+     * Force the written lines to the storage. It is called periodically on a background thread.
+     */
+    public void flush() {
+        if (dirty) {
+            dirty = false;
+            final MappedByteBuffer target;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                target = buffer;
+            }
+            // it may take a while, do not block the loggers
+            target.force();
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (flushFuture != null) {
+                flushFuture.cancel(false);
+                flushFuture = null;
+            }
+            closed = true;
+            try {
+                raf.close(); // the mapping stays valid
+            } catch (IOException ignored) {
+            }
+        }
+        buffer.force();
+    }
+
+    /**
+     * Read the lines of a session log from the oldest to the newest.
+     * If the file has been wrapped, the first partial line is skipped.
+     */
+    public static String read(File file) throws IOException {
+        final byte[] content;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < HEADER_SIZE || in.length() > Integer.MAX_VALUE) {
+                throw new IOException("Invalid size of log file: " + in.length());
+            }
+            content = new byte[(int) in.length()];
+            in.readFully(content);
+        }
+
+        final ByteBuffer header = ByteBuffer.wrap(content, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(POS_MAGIC) != MAGIC || header.getInt(POS_VERSION) != VERSION) {
+            throw new IOException("Not a session log file.");
+        }
+        final int dataSize = header.getInt(POS_DATA_SIZE);
+        final boolean wrapped = header.getInt(POS_WRAPPED) != 0;
+        long writePos = header.getLong(POS_WRITE_POS);
+        final long totalSize = header.getLong(POS_TOTAL_SIZE);
+        if (dataSize != content.length - HEADER_SIZE) {
+            throw new IOException("Invalid data size of log file: " + dataSize);
+        }
+        if (header.getLong(POS_CHECKSUM) != checksumOf(writePos, totalSize, wrapped) || writePos < 0 || writePos >= dataSize) {
+            // the header is torn, fall back to the last complete line
+            writePos = -1;
+            for (int i = dataSize - 1; i >= 0; i--) {
+                if (content[HEADER_SIZE + i] == '\n') {
+                    writePos = (i + 1) % dataSize;
+                    break;
+                }
+            }
+            if (writePos < 0) {
+                return "";
+            }
+        }
+
+        final int pos = (int) writePos;
+        final byte[] data;
+        if (wrapped) {
+            data = new byte[dataSize];
+            System.arraycopy(content, HEADER_SIZE + pos, data, 0, dataSize - pos);
+            System.arraycopy(content, HEADER_SIZE, data, dataSize - pos, pos);
+        } else {
+            data = Arrays.copyOfRange(content, HEADER_SIZE, HEADER_SIZE + pos);
+        }
+
+        int start = 0;
+        if (wrapped) {
+            while (start < data.length && data[start] != '\n') {
+                start++;
+            }
+            start++;
+        }
+        int end = data.length;
+        while (end > start && data[end - 1] == 0) {
+            end--;
+        }
+        if (start >= end) {
+            return "";
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "MappedFileLogger");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+}
@@ -41,6 +41,11 @@ public class PrintLogger implements ILogger {
         return this;
     }
 
+    @Override
+    public boolean isLoggable(int level) {
+        return level >= levelFilter;
+    }
+
     @Override
     public void v(String tag, String msg) {
         logRaw(System.currentTimeMillis(), ILogger.VERBOSE, tag, msg);
@@ -0,0 +1,272 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded in-memory logger. Each call writes a compact record, i.e. timestamp, level, tag ID, thread ID
+ * and the reference of message, into a lock-free ring. The oldest records are overwritten.
+ * Text is formatted only when the log is dumped.
+ */
+@SuppressWarnings("unused")
+public class RingLogger implements ILogger, ILoggerChain {
+    private static final int MAX_TAG_COUNT = 1 << 16;
+    private static final int INITIAL_TAG_COUNT = 32;
+    // The slot is being cleared.
+    private static final long CLEARING = Long.MIN_VALUE;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLong writeSeq = new AtomicLong(0);
+    // seq + 1 of the record in slot, 0 for an empty slot, or -(seq + 1) while the slot is being written.
+    private final AtomicLongArray published;
+    private final AtomicLongArray timestamps;
+    // level(8) | tag ID(16) | thread ID(40)
+    private final AtomicLongArray metas;
+    private final AtomicReferenceArray<String> messages;
+
+    private final ConcurrentHashMap<String, Integer> tagIds = new ConcurrentHashMap<>();
+    // Copied on growth. Guarded by tagIds for writing.
+    private volatile String[] tags = new String[INITIAL_TAG_COUNT];
+    private int tagCount = 0;
+
+    private volatile int levelFilter = ILogger.DEBUG;
+    private volatile ILogger nextLogger;
+
+    /**
+     * @param capacity rounded up to a power of 2.
+     */
+    public RingLogger(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        published = new AtomicLongArray(size);
+        timestamps = new AtomicLongArray(size);
+        metas = new AtomicLongArray(size);
+        messages = new AtomicReferenceArray<>(size);
+    }
+
+    public RingLogger setLevelFilter(int levelFilter) {
+        this.levelFilter = levelFilter;
+        return this;
+    }
+
+    @Override
+    public boolean isLoggable(int level) {
+        return level >= levelFilter;
+    }
+
+    @Override
+    public void setNextLogger(ILogger nextLogger) {
+        this.nextLogger = nextLogger;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the count of records which have been written, including the overwritten ones.
+     */
+    public long getWrittenCount() {
+        return writeSeq.get();
+    }
+
+    @Override
+    public void v(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.VERBOSE, tag, msg);
+    }
+
+    @Override
+    public void d(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.DEBUG, tag, msg);
+    }
+
+    @Override
+    public void i(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.INFO, tag, msg);
+    }
+
+    @Override
+    public void w(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.WARNING, tag, msg);
+    }
+
+    @Override
+    public void e(String tag, String msg) {
+        logRaw(System.currentTimeMillis(), ILogger.ERROR, tag, msg);
+    }
+
+    @Override
+    public void logRaw(long timestamp, int level, String tag, String msg) {
+        if (level < levelFilter) {
+            return;
+        }
+
+        final long seq = writeSeq.getAndIncrement();
+        final int idx = (int) (seq & mask);
+        final long meta = ((long) (level & 0xFF) << 56)
+                | ((long) tagIdOf(tag) << 40)
+                | (Thread.currentThread().getId() & 0xFF_FFFF_FFFFL);
+
+        // Claim the slot, or a producer which is one lap ahead may interleave its fields with ours.
+        while (true) {
+            final long state = published.get(idx);
+            if (state >= seq + 1) {
+                break; // a newer record has taken the slot, ours is already overwritten.
+            }
+            if (state < 0) {
+                Thread.yield(); // being written or cleared
+                continue;
+            }
+            if (published.compareAndSet(idx, state, -(seq + 1))) {
+                timestamps.set(idx, timestamp);
+                metas.set(idx, meta);
+                messages.set(idx, msg);
+                published.set(idx, seq + 1);
+                break;
+            }
+        }
+
+        final ILogger nextLogger = this.nextLogger;
+        if (nextLogger != null) {
+            nextLogger.logRaw(timestamp, level, tag, msg);
+        }
+    }
+
+    private int tagIdOf(String tag) {
+        if (tag == null) {
+            tag = "null";
+        }
+        final Integer id = tagIds.get(tag);
+        if (id != null) {
+            return id;
+        }
+        synchronized (tagIds) {
+            Integer newId = tagIds.get(tag);
+            if (newId == null) {
+                if (tagCount >= MAX_TAG_COUNT) {
+                    return 0; // too many tags, share the first one.
+                }
+                String[] table = tags;
+                if (tagCount == table.length) {
+                    table = Arrays.copyOf(table, table.length * 2);
+                }
+                newId = tagCount;
+                table[newId] = tag;
+                tags = table; // publish the entry before the ID
+                tagCount++;
+                tagIds.put(tag, newId);
+            }
+            return newId;
+        }
+    }
+
+    /**
+     * Forget all records. Records which are being written concurrently may survive.
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            final long state = published.get(i);
+            if (state > 0 && published.compareAndSet(i, state, CLEARING)) {
+                messages.set(i, null);
+                published.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Format the records from the oldest to the newest. It does not block producers.
+     */
+    public void dump(Appendable out) throws IOException {
+        final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        final Date date = new Date();
+        final StringBuilder line = new StringBuilder(256);
+
+        final long endSeq = writeSeq.get();
+        final long beginSeq = endSeq > capacity ? endSeq - capacity : 0;
+        for (long seq = beginSeq; seq < endSeq; seq++) {
+            final int idx = (int) (seq & mask);
+            if (published.get(idx) != seq + 1) {
+                continue; // not finished, or overwritten
+            }
+            final long timestamp = timestamps.get(idx);
+            final long meta = metas.get(idx);
+            final String msg = messages.get(idx);
+            if (published.get(idx) != seq + 1) {
+                continue; // overwritten while reading
+            }
+
+            final int level = (int) (meta >>> 56);
+            final int tagId = (int) ((meta >>> 40) & 0xFFFF);
+            final long threadId = meta & 0xFF_FFFF_FFFFL;
+            final String[] tags = this.tags; // the tag is stored before the record is published
+            date.setTime(timestamp);
+
+            line.setLength(0);
+            line.append('[').append(timeFormat.format(date)).append("] ")
+                    .append('<').append(threadId).append("> ")
+                    .append(level < LEVEL_STR.length ? LEVEL_STR[level] : "?").append(" ")
+                    .append(tags[tagId]).append(": ")
+                    .append(msg)
+                    .append('\n');
+            out.append(line);
+        }
+    }
+
+    public void writeTo(Writer writer) throws IOException {
+        dump(writer);
+        writer.flush();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(capacity * 64);
+        try {
+            dump(builder);
+        } catch (IOException ignored) {
+            // StringBuilder never throws it.
+        }
+        return builder.toString();
+    }
+}
@@ -56,6 +56,11 @@ public class StringLogger implements ILogger, ILoggerChain {
         return this;
     }
 
+    @Override
+    public boolean isLoggable(int level) {
+        return level >= levelFilter;
+    }
+
     public void clearBuffer() {
         synchronized (this.logBuffer) {
             logBuffer.setLength(0);
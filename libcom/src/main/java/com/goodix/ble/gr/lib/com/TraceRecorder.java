@@ -0,0 +1,217 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Record a timeline of events into a preallocated ring, and export it as Chrome trace-event JSON
+ * which can be loaded by Perfetto or chrome://tracing.
+ * <p>
+ * Names and categories should be constant strings, so that recording allocates nothing.
+ * The oldest events are overwritten when the ring is full.
+ */
+@SuppressWarnings("unused")
+public class TraceRecorder {
+    public static final String CAT_BLE = "ble";
+    public static final String CAT_DFU = "dfu";
+
+    private static final byte PH_BEGIN = 'B';
+    private static final byte PH_END = 'E';
+    private static final byte PH_COMPLETE = 'X';
+    private static final byte PH_INSTANT = 'i';
+    private static final byte PH_COUNTER = 'C';
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final long[] durations;
+    private final long[] args;
+    private final long[] threadIds;
+    private final byte[] phases;
+    private final String[] names;
+    private final String[] categories;
+    private final long baseTime = System.nanoTime();
+
+    private long writeCount = 0;
+
+    public TraceRecorder(int capacity) {
+        if (capacity < 1) {
+            throw new Error("TraceRecorder(): capacity should be positive.");
+        }
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        durations = new long[capacity];
+        args = new long[capacity];
+        threadIds = new long[capacity];
+        phases = new byte[capacity];
+        names = new String[capacity];
+        categories = new String[capacity];
+    }
+
+    public void begin(String category, String name) {
+        add(PH_BEGIN, category, name, System.nanoTime(), 0, 0);
+    }
+
+    public void begin(String category, String name, long arg) {
+        add(PH_BEGIN, category, name, System.nanoTime(), 0, arg);
+    }
+
+    public void end(String category, String name) {
+        add(PH_END, category, name, System.nanoTime(), 0, 0);
+    }
+
+    /**
+     * Record an event which has begun at the start time.
+     *
+     * @param startTime got from {@link System#nanoTime()}.
+     */
+    public void complete(String category, String name, long startTime, long arg) {
+        add(PH_COMPLETE, category, name, startTime, System.nanoTime() - startTime, arg);
+    }
+
+    public void instant(String category, String name, long arg) {
+        add(PH_INSTANT, category, name, System.nanoTime(), 0, arg);
+    }
+
+    public void counter(String category, String name, long value) {
+        add(PH_COUNTER, category, name, System.nanoTime(), 0, value);
+    }
+
+    private synchronized void add(byte phase, String category, String name, long timestamp, long duration, long arg) {
+        final int idx = (int) (writeCount % capacity);
+        phases[idx] = phase;
+        categories[idx] = category;
+        names[idx] = name;
+        timestamps[idx] = timestamp;
+        durations[idx] = duration;
+        args[idx] = arg;
+        threadIds[idx] = Thread.currentThread().getId();
+        writeCount++;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(writeCount, capacity);
+    }
+
+    /**
+     * @return the count of events which are overwritten.
+     */
+    public synchronized long getDroppedCount() {
+        return writeCount > capacity ? writeCount - capacity : 0;
+    }
+
+    public synchronized void clear() {
+        writeCount = 0;
+        for (int i = 0; i < capacity; i++) {
+            names[i] = null;
+            categories[i] = null;
+        }
+    }
+
+    public void writeChromeTrace(OutputStream out) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        writeChromeTrace(writer);
+        writer.flush();
+    }
+
+    public synchronized void writeChromeTrace(Writer writer) throws IOException {
+        final StringBuilder builder = new StringBuilder(256);
+        final int size = size();
+        final long first = writeCount - size;
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":");
+        writer.write(Long.toString(getDroppedCount()));
+        writer.write("},\"traceEvents\":[");
+        for (int i = 0; i < size; i++) {
+            final int idx = (int) ((first + i) % capacity);
+            final byte phase = phases[idx];
+
+            builder.setLength(0);
+            if (i > 0) {
+                builder.append(",\n");
+            }
+            builder.append("{\"name\":");
+            appendString(builder, names[idx]);
+            builder.append(",\"cat\":");
+            appendString(builder, categories[idx]);
+            builder.append(",\"ph\":\"").append((char) phase).append('"');
+            builder.append(",\"ts\":");
+            appendMicros(builder, timestamps[idx] - baseTime);
+            if (phase == PH_COMPLETE) {
+                builder.append(",\"dur\":");
+                appendMicros(builder, durations[idx]);
+            } else if (phase == PH_INSTANT) {
+                builder.append(",\"s\":\"t\"");
+            }
+            builder.append(",\"pid\":1,\"tid\":").append(threadIds[idx]);
+            if (phase != PH_END) {
+                builder.append(",\"args\":{\"").append(phase == PH_COUNTER ? "value" : "arg").append("\":").append(args[idx]).append('}');
+            }
+            builder.append('}');
+            writer.write(builder.toString());
+        }
+        writer.write("]}\n");
+    }
+
+    private static void appendMicros(StringBuilder builder, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        builder.append(nanos / 1000).append('.');
+        final long frac = nanos % 1000;
+        if (frac < 100) builder.append('0');
+        if (frac < 10) builder.append('0');
+        builder.append(frac);
+    }
+
+    private static void appendString(StringBuilder builder, String str) {
+        if (str == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(' ');
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+}
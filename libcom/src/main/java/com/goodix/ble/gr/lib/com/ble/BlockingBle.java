@@ -49,7 +49,9 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
 import com.goodix.ble.gr.lib.com.DataProgressListener;
+import com.goodix.ble.gr.lib.com.HexCodec;
 import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -88,6 +90,21 @@ public class BlockingBle {
     private boolean connected = false;
     private int txPhy = 1; // BluetoothDevice.PHY_LE_1M;
     private int rxPhy = 1; // BluetoothDevice.PHY_LE_1M;
+    @Nullable
+    private SessionMetrics metrics = null;
+    private final GattLatencyStats latencyStats = new GattLatencyStats();
+    @Nullable
+    private TraceRecorder tracer = null;
+    @Nullable
+    private BtsnoopCapture capture = null;
+    @Nullable
+    private PacketTraceSampler packetTracer = null;
+    private long writeChrTaskIssueTime = 0; // when the segment is passed to writeCharacteristic()
+    @Nullable
+    private BluetoothGatt connectingGatt = null; // set by beginConnect(), cleared by awaitConnected()
+    private boolean connectBegun = false;
+    private long connectStartTime = 0;
+    private long lastNtfTime = 0;
 
     // Data
     Throwable lastError;
@@ -101,10 +118,22 @@ public class BlockingBle {
     private final static int DEFAULT_GATT_TIMEOUT = 31000;
 
     // state-machine for writing characteristic
-    private byte[] writeChrTaskData = null;
-    private int writeChrTaskCurtPos = 0;
+    // The data to be written is gathered from several pieces, so that a frame which is made of a header,
+    // a payload and a trailer can be sent without assembling it into a temporary buffer firstly.
+    private byte[][] writeChrTaskPieces = null;
+    private int[] writeChrTaskPieceOffsets = null;
+    private int[] writeChrTaskPieceSizes = null;
+    private int writeChrTaskPieceIdx = 0;
+    private int writeChrTaskPiecePos = 0; // position in current piece
+    private int writeChrTaskCurtPos = 0; // position in the whole gathered data
     private int writeChrTaskEndPos = 0;
     private byte[] writeChrTaskSegmentBuffer = null;
+    private int writeChrTaskSegmentIdx = 0; // for sampling packets
+    private int writeChrTaskSegmentCount = 0;
+    // used to describe a single piece of data without allocating arrays.
+    private final byte[][] singlePiece = new byte[1][];
+    private final int[] singlePieceOffset = new int[1];
+    private final int[] singlePieceSize = new int[1];
 
     public BlockingBle(BluetoothDevice device) {
         if (device == null) {
@@ -153,6 +182,73 @@ public class BlockingBle {
         return gatt != null && bluetoothManager.getConnectionState(this.targetDevice, BluetoothProfile.GATT) == BluetoothProfile.STATE_CONNECTED;
     }
 
+    public int getMtu() {
+        return mtu;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * The connection, discovery, MTU exchange, packets, retries and stalls are recorded into the metrics.
+     */
+    public void setMetrics(@Nullable SessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Nullable
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The latencies of GATT operations on this connection. It can be dumped or reset at any time.
+     */
+    public GattLatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * GATT operations, written segments and notifications are recorded into the tracer.
+     */
+    public void setTracer(@Nullable TraceRecorder tracer) {
+        this.tracer = tracer;
+    }
+
+    @Nullable
+    public TraceRecorder getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Written segments and received notifications are copied into the capture.
+     */
+    public void setCapture(@Nullable BtsnoopCapture capture) {
+        this.capture = capture;
+    }
+
+    @Nullable
+    public BtsnoopCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Packets are logged through the sampler instead of the logger, so that logging does not slow down the transfer.
+     */
+    public void setPacketTracer(@Nullable PacketTraceSampler packetTracer) {
+        this.packetTracer = packetTracer;
+    }
+
+    @Nullable
+    public PacketTraceSampler getPacketTracer() {
+        return packetTracer;
+    }
+
     public void connect() throws Throwable {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             connect(BluetoothDevice.PHY_LE_1M_MASK, DEFAULT_GATT_TIMEOUT);
@@ -170,13 +266,76 @@ public class BlockingBle {
     }
 
     public void connect(int preferredPhyMask, long timeout) throws Throwable {
+        beginConnect(preferredPhyMask);
+        awaitConnected(timeout);
+    }
+
+    /**
+     * Initiate the connection without waiting for it, then call {@link #awaitConnected(long)}.
+     * It does not block, so it can be called from the callback of scanning as soon as the target is found.
+     */
+    public synchronized void beginConnect(int preferredPhyMask) {
+        if (connectBegun) {
+            throw new Error("beginConnect(): The connection is being established.");
+        }
+        final SessionMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.beginPhase(SessionMetrics.PHASE_CONNECT);
+        }
+        connectStartTime = System.nanoTime();
+        connectBegun = true;
+        connectingGatt = null;
+
         // already connected
         if (this.targetGatt != null &&
                 connected &&
                 bluetoothManager.getConnectionState(this.targetDevice, BluetoothProfile.GATT) == BluetoothProfile.STATE_CONNECTED) {
             return;
         }
+        try {
+            connectingGatt = connectGatt(preferredPhyMask);
+        } catch (RuntimeException e) {
+            connectBegun = false;
+            if (metrics != null) {
+                metrics.endPhase(SessionMetrics.PHASE_CONNECT);
+            }
+            throw e;
+        }
+    }
 
+    /**
+     * Wait for the connection initiated by {@link #beginConnect(int)}.
+     */
+    public void awaitConnected(long timeout) throws Throwable {
+        final BluetoothGatt gatt;
+        final long startTime;
+        synchronized (this) {
+            if (!connectBegun) {
+                throw new Error("awaitConnected(): beginConnect() is not called.");
+            }
+            gatt = connectingGatt;
+            startTime = connectStartTime;
+            connectingGatt = null;
+            connectBegun = false;
+        }
+        try {
+            if (gatt != null) {
+                waitConnected(gatt, timeout);
+            }
+            latencyStats.connect.recordSince(startTime);
+        } finally {
+            final SessionMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.endPhase(SessionMetrics.PHASE_CONNECT);
+            }
+            final TraceRecorder tracer = this.tracer;
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_BLE, "connect", startTime, 0);
+            }
+        }
+    }
+
+    private BluetoothGatt connectGatt(int preferredPhyMask) {
         synchronized (this) {
 
             BluetoothGatt gatt;
@@ -201,72 +360,90 @@ public class BlockingBle {
                 prvGatt.disconnect();
                 prvGatt.close();
             }
+            return gatt;
+        }
+    }
 
-            if (gatt != null) {
-                try {
-                    long expiredTime = System.currentTimeMillis() + timeout;
-                    boolean waitResponse = true;
-                    Throwable error = null;
-                    while (waitResponse) {
-                        final CtrlEvt evt = bleEvtQueue.poll(2000, TimeUnit.MILLISECONDS);
-                        if (evt == null) {
-                            long now = System.currentTimeMillis();
-                            if (now >= expiredTime) {
-                                targetGatt = null;
-                                if (logger != null) {
-                                    logger.w(TAG, "Close current gatt, for timeout.");
-                                }
-                                gatt.close();
-                                throw new TimeoutException("Timeout to establish connection with " + gatt.getDevice().getAddress());
+    private void waitConnected(BluetoothGatt gatt, long timeout) throws Throwable {
+        synchronized (this) {
+            try {
+                long expiredTime = System.currentTimeMillis() + timeout;
+                boolean waitResponse = true;
+                Throwable error = null;
+                while (waitResponse) {
+                    final CtrlEvt evt = bleEvtQueue.poll(2000, TimeUnit.MILLISECONDS);
+                    if (evt == null) {
+                        long now = System.currentTimeMillis();
+                        if (now >= expiredTime) {
+                            targetGatt = null;
+                            if (logger != null) {
+                                logger.w(TAG, "Close current gatt, for timeout.");
                             }
-                        } else {
-                            if (evt.evtType == CtrlEvt.EVT_CONNECTION_STATE_CHANGED && evt.gatt == gatt) {
-                                evt.handled = true;
-                                if (evt.status == BluetoothGatt.GATT_SUCCESS) {
-                                    if (evt.newConnectionState == BluetoothProfile.STATE_CONNECTED) {
-                                        if (logger != null)
-                                            logger.i(TAG, "Device connected: " + gatt.getDevice().getAddress());
-                                    } else {
-                                        error = new Error("Failed to establish connection");
-                                    }
-                                    waitResponse = false;
+                            gatt.close();
+                            throw new TimeoutException("Timeout to establish connection with " + gatt.getDevice().getAddress());
+                        }
+                    } else {
+                        if (evt.evtType == CtrlEvt.EVT_CONNECTION_STATE_CHANGED && evt.gatt == gatt) {
+                            evt.handled = true;
+                            if (evt.status == BluetoothGatt.GATT_SUCCESS) {
+                                if (evt.newConnectionState == BluetoothProfile.STATE_CONNECTED) {
+                                    if (logger != null)
+                                        logger.i(TAG, "Device connected: " + gatt.getDevice().getAddress());
                                 } else {
-                                    Thread.sleep(200);
-                                    // 连接过程中，出现错误时，只要没有超时就重试
-                                    if (!gatt.connect()) {
-                                        error = new Error("gatt.connect()==false! Failed to establish connection with " + gatt.getDevice().getAddress());
-                                        waitResponse = false;
-                                    }
+                                    error = new Error("Failed to establish connection");
+                                }
+                                waitResponse = false;
+                            } else {
+                                Thread.sleep(200);
+                                // 连接过程中，出现错误时，只要没有超时就重试
+                                final SessionMetrics metrics = this.metrics;
+                                if (metrics != null) {
+                                    metrics.onRetry();
+                                }
+                                if (!gatt.connect()) {
+                                    error = new Error("gatt.connect()==false! Failed to establish connection with " + gatt.getDevice().getAddress());
+                                    waitResponse = false;
                                 }
                             }
-                            recycleCtrlEvt(evt);
                         }
+                        recycleCtrlEvt(evt);
                     }
-                    if (error != null) {
-                        lastError = error;
-                        targetGatt = null;
-                        if (logger != null) {
-                            logger.w(TAG, "Close current gatt, for error: " + error.getMessage());
-                        }
-                        gatt.close();
-                        throw error;
-                    }
-                } catch (InterruptedException e) {
+                }
+                if (error != null) {
+                    lastError = error;
+                    targetGatt = null;
                     if (logger != null) {
-                        logger.w(TAG, "Disconnect and close current gatt, for interruption.");
+                        logger.w(TAG, "Close current gatt, for error: " + error.getMessage());
                     }
-                    // 如果是中断了，就是停止连接，就取消连接，释放资源。
-                    gatt.disconnect();
-                    Thread.sleep(200);
-                    targetGatt = null;
                     gatt.close();
-
-                    throw e;
+                    throw error;
                 }
+            } catch (InterruptedException e) {
+                if (logger != null) {
+                    logger.w(TAG, "Disconnect and close current gatt, for interruption.");
+                }
+                // 如果是中断了，就是停止连接，就取消连接，释放资源。
+                gatt.disconnect();
+                Thread.sleep(200);
+                targetGatt = null;
+                gatt.close();
 
-                // Connected successfully
-                this.mtu = 23;
+                throw e;
             }
+
+            // Connected successfully
+            this.mtu = 23;
+        }
+    }
+
+    /**
+     * Request to disconnect without waiting, e.g. to abort a blocking operation on another thread.
+     * The operation fails as soon as the link is down. Call {@link #disconnect()} afterwards to release the GATT.
+     */
+    public void abortConnection() {
+        final BluetoothGatt gatt = this.targetGatt;
+        if (gatt != null) {
+            gatt.disconnect();
         }
     }
 
@@ -321,6 +498,26 @@ public class BlockingBle {
     }
 
     public void discoverServices() throws Throwable {
+        final SessionMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.beginPhase(SessionMetrics.PHASE_DISCOVER);
+        }
+        final long startTime = System.nanoTime();
+        try {
+            discoverGattServices();
+            latencyStats.discover.recordSince(startTime);
+        } finally {
+            if (metrics != null) {
+                metrics.endPhase(SessionMetrics.PHASE_DISCOVER);
+            }
+            final TraceRecorder tracer = this.tracer;
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_BLE, "discover", startTime, 0);
+            }
+        }
+    }
+
+    private void discoverGattServices() throws Throwable {
         final ILogger logger = this.logger;
         synchronized (this) {
             final BluetoothGatt gatt = this.targetGatt;
@@ -343,7 +540,7 @@ public class BlockingBle {
 
                         // enumerate ATT
                         final List<BluetoothGattService> services = gatt.getServices();
-                        if (services != null) {
+                        if (services != null && logger.isLoggable(ILogger.VERBOSE)) {
                             for (BluetoothGattService service : services) {
                                 logger.v(TAG, "<S> " + service.getUuid().toString() + " ------- #" + service.getInstanceId());
 
@@ -421,6 +618,26 @@ public class BlockingBle {
     }
 
     public void setMtu(int newMtu) throws Throwable {
+        final SessionMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.beginPhase(SessionMetrics.PHASE_MTU);
+        }
+        final long startTime = System.nanoTime();
+        try {
+            requestMtu(newMtu);
+            latencyStats.mtu.recordSince(startTime);
+        } finally {
+            if (metrics != null) {
+                metrics.endPhase(SessionMetrics.PHASE_MTU);
+            }
+            final TraceRecorder tracer = this.tracer;
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_BLE, "mtu", startTime, 0);
+            }
+        }
+    }
+
+    private void requestMtu(int newMtu) throws Throwable {
         synchronized (this) {
             final BluetoothGatt gatt = this.targetGatt;
             // no connection
@@ -453,6 +670,10 @@ public class BlockingBle {
                     error = new TimeoutException(msgOnTimeout + gatt.getDevice().getAddress());
                     waitResponse = false;
                 }
+                final SessionMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.onStall();
+                }
             } else {
                 if (evt.evtType == evtType && evt.gatt == gatt) {
                     evt.handled = true;
@@ -491,6 +712,7 @@ public class BlockingBle {
 
             boolean success = false;
             Throwable error = null;
+            long cccdWriteTime = 0;
 
             int properties = chr.getProperties();
             if (0 == (properties & (BluetoothGattCharacteristic.PROPERTY_INDICATE | BluetoothGattCharacteristic.PROPERTY_NOTIFY))) {
@@ -515,6 +737,7 @@ public class BlockingBle {
                         cccd.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
                     }
 
+                    cccdWriteTime = System.nanoTime();
                     if (writeDescriptorCompat(chr, cccd)) {
                         success = true;
                     } else {
@@ -539,6 +762,12 @@ public class BlockingBle {
                             evt.handled = true;
                             if (evt.status != BluetoothGatt.GATT_SUCCESS) {
                                 error = new Error("Failed to set the CCCD of " + chr.getUuid().toString() + ", status: " + evt.status);
+                            } else {
+                                latencyStats.cccdWrite.recordSince(cccdWriteTime);
+                                final TraceRecorder tracer = this.tracer;
+                                if (tracer != null) {
+                                    tracer.complete(TraceRecorder.CAT_BLE, "cccdWrite", cccdWriteTime, 0);
+                                }
                             }
                             waitResponse = false;
                         }
@@ -663,12 +892,45 @@ public class BlockingBle {
         writeChr(chr, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, timeout, dat, offsetInDat, writeSize, listener);
     }
 
+    /**
+     * Write the data gathered from several pieces as if they were one continuous array.
+     * Each byte is copied only once, into the segment which is passed to the stack.
+     * The arrays must not be modified until this method returns.
+     */
+    public void writeChrWithResponse(BluetoothGattCharacteristic chr, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, @Nullable DataProgressListener listener) throws Throwable {
+        writeChr(chr, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, timeout, pieces, offsetsInPieces, sizesOfPieces, pieceCount, pieces, listener);
+    }
+
+    /**
+     * @see #writeChrWithResponse(BluetoothGattCharacteristic, long, byte[][], int[], int[], int, DataProgressListener)
+     */
+    public void writeChrWithoutResponse(BluetoothGattCharacteristic chr, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, @Nullable DataProgressListener listener) throws Throwable {
+        writeChr(chr, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, timeout, pieces, offsetsInPieces, sizesOfPieces, pieceCount, pieces, listener);
+    }
+
     //特性读写 函数writeCharWithResponse
     private void writeChr(BluetoothGattCharacteristic chr, int writeType, long timeout, byte[] dat, int offsetInDat, int writeSize, DataProgressListener listener) throws Throwable {
         if (chr == null || dat == null) {
             return;
         }
 
+        synchronized (this) {
+            singlePiece[0] = dat;
+            singlePieceOffset[0] = offsetInDat;
+            singlePieceSize[0] = writeSize;
+            try {
+                writeChr(chr, writeType, timeout, singlePiece, singlePieceOffset, singlePieceSize, 1, dat, listener);
+            } finally {
+                singlePiece[0] = null;
+            }
+        }
+    }
+
+    private void writeChr(BluetoothGattCharacteristic chr, int writeType, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, Object progressData, DataProgressListener listener) throws Throwable {
+        if (chr == null || pieces == null || offsetsInPieces == null || sizesOfPieces == null) {
+            return;
+        }
+
         synchronized (this) {
             final BluetoothGatt gatt = this.targetGatt;
             // no connection
@@ -677,10 +939,23 @@ public class BlockingBle {
                 throw lastError;
             }
 
-            int curPos = offsetInDat;
-            int endPos = offsetInDat + writeSize;
-            if (endPos < dat.length) {
-                endPos = dat.length;
+            // clip each piece to its array.
+            int writeSize = 0;
+            for (int i = 0; i < pieceCount; i++) {
+                final byte[] piece = pieces[i];
+                final int offset = offsetsInPieces[i];
+                int size = sizesOfPieces[i];
+                if (piece == null || offset < 0 || size < 0) {
+                    size = 0;
+                } else if (offset + size > piece.length) {
+                    size = offset < piece.length ? piece.length - offset : 0;
+                }
+                sizesOfPieces[i] = size;
+                writeSize += size;
+            }
+
+            if (writeSize < 1) {
+                return;
             }
 
             chr.setWriteType(writeType);
@@ -689,39 +964,53 @@ public class BlockingBle {
             long reportProgressTime = writeBeginTime;
 
             // trigger writing progress
-            this.writeChrTaskData = dat;
-            this.writeChrTaskCurtPos = curPos;
-            this.writeChrTaskEndPos = endPos;
+            this.writeChrTaskPieces = pieces;
+            this.writeChrTaskPieceOffsets = offsetsInPieces;
+            this.writeChrTaskPieceSizes = sizesOfPieces;
+            this.writeChrTaskPieceIdx = 0;
+            this.writeChrTaskPiecePos = 0;
+            this.writeChrTaskCurtPos = 0;
+            this.writeChrTaskEndPos = writeSize;
+            this.writeChrTaskSegmentIdx = 0;
+            this.writeChrTaskSegmentCount = (writeSize + mtu - 4) / (mtu - 3);
             //this.writeChrTaskFailed = false;
-            // failed to send first segment
-            if (!processWriteChrTask(gatt, chr)) {
-                lastError = new Error("gatt.writeCharacteristic(" + chr.getUuid().toString() + ") == false, writeType=" + writeType);
-                throw lastError;
-            }
-
-            while (true) {
-                final CtrlEvt evt = waitEvtOfChr(gatt, chr, CtrlEvt.EVT_CHR_WRITTEN, timeout, "Timeout to write ", "Connection is lost while writing ");
-
-                if (evt.status != BluetoothGatt.GATT_SUCCESS) {
-                    lastError = new Error("Failed to write " + chr.getUuid().toString() + ", writeType=" + chr.getWriteType() + ", status: " + evt.status);
-                    throw lastError;
-                }
-
-                if (!evt.writeChrResult) {
+            try {
+                // failed to send first segment
+                if (!processWriteChrTask(gatt, chr)) {
                     lastError = new Error("gatt.writeCharacteristic(" + chr.getUuid().toString() + ") == false, writeType=" + writeType);
                     throw lastError;
                 }
 
-                if (listener != null) {
-                    long now = System.currentTimeMillis();
-                    listener.onDataProcessed(dat, evt.writeChrCurPos - offsetInDat, writeSize, now - reportProgressTime, now - writeBeginTime);
-                    reportProgressTime = now;
-                }
+                while (true) {
+                    final CtrlEvt evt = waitEvtOfChr(gatt, chr, CtrlEvt.EVT_CHR_WRITTEN, timeout, "Timeout to write ", "Connection is lost while writing ");
+
+                    if (evt.status != BluetoothGatt.GATT_SUCCESS) {
+                        lastError = new Error("Failed to write " + chr.getUuid().toString() + ", writeType=" + chr.getWriteType() + ", status: " + evt.status);
+                        throw lastError;
+                    }
+
+                    if (!evt.writeChrResult) {
+                        lastError = new Error("gatt.writeCharacteristic(" + chr.getUuid().toString() + ") == false, writeType=" + writeType);
+                        throw lastError;
+                    }
+
+                    if (listener != null) {
+                        long now = System.currentTimeMillis();
+                        listener.onDataProcessed(progressData, evt.writeChrCurPos, writeSize, now - reportProgressTime, now - writeBeginTime);
+                        reportProgressTime = now;
+                    }
 
-                if (evt.writeChrCurPos >= evt.writeChrEndPos) {
-                    // complete
-                    break;
+                    if (evt.writeChrCurPos >= evt.writeChrEndPos) {
+                        // complete
+                        break;
+                    }
                 }
+            } finally {
+                // release the references of caller's data
+                this.writeChrTaskEndPos = this.writeChrTaskCurtPos;
+                this.writeChrTaskPieces = null;
+                this.writeChrTaskPieceOffsets = null;
+                this.writeChrTaskPieceSizes = null;
             }
         }
     }
@@ -745,12 +1034,18 @@ public class BlockingBle {
 
             Throwable error = null;
 
+            final long startTime = System.nanoTime();
             final boolean success = gatt.readCharacteristic(chr);
 
             if (success) {
                 final CtrlEvt evt = waitEvtOfChr(gatt, chr, CtrlEvt.EVT_CHR_READ, timeout, "Timeout to read ", "Connection is lost while reading ");
 
                 if (evt.status == BluetoothGatt.GATT_SUCCESS) {
+                    latencyStats.chrRead.recordSince(startTime);
+                    final TraceRecorder tracer = this.tracer;
+                    if (tracer != null) {
+                        tracer.complete(TraceRecorder.CAT_BLE, "chrRead", startTime, evt.valOfChr != null ? evt.valOfChr.length : 0);
+                    }
                     val = evt.valOfChr;
                 } else {
                     error = new Error("Failed to read " + chr.getUuid().toString() + ", status=" + evt.status);
@@ -784,6 +1079,10 @@ public class BlockingBle {
                     error = new TimeoutException(msgOnTimeout + chr.getUuid().toString());
                     waitResponse = false;
                 }
+                final SessionMetrics metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.onStall();
+                }
             } else {
                 if (evt.evtType == evtType && evt.gatt == gatt && evt.characteristic == chr) {
                     evt.handled = true;
@@ -940,6 +1239,11 @@ public class BlockingBle {
 
             connected = newState == BluetoothProfile.STATE_CONNECTED;
 
+            final TraceRecorder tracer = BlockingBle.this.tracer;
+            if (tracer != null) {
+                tracer.instant(TraceRecorder.CAT_BLE, "connectionState", newState);
+            }
+
             CtrlEvt evt = bleEvtQueuePool.poll();
             if (evt == null) {
                 evt = new CtrlEvt();
@@ -1006,12 +1310,30 @@ public class BlockingBle {
             final int endPos = writeChrTaskEndPos;
             boolean writeChrResult = true;
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                latencyStats.chrWrite.recordSince(writeChrTaskIssueTime);
+                final TraceRecorder tracer = BlockingBle.this.tracer;
+                if (tracer != null) {
+                    tracer.complete(TraceRecorder.CAT_BLE, "chrWrite", writeChrTaskIssueTime, value != null ? value.length : 0);
+                }
+
                 writeChrResult = processWriteChrTask(gatt, characteristic);
+
+                final SessionMetrics metrics = BlockingBle.this.metrics;
+                if (metrics != null && value != null) {
+                    metrics.onPacketSent(value.length);
+                }
             }
 
-            // postpone printing log
-            if (logger != null)
-                logger.d(TAG, "onCharacteristicWrite() called with: gatt = [" + gatt.getDevice().getAddress() + "], characteristic = [" + characteristic.getUuid().toString() + "], status = [" + status + "]  [" + value.length + "]" + dump(value));
+            // postpone printing log. Successful packets are logged by the packet tracer.
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                final PacketTraceSampler packetTracer = BlockingBle.this.packetTracer;
+                if (packetTracer != null && packetTracer.getMode() != PacketTraceSampler.MODE_OFF) {
+                    packetTracer.traceWriteStatus(characteristic.getUuid(), status);
+                }
+                if (logger != null && logger.isLoggable(ILogger.WARNING)) {
+                    logger.w(TAG, "onCharacteristicWrite() called with: gatt = [" + gatt.getDevice().getAddress() + "], characteristic = [" + characteristic.getUuid().toString() + "], status = [" + status + "]  [" + value.length + "]" + dump(value));
+                }
+            }
 
             // for updating progress
             CtrlEvt evt = bleEvtQueuePool.poll();
@@ -1033,9 +1355,29 @@ public class BlockingBle {
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             byte[] value = characteristic.getValue();
-            final ILogger logger = BlockingBle.this.logger;
-            if (logger != null) {
-                logger.d(TAG, "onCharacteristicChanged(): start: called with: gatt = [" + gatt.getDevice().getAddress() + "], characteristic = [" + characteristic.getUuid().toString() + "]  [" + characteristic.getValue().length + "]" + dump(value));
+            final PacketTraceSampler packetTracer = BlockingBle.this.packetTracer;
+            if (packetTracer != null && packetTracer.shouldTraceNotification()) {
+                packetTracer.traceNotification(characteristic.getUuid(), value);
+            }
+
+            final SessionMetrics metrics = BlockingBle.this.metrics;
+            if (metrics != null && value != null) {
+                metrics.onPacketReceived(value.length);
+            }
+
+            final long now = System.nanoTime();
+            if (lastNtfTime != 0) {
+                latencyStats.ntfInterval.record(now - lastNtfTime);
+            }
+            lastNtfTime = now;
+            final TraceRecorder tracer = BlockingBle.this.tracer;
+            if (tracer != null) {
+                tracer.instant(TraceRecorder.CAT_BLE, "notification", value != null ? value.length : 0);
+            }
+            final BtsnoopCapture capture = BlockingBle.this.capture;
+            if (capture != null && value != null) {
+                final int attOpcode = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 ? BtsnoopCapture.ATT_HANDLE_VALUE_NTF : BtsnoopCapture.ATT_HANDLE_VALUE_IND;
+                capture.record(true, attOpcode, characteristic.getInstanceId(), value, 0, value.length);
             }
 
             ChrNtfBuf datBuffer;
@@ -1170,7 +1512,12 @@ public class BlockingBle {
         final int startPos = writeChrTaskCurtPos;
         final int endPos = writeChrTaskEndPos;
         if (startPos < endPos) {
-            final byte[] taskData = writeChrTaskData;
+            final byte[][] pieces = writeChrTaskPieces;
+            final int[] pieceOffsets = writeChrTaskPieceOffsets;
+            final int[] pieceSizes = writeChrTaskPieceSizes;
+            if (pieces == null || pieceOffsets == null || pieceSizes == null) {
+                return false;
+            }
             byte[] segmentBuffer = writeChrTaskSegmentBuffer;
             int maxSegmentSize = mtu - 3;
             int segmentSize = endPos - startPos;
@@ -1181,13 +1528,43 @@ public class BlockingBle {
                 segmentBuffer = new byte[segmentSize];
                 writeChrTaskSegmentBuffer = segmentBuffer;
             }
-            System.arraycopy(taskData, startPos, segmentBuffer, 0, segmentSize);
+            // gather the segment from pieces
+            int pieceIdx = writeChrTaskPieceIdx;
+            int piecePos = writeChrTaskPiecePos;
+            int copiedSize = 0;
+            while (copiedSize < segmentSize) {
+                int copySize = pieceSizes[pieceIdx] - piecePos;
+                if (copySize < 1) {
+                    pieceIdx++;
+                    piecePos = 0;
+                    continue;
+                }
+                if (copySize > segmentSize - copiedSize) {
+                    copySize = segmentSize - copiedSize;
+                }
+                System.arraycopy(pieces[pieceIdx], pieceOffsets[pieceIdx] + piecePos, segmentBuffer, copiedSize, copySize);
+                piecePos += copySize;
+                copiedSize += copySize;
+            }
+            writeChrTaskPieceIdx = pieceIdx;
+            writeChrTaskPiecePos = piecePos;
             writeChrTaskCurtPos += segmentSize;
             characteristic.setValue(segmentBuffer);
+            writeChrTaskIssueTime = System.nanoTime();
             final boolean ret = gatt.writeCharacteristic(characteristic);
+            final BtsnoopCapture capture = this.capture;
+            if (capture != null && ret) {
+                final int attOpcode = characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ? BtsnoopCapture.ATT_WRITE_CMD : BtsnoopCapture.ATT_WRITE_REQ;
+                capture.record(false, attOpcode, characteristic.getInstanceId(), segmentBuffer, 0, segmentSize);
+            }
+            final int segmentIdx = writeChrTaskSegmentIdx++;
+            final PacketTraceSampler packetTracer = this.packetTracer;
+            if (packetTracer != null && packetTracer.shouldTraceWrite(segmentIdx, writeChrTaskSegmentCount, !ret)) {
+                packetTracer.traceWrite(characteristic.getUuid(), segmentIdx, writeChrTaskSegmentCount, ret, segmentBuffer, 0, segmentSize);
+            }
             final ILogger logger = this.logger;
-            if (logger != null) {
-                logger.i(TAG, "writeCharacteristic = [" + gatt.getDevice().getAddress() + "], characteristic = [" + characteristic.getUuid().toString() + "], ret = [" + ret + "]  [" + segmentBuffer.length + "]" + dump(segmentBuffer));
+            if (!ret && logger != null && logger.isLoggable(ILogger.WARNING)) {
+                logger.w(TAG, "writeCharacteristic = [" + gatt.getDevice().getAddress() + "], characteristic = [" + characteristic.getUuid().toString() + "], ret = [false]  [" + segmentSize + "]" + dump(segmentBuffer));
             }
             return ret;
         }
@@ -1195,7 +1572,7 @@ public class BlockingBle {
     }
 
     //tool
-    public static char[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    public static char[] HEX = HexCodec.DIGITS;
 
     public static String dump(byte[] dat) {
         if (dat == null) return "null";
@@ -1208,7 +1585,7 @@ public class BlockingBle {
 
         int startPos = offset;
         if (startPos < 0) {
-            startPos = dat.length + startPos;
+            startPos = Math.max(dat.length + startPos, 0);
         }
 
         int endPos = startPos + size;
@@ -1216,14 +1593,7 @@ public class BlockingBle {
             endPos = dat.length;
         }
 
-        StringBuilder sb = new StringBuilder((endPos - startPos) * 2);
-        for (int i = startPos; i < endPos; i++) {
-            byte b = dat[i];
-            sb.append(HEX[(b >> 4) & 0xF]);
-            sb.append(HEX[b & 0xF]);
-
-        }
-        return sb.toString();
+        return HexCodec.encode(dat, startPos, endPos - startPos);
     }
 
     static class ChrNtfBuf {
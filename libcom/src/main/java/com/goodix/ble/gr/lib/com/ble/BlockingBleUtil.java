@@ -39,8 +39,11 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
+import com.goodix.ble.gr.lib.com.HexCodec;
+import com.goodix.ble.gr.lib.com.HexString;
+
 public class BlockingBleUtil {
-    public static char[] HEX_ALPHABET = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    public static char[] HEX_ALPHABET = HexCodec.DIGITS;
 
     private static final String[] requiredPermissions = new String[4];
 
@@ -103,40 +106,10 @@ public class BlockingBleUtil {
     }
 
     public static long macToValue(CharSequence mac) {
-        long val = 0;
-        if (mac != null) {
-            for (int i = 0; i < mac.length(); i++) {
-                final char ch = mac.charAt(i);
-                if (ch >= '0' && ch <= '9') {
-                    val <<= 4;
-                    val |= ((ch - '0') & 0xFL);
-                } else if (ch >= 'A' && ch <= 'F') {
-                    val <<= 4;
-                    val |= (((ch - 'A') + 10) & 0xFL);
-                } else if (ch >= 'a' && ch <= 'f') {
-                    val <<= 4;
-                    val |= (((ch - 'a') + 10) & 0xFL);
-                }
-            }
-        }
-        return val;
+        return HexString.macToValue(mac);
     }
 
     public static String valueToMac(long mac) {
-        final StringBuilder builder = new StringBuilder(6 * 2 + 5);
-        int i = 0;
-        while (true) {
-            int b = (int) ((mac >> 40) & 0xFFL);
-            i++;
-            mac <<= 8;
-            builder.append(HEX_ALPHABET[b >> 4])    // msb
-                    .append(HEX_ALPHABET[b & 0xF]); // lsb
-            if (i < 6) {
-                builder.append(':');
-                continue;
-            }
-            break;
-        }
-        return builder.toString();
+        return HexString.valueToMac(mac);
     }
 }
@@ -40,15 +40,19 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Build;
+import android.os.ParcelUuid;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.goodix.ble.gr.lib.com.HexString;
+import com.goodix.ble.gr.lib.com.LongHashMap;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
+import java.util.UUID;
 
 public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
     public interface Filter {
@@ -57,23 +61,97 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
 
     public static class Report {
         public final String mac;
+        public final long macValue; // HexString.macToValue(mac)
         public final BluetoothDevice device;
         public int rssi;
-        public int rssiAvg;
+        public int rssiAvg; // rounded rssiEwma
+        public float rssiEwma; // exponentially weighted moving average, see setRssiSmoothing()
         public int rssiSum;
         public int rssiCnt;
+        public long lastSeenTime; // System.currentTimeMillis()
 
         // ext info
         public boolean extended; // true - extended; false - legacy
         public int advertisingSetId; // 0xFF if no set id was is present.
         public int periodicAdvertisingInterval; // in units of 1.25ms. Valid range is 6 (7.5ms) to 65536 (81918.75ms). 0x00 means periodic advertising interval is not present.
+        public int primaryPhy = BluetoothDevice.PHY_LE_1M; // BluetoothDevice.PHY_LE_1M or PHY_LE_CODED
+        public int secondaryPhy = ScanResult.PHY_UNUSED; // BluetoothDevice.PHY_LE_*, PHY_UNUSED for legacy advertising
 
         public Report(BluetoothDevice device) {
             this.device = device;
             this.mac = device.getAddress();
+            this.macValue = HexString.macToValue(mac);
+        }
+
+        public Report(Report that) {
+            this.device = that.device;
+            this.mac = that.mac;
+            this.macValue = that.macValue;
+            this.rssi = that.rssi;
+            this.rssiAvg = that.rssiAvg;
+            this.rssiEwma = that.rssiEwma;
+            this.rssiSum = that.rssiSum;
+            this.rssiCnt = that.rssiCnt;
+            this.lastSeenTime = that.lastSeenTime;
+            this.extended = that.extended;
+            this.advertisingSetId = that.advertisingSetId;
+            this.periodicAdvertisingInterval = that.periodicAdvertisingInterval;
+            this.primaryPhy = that.primaryPhy;
+            this.secondaryPhy = that.secondaryPhy;
         }
     }
 
+    /**
+     * Cost and latency of the last scan.
+     */
+    public static class ScanStats {
+        public boolean hardwareFiltered; // the filters are offloaded to the controller
+        public boolean batched; // the results are reported in batches by the controller
+        public int resultCount; // results delivered by the stack
+        public int batchCount;
+        public int matchedCount; // results passed the RSSI and the Java filter
+        public int evictedCount; // reports dropped as stale
+        public long firstMatchTime = -1; // ms from the start of scan, -1 if nothing matched
+        public long callbackTime; // ns spent in the scan callbacks
+        public long scanTime; // ms
+
+        void reset() {
+            hardwareFiltered = false;
+            batched = false;
+            resultCount = 0;
+            batchCount = 0;
+            matchedCount = 0;
+            evictedCount = 0;
+            firstMatchTime = -1;
+            callbackTime = 0;
+            scanTime = 0;
+        }
+
+        public ScanStats copy(ScanStats that) {
+            this.hardwareFiltered = that.hardwareFiltered;
+            this.batched = that.batched;
+            this.resultCount = that.resultCount;
+            this.batchCount = that.batchCount;
+            this.matchedCount = that.matchedCount;
+            this.evictedCount = that.evictedCount;
+            this.firstMatchTime = that.firstMatchTime;
+            this.callbackTime = that.callbackTime;
+            this.scanTime = that.scanTime;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return "ScanStats{hardwareFiltered=" + hardwareFiltered + ", batched=" + batched
+                    + ", resultCount=" + resultCount + ", batchCount=" + batchCount + ", matchedCount=" + matchedCount + ", evictedCount=" + evictedCount
+                    + ", firstMatchTime=" + firstMatchTime + "ms, callbackTime=" + callbackTime / 1000 + "us, scanTime=" + scanTime + "ms}";
+        }
+    }
+
+    // wait for the batched results after flushing them
+    private static final long BATCH_FLUSH_TIMEOUT = 500;
+    public static final float DEFAULT_RSSI_SMOOTHING = 0.25f;
+
     public Context appCtx;
 
     private final BluetoothAdapter adapter;
@@ -81,9 +159,18 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
     private BluetoothLeScanner leScanner = null;
     private Filter reportFilter = null;
     private int reportRssiFilter = -127;
-    private final HashMap<String, Report> reportCache = new HashMap<>(128);
+    private final LongHashMap<Report> reportCache = new LongHashMap<>(128); // key: HexString.macToValue()
+    private float rssiSmoothing = DEFAULT_RSSI_SMOOTHING;
+    private long staleAge = 0;
+    private long lastEvictTime;
     private boolean scanning = false;
     private boolean abortWhenDiscoveredAnyOne = false;
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+    private long reportDelay = 0;
+    private boolean batching = false;
+    private boolean batchDelivered = false;
+    private long scanStartTime;
+    private final ScanStats stats = new ScanStats();
 
     public BlockingLeScanner(Context appCtx) {
         this.appCtx = appCtx.getApplicationContext();
@@ -92,11 +179,151 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
         adapter = BluetoothAdapter.getDefaultAdapter();
     }
 
+    public static ScanFilter filterOfMac(String mac) {
+        return new ScanFilter.Builder().setDeviceAddress(mac).build();
+    }
+
+    public static ScanFilter filterOfService(UUID serviceUuid) {
+        return new ScanFilter.Builder().setServiceUuid(new ParcelUuid(serviceUuid)).build();
+    }
+
+    /**
+     * @param mask null to match all the bytes of data.
+     */
+    public static ScanFilter filterOfManufacturerData(int manufacturerId, byte[] data, @Nullable byte[] mask) {
+        return new ScanFilter.Builder().setManufacturerData(manufacturerId, data, mask).build();
+    }
+
+    /**
+     * @param scanMode ScanSettings.SCAN_MODE_*. SCAN_MODE_LOW_LATENCY by default.
+     */
+    public void setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * Let the controller report the results in batches, which saves the wakeups of CPU for an inventory scan.
+     * It is ignored if batching is not supported, and it is not used by {@link #scanForDevice}.
+     *
+     * @param reportDelay in milliseconds. 0 reports each result immediately, which is the default.
+     */
+    public void setReportDelay(long reportDelay) {
+        this.reportDelay = Math.max(reportDelay, 0);
+    }
+
+    /**
+     * @param alpha weight of the new sample in the average RSSI, in (0, 1]. 1 takes the last RSSI only.
+     */
+    public synchronized void setRssiSmoothing(float alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new Error("setRssiSmoothing(): alpha is out of range (0, 1]: " + alpha);
+        }
+        this.rssiSmoothing = alpha;
+    }
+
+    /**
+     * Drop the devices that have not been seen for a while, e.g. for a long inventory scan.
+     *
+     * @param staleAge in milliseconds. 0 keeps all the devices, which is the default.
+     */
+    public synchronized void setStaleAge(long staleAge) {
+        this.staleAge = Math.max(staleAge, 0);
+    }
+
+    /**
+     * The strongest devices by the average RSSI, which can be called while scanning,
+     * e.g. from another thread or from the {@link Filter}. Only the selected reports are copied.
+     *
+     * @param k maximum number of devices.
+     * @return copies of the reports, the strongest first.
+     */
+    public synchronized List<Report> getStrongest(int k) {
+        if (k < 1 || reportCache.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // min-heap of the k strongest, the weakest of them at the top
+        final Report[] heap = new Report[Math.min(k, reportCache.size())];
+        int heapSize = 0;
+        for (int slot = 0; slot < reportCache.capacity(); slot++) {
+            final Report report = reportCache.valueAt(slot);
+            if (report == null) {
+                continue;
+            }
+            if (heapSize < heap.length) {
+                heap[heapSize] = report;
+                siftUp(heap, heapSize++);
+            } else if (report.rssiEwma > heap[0].rssiEwma) {
+                heap[0] = report;
+                siftDown(heap, heapSize);
+            }
+        }
+        final ArrayList<Report> reports = new ArrayList<>(heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            reports.add(new Report(heap[i]));
+        }
+        Collections.sort(reports, this);
+        return reports;
+    }
+
+    private static void siftUp(Report[] heap, int idx) {
+        final Report report = heap[idx];
+        while (idx > 0) {
+            final int parent = (idx - 1) >>> 1;
+            if (heap[parent].rssiEwma <= report.rssiEwma) {
+                break;
+            }
+            heap[idx] = heap[parent];
+            idx = parent;
+        }
+        heap[idx] = report;
+    }
+
+    private static void siftDown(Report[] heap, int size) {
+        final Report report = heap[0];
+        int idx = 0;
+        while (true) {
+            int child = idx * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].rssiEwma < heap[child].rssiEwma) {
+                child++;
+            }
+            if (report.rssiEwma <= heap[child].rssiEwma) {
+                break;
+            }
+            heap[idx] = heap[child];
+            idx = child;
+        }
+        heap[idx] = report;
+    }
+
+    /**
+     * @return a copy of the statistics of the last scan.
+     */
+    public ScanStats getLastScanStats() {
+        synchronized (stats) {
+            return new ScanStats().copy(stats);
+        }
+    }
+
     public List<Report> scan(long timeoutMilliseconds) throws Throwable {
         return scan(timeoutMilliseconds, null, false, null);
     }
 
-    public synchronized List<Report> scan(long timeoutMilliseconds, Integer minRSSI, boolean abortIfFind, Filter filterCb) {
+    public List<Report> scan(long timeoutMilliseconds, Integer minRSSI, boolean abortIfFind, Filter filterCb) {
+        return scan(timeoutMilliseconds, minRSSI, abortIfFind, filterCb, null, reportDelay, false);
+    }
+
+    /**
+     * @param scanFilters passed to the stack, which offloads them to the controller if it is supported.
+     *                    Only the matched advertisements wake up the CPU. The Java filter is still applied.
+     */
+    public List<Report> scan(long timeoutMilliseconds, Integer minRSSI, boolean abortIfFind, Filter filterCb, @Nullable List<ScanFilter> scanFilters) {
+        return scan(timeoutMilliseconds, minRSSI, abortIfFind, filterCb, scanFilters, reportDelay, false);
+    }
+
+    private synchronized List<Report> scan(long timeoutMilliseconds, Integer minRSSI, boolean abortIfFind, Filter filterCb, @Nullable List<ScanFilter> scanFilters, long reportDelay, boolean firstMatch) {
         if (timeoutMilliseconds < 1 || this.scanning) {
             return Collections.emptyList();
         }
@@ -109,7 +336,12 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
         this.reportCache.clear();
         this.scanning = false;
         this.abortWhenDiscoveredAnyOne = abortIfFind;
-        leScanner = start(null);
+        synchronized (stats) {
+            stats.reset();
+        }
+        this.scanStartTime = System.currentTimeMillis();
+        this.lastEvictTime = scanStartTime;
+        leScanner = start(scanFilters, reportDelay, firstMatch);
 
         long stopTime = System.currentTimeMillis() + timeoutMilliseconds;
         try {
@@ -123,17 +355,39 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
                     break;
                 }
             }
+            if (this.batching) {
+                // the results in the buffer of controller
+                this.batchDelivered = false;
+                flush();
+                final long flushTimeout = System.currentTimeMillis() + BATCH_FLUSH_TIMEOUT;
+                long now;
+                while (!this.batchDelivered && (now = System.currentTimeMillis()) < flushTimeout) {
+                    this.wait(flushTimeout - now);
+                }
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
 
         stop();
+        synchronized (stats) {
+            stats.scanTime = System.currentTimeMillis() - scanStartTime;
+        }
 
+        if (staleAge > 0) {
+            evictStale(System.currentTimeMillis());
+        }
         if (reportCache.isEmpty()) {
             return Collections.emptyList();
         }
 
-        final ArrayList<Report> reports = new ArrayList<>(reportCache.values());
+        final ArrayList<Report> reports = new ArrayList<>(reportCache.size());
+        for (int slot = 0; slot < reportCache.capacity(); slot++) {
+            final Report report = reportCache.valueAt(slot);
+            if (report != null) {
+                reports.add(report);
+            }
+        }
         Collections.sort(reports, this);
         return reports;
     }
@@ -146,6 +400,9 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
 
     @Nullable
     public Report scanForDevice(long timeoutMilliseconds, BluetoothDevice device) throws Throwable {
+        final ArrayList<ScanFilter> scanFilters = new ArrayList<>(1);
+        scanFilters.add(filterOfMac(device.getAddress()));
+        // report immediately for the shortest time to the first match
         List<Report> reports = scan(timeoutMilliseconds, null, true, new Filter() {
             @Override
             public boolean matchLeScannerReport(BlockingLeScanner scanner, ScanResult result) {
@@ -154,13 +411,67 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
                 }
                 return false;
             }
-        });
+        }, scanFilters, 0, false);
         if (reports.isEmpty()) {
             return null;
         }
         return reports.get(0);
     }
 
+    /**
+     * Connect on the first match. The connection is initiated from the callback of scanning as soon as
+     * the advertisement of target is received, and the scan is stopped in parallel. It saves the time of
+     * tearing down the scan before connecting, e.g. when reconnecting to the bootloader after a jump.
+     * The callback type of first match is used if the filter can be offloaded to the controller.
+     * <p>
+     * Set the metrics, tracer and so on of the ble before calling it.
+     *
+     * @return the report of target, or null if it is not found. If it is found,
+     * call {@link BlockingBle#awaitConnected(long)} to wait for the connection.
+     */
+    @Nullable
+    public Report scanAndConnect(long timeoutMilliseconds, final BlockingBle ble, final int preferredPhyMask) throws Throwable {
+        final BluetoothDevice device = ble.targetDevice;
+        final ArrayList<ScanFilter> scanFilters = new ArrayList<>(1);
+        scanFilters.add(filterOfMac(device.getAddress()));
+        // The report may be pushed after the scan has timed out, or a late callback may arrive after it,
+        // so whether the connection has been initiated is decided under this lock.
+        final Object connectLock = new Object();
+        final boolean[] connecting = {false}; // guarded by connectLock
+        final boolean[] finished = {false}; // guarded by connectLock
+        final Throwable[] error = {null}; // guarded by connectLock
+        List<Report> reports = scan(timeoutMilliseconds, null, true, new Filter() {
+            @Override
+            public boolean matchLeScannerReport(BlockingLeScanner scanner, ScanResult result) {
+                if (!result.getDevice().equals(device)) {
+                    return false;
+                }
+                synchronized (connectLock) {
+                    if (!connecting[0] && !finished[0]) {
+                        connecting[0] = true;
+                        try {
+                            ble.beginConnect(preferredPhyMask);
+                        } catch (Throwable e) {
+                            error[0] = e; // thrown on the thread of caller
+                        }
+                    }
+                }
+                return true;
+            }
+        }, scanFilters, 0, true);
+        synchronized (connectLock) {
+            finished[0] = true;
+            if (error[0] != null) {
+                throw error[0];
+            }
+            if (!connecting[0]) {
+                return null;
+            }
+        }
+        // the connection is pending, the caller must await it even if the report missed the scan.
+        return reports.isEmpty() ? new Report(device) : reports.get(0);
+    }
+
     public synchronized void abortScan() {
         if (this.scanning) {
             this.scanning = false;
@@ -170,14 +481,33 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
     }
 
     @SuppressLint("MissingPermission")
-    private BluetoothLeScanner start(@Nullable BluetoothDevice device) {
+    private BluetoothLeScanner start(@Nullable List<ScanFilter> scanFilters, long reportDelay, boolean firstMatch) {
         if (leScanner == null) {
             leScanner = adapter.getBluetoothLeScanner(); // 蓝牙关闭的时候，返回值为空
         }
         if (leScanner != null) {
+            if (reportDelay > 0 && !adapter.isOffloadedScanBatchingSupported()) {
+                reportDelay = 0;
+            }
+            final boolean filtered = scanFilters != null && !scanFilters.isEmpty();
+            this.batching = reportDelay > 0;
+            synchronized (stats) {
+                stats.batched = reportDelay > 0;
+                stats.hardwareFiltered = filtered && adapter.isOffloadedFilteringSupported();
+            }
+
             ScanSettings.Builder builder = new ScanSettings.Builder();
-            builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .setReportDelay(0);
+            builder.setScanMode(scanMode)
+                    .setReportDelay(reportDelay);
+
+            // the controller reports once for each device, only the filters offloaded to it support this
+            if (firstMatch && filtered && reportDelay == 0
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    && adapter.isOffloadedFilteringSupported()) {
+                builder.setCallbackType(ScanSettings.CALLBACK_TYPE_FIRST_MATCH)
+                        .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                        .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT);
+            }
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 builder.setLegacy(false); // scan extended advertising
@@ -186,9 +516,7 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
                 }
             }
 
-            if (device != null) {
-                final ArrayList<ScanFilter> scanFilters = new ArrayList<>(1);
-                scanFilters.add(new ScanFilter.Builder().setDeviceAddress(device.getAddress()).build());
+            if (filtered) {
                 leScanner.startScan(scanFilters, builder.build(), this.cb21);
             } else {
                 leScanner.startScan(null, builder.build(), this.cb21);
@@ -200,6 +528,13 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
         return leScanner;
     }
 
+    @SuppressLint("MissingPermission")
+    private void flush() {
+        if (leScanner != null) {
+            leScanner.flushPendingScanResults(this.cb21);
+        }
+    }
+
     @SuppressLint("MissingPermission")
     private void stop() {
         if (leScanner != null) {
@@ -210,27 +545,71 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
     @Override
     public int compare(Report o1, Report o2) {
         //return o1.rssiAvg - o2.rssiAvg;
-        return o2.rssiAvg - o1.rssiAvg;
+        return Float.compare(o2.rssiEwma, o1.rssiEwma);
+    }
+
+    private void evictStale(long now) {
+        lastEvictTime = now;
+        final long expiry = now - staleAge;
+        int evicted = 0;
+        for (int slot = 0; slot < reportCache.capacity(); slot++) {
+            final Report report = reportCache.valueAt(slot);
+            if (report != null && report.lastSeenTime < expiry) {
+                reportCache.removeAt(slot);
+                evicted++;
+                slot--; // a following entry may be shifted into this slot
+            }
+        }
+        if (evicted > 0) {
+            synchronized (stats) {
+                stats.evictedCount += evicted;
+            }
+        }
+    }
+
+    synchronized void onBatchDelivered() {
+        this.batchDelivered = true;
+        this.notifyAll();
     }
 
     synchronized void pushReport(ScanResult result) {
         final BluetoothDevice device = result.getDevice();
-        final String mac = device.getAddress();
-        Report report = reportCache.get(mac);
+        final long now = System.currentTimeMillis();
+        final long macValue = HexString.macToValue(device.getAddress());
+        Report report = reportCache.get(macValue);
         if (report == null) {
             report = new Report(device);
-            reportCache.put(report.mac, report);
+            reportCache.put(macValue, report);
         }
 
         report.rssi = result.getRssi();
         report.rssiSum += report.rssi;
         report.rssiCnt++;
-        report.rssiAvg = report.rssiSum / report.rssiCnt;
+        if (report.rssiCnt == 1) {
+            report.rssiEwma = report.rssi;
+        } else {
+            report.rssiEwma += rssiSmoothing * (report.rssi - report.rssiEwma);
+        }
+        report.rssiAvg = Math.round(report.rssiEwma);
+        report.lastSeenTime = now;
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             report.extended = !result.isLegacy();
             report.advertisingSetId = result.getAdvertisingSid();
             report.periodicAdvertisingInterval = result.getPeriodicAdvertisingInterval();
+            report.primaryPhy = result.getPrimaryPhy();
+            report.secondaryPhy = result.getSecondaryPhy();
+        }
+
+        synchronized (stats) {
+            stats.matchedCount++;
+            if (stats.firstMatchTime < 0) {
+                stats.firstMatchTime = now - scanStartTime;
+            }
+        }
+
+        if (staleAge > 0 && now - lastEvictTime >= staleAge) {
+            evictStale(now);
         }
 
         if (this.abortWhenDiscoveredAnyOne && this.scanning) {
@@ -243,19 +622,24 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
     class CbApi21 extends ScanCallback {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            if (callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES) {
-                if (result.getRssi() < reportRssiFilter) {
-                    return;
-                }
-                Filter filter = BlockingLeScanner.this.reportFilter;
-                if (filter == null || filter.matchLeScannerReport(BlockingLeScanner.this, result)) {
-                    pushReport(result);
+            final long startTime = System.nanoTime();
+            if (callbackType == ScanSettings.CALLBACK_TYPE_ALL_MATCHES || callbackType == ScanSettings.CALLBACK_TYPE_FIRST_MATCH) {
+                if (result.getRssi() >= reportRssiFilter) {
+                    Filter filter = BlockingLeScanner.this.reportFilter;
+                    if (filter == null || filter.matchLeScannerReport(BlockingLeScanner.this, result)) {
+                        pushReport(result);
+                    }
                 }
             }
+            synchronized (stats) {
+                stats.resultCount++;
+                stats.callbackTime += System.nanoTime() - startTime;
+            }
         }
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
+            final long startTime = System.nanoTime();
             Filter filter = BlockingLeScanner.this.reportFilter;
             for (ScanResult result : results) {
                 if (result.getRssi() < reportRssiFilter) {
@@ -265,6 +649,12 @@ public class BlockingLeScanner implements Comparator<BlockingLeScanner.Report> {
                     pushReport(result);
                 }
             }
+            synchronized (stats) {
+                stats.resultCount += results.size();
+                stats.batchCount++;
+                stats.callbackTime += System.nanoTime() - startTime;
+            }
+            onBatchDelivered();
         }
 
         @Override
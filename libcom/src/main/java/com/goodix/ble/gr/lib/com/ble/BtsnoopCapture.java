@@ -0,0 +1,166 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com.ble;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Capture ATT packets into a bounded ring, and export them as a btsnoop file which can be opened by Wireshark.
+ * <p>
+ * Android does not expose the HCI layer, so each packet is wrapped into H4/ACL/L2CAP headers with a fake connection handle,
+ * and the instance ID of the characteristic is used as the ATT handle. Recording only copies bytes into preallocated slots.
+ * The oldest packets are overwritten when the ring is full.
+ */
+@SuppressWarnings("unused")
+public class BtsnoopCapture {
+    public static final int ATT_WRITE_REQ = 0x12;
+    public static final int ATT_WRITE_CMD = 0x52;
+    public static final int ATT_HANDLE_VALUE_NTF = 0x1B;
+    public static final int ATT_HANDLE_VALUE_IND = 0x1D;
+
+    private static final int DATALINK_H4 = 1002;
+    private static final long BTSNOOP_EPOCH_DELTA = 0x00dcddb30f2f8000L; // microseconds from 0000-01-01 to 1970-01-01
+    private static final int H4_ACL = 0x02;
+    private static final int ACL_HANDLE = 0x0001;
+    private static final int ACL_PB_FIRST_FLUSHABLE = 0x2000;
+    private static final int L2CAP_CID_ATT = 0x0004;
+    private static final int ATT_HEADER_SIZE = 3;
+
+    private final int maxPacketCount;
+    private final int maxValueSize;
+    private final byte[] values;
+    private final int[] valueSizes;
+    private final int[] originalSizes;
+    private final long[] timestamps;
+    private final byte[] opcodes;
+    private final short[] handles;
+    private final boolean[] received;
+
+    private final long baseWallTime = System.currentTimeMillis() * 1000;
+    private final long baseNanoTime = System.nanoTime();
+
+    private long writeCount = 0;
+
+    /**
+     * @param maxValueSize longer values are truncated. 512 is enough for any ATT value.
+     */
+    public BtsnoopCapture(int maxPacketCount, int maxValueSize) {
+        if (maxPacketCount < 1 || maxValueSize < 0) {
+            throw new Error("BtsnoopCapture(): invalid size.");
+        }
+        this.maxPacketCount = maxPacketCount;
+        this.maxValueSize = maxValueSize;
+        values = new byte[maxPacketCount * maxValueSize];
+        valueSizes = new int[maxPacketCount];
+        originalSizes = new int[maxPacketCount];
+        timestamps = new long[maxPacketCount];
+        opcodes = new byte[maxPacketCount];
+        handles = new short[maxPacketCount];
+        received = new boolean[maxPacketCount];
+    }
+
+    public synchronized void record(boolean isReceived, int attOpcode, int attHandle, byte[] value, int offset, int size) {
+        final int idx = (int) (writeCount % maxPacketCount);
+        if (value == null || size < 0) {
+            size = 0;
+        }
+        final int copySize = size > maxValueSize ? maxValueSize : size;
+        if (copySize > 0) {
+            System.arraycopy(value, offset, values, idx * maxValueSize, copySize);
+        }
+        valueSizes[idx] = copySize;
+        originalSizes[idx] = size;
+        timestamps[idx] = System.nanoTime();
+        opcodes[idx] = (byte) attOpcode;
+        handles[idx] = (short) attHandle;
+        received[idx] = isReceived;
+        writeCount++;
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(writeCount, maxPacketCount);
+    }
+
+    public synchronized long getDroppedCount() {
+        return writeCount > maxPacketCount ? writeCount - maxPacketCount : 0;
+    }
+
+    public synchronized void clear() {
+        writeCount = 0;
+    }
+
+    public synchronized void writeBtsnoop(OutputStream out) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        // file header
+        dos.writeBytes("btsnoop");
+        dos.writeByte(0);
+        dos.writeInt(1); // version
+        dos.writeInt(DATALINK_H4);
+
+        final int size = size();
+        final long first = writeCount - size;
+        final long dropped = getDroppedCount();
+        for (int i = 0; i < size; i++) {
+            final int idx = (int) ((first + i) % maxPacketCount);
+            final int valueSize = valueSizes[idx];
+            final int attSize = ATT_HEADER_SIZE + originalSizes[idx];
+            final int includedAttSize = ATT_HEADER_SIZE + valueSize;
+            // H4 type + ACL header + L2CAP header + ATT
+            final int originalLength = 1 + 4 + 4 + attSize;
+            final int includedLength = 1 + 4 + 4 + includedAttSize;
+
+            // record header
+            dos.writeInt(originalLength);
+            dos.writeInt(includedLength);
+            dos.writeInt(received[idx] ? 0x01 : 0x00); // direction, data
+            dos.writeInt((int) dropped);
+            dos.writeLong(baseWallTime + (timestamps[idx] - baseNanoTime) / 1000 + BTSNOOP_EPOCH_DELTA);
+
+            // packet
+            dos.writeByte(H4_ACL);
+            writeLe16(dos, ACL_PB_FIRST_FLUSHABLE | ACL_HANDLE);
+            writeLe16(dos, 4 + attSize);
+            writeLe16(dos, attSize);
+            writeLe16(dos, L2CAP_CID_ATT);
+            dos.writeByte(opcodes[idx]);
+            writeLe16(dos, handles[idx]);
+            dos.write(values, idx * maxValueSize, valueSize);
+        }
+        dos.flush();
+    }
+
+    private static void writeLe16(DataOutputStream dos, int val) throws IOException {
+        dos.writeByte(val);
+        dos.writeByte(val >> 8);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com.ble;
+
+import com.goodix.ble.gr.lib.com.LatencyHistogram;
+
+/**
+ * The latencies of GATT operations of a {@link BlockingBle}.
+ */
+@SuppressWarnings("unused")
+public class GattLatencyStats {
+    public final LatencyHistogram connect = new LatencyHistogram();
+    public final LatencyHistogram discover = new LatencyHistogram();
+    public final LatencyHistogram mtu = new LatencyHistogram();
+    public final LatencyHistogram cccdWrite = new LatencyHistogram();
+    /**
+     * From calling writeCharacteristic() to onCharacteristicWrite(), for each packet.
+     */
+    public final LatencyHistogram chrWrite = new LatencyHistogram();
+    public final LatencyHistogram chrRead = new LatencyHistogram();
+    /**
+     * The interval between two notifications or indications.
+     */
+    public final LatencyHistogram ntfInterval = new LatencyHistogram();
+
+    public void reset() {
+        connect.reset();
+        discover.reset();
+        mtu.reset();
+        cccdWrite.reset();
+        chrWrite.reset();
+        chrRead.reset();
+        ntfInterval.reset();
+    }
+
+    /**
+     * @param reset clear the histograms after taking the snapshot.
+     */
+    public String dump(boolean reset) {
+        final StringBuilder builder = new StringBuilder(1024);
+        append(builder, "connect", connect, reset);
+        append(builder, "discover", discover, reset);
+        append(builder, "mtu", mtu, reset);
+        append(builder, "cccdWrite", cccdWrite, reset);
+        append(builder, "chrWrite", chrWrite, reset);
+        append(builder, "chrRead", chrRead, reset);
+        append(builder, "ntfInterval", ntfInterval, reset);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, String name, LatencyHistogram histogram, boolean reset) {
+        final LatencyHistogram.Snapshot snapshot = reset ? histogram.snapshotAndReset() : histogram.snapshot();
+        builder.append(name).append(": ").append(snapshot).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        return dump(false);
+    }
+}
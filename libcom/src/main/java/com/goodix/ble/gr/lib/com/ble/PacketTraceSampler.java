@@ -0,0 +1,159 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com.ble;
+
+import com.goodix.ble.gr.lib.com.ILogger;
+
+import java.util.UUID;
+
+/**
+ * A separated channel to log packets of {@link BlockingBle}. Only the sampled packets are formatted,
+ * so that it costs nearly nothing on the data path.
+ */
+@SuppressWarnings("unused")
+public class PacketTraceSampler {
+    private static final String TAG = "PacketTrace";
+
+    /**
+     * Log nothing.
+     */
+    public static final int MODE_OFF = 0;
+    /**
+     * Log every packet. Only for debugging.
+     */
+    public static final int MODE_ALL = 1;
+    /**
+     * Log one of every N packets.
+     */
+    public static final int MODE_EVERY_NTH = 2;
+    /**
+     * Log the first K and the last K packets of each write, and the first K notifications.
+     */
+    public static final int MODE_FIRST_LAST = 3;
+    /**
+     * Log the failed packets only.
+     */
+    public static final int MODE_ERRORS_ONLY = 4;
+
+    private final ILogger logger;
+    private int mode = MODE_ERRORS_ONLY;
+    private int sampleParam = 1;
+    private long ntfCount = 0;
+    private long writeCount = 0;
+
+    public PacketTraceSampler(ILogger logger) {
+        if (logger == null) {
+            throw new Error("PacketTraceSampler(): logger is null.");
+        }
+        this.logger = logger;
+    }
+
+    /**
+     * @param param N for {@link #MODE_EVERY_NTH}, K for {@link #MODE_FIRST_LAST}.
+     */
+    public PacketTraceSampler setMode(int mode, int param) {
+        this.mode = mode;
+        this.sampleParam = param < 1 ? 1 : param;
+        return this;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * @param index the index of the packet in current write.
+     * @param count the count of packets in current write.
+     */
+    public boolean shouldTraceWrite(int index, int count, boolean failed) {
+        final int mode = this.mode;
+        if (mode == MODE_OFF) {
+            return false;
+        }
+        if (failed) {
+            return true;
+        }
+        switch (mode) {
+            case MODE_ALL:
+                return true;
+            case MODE_EVERY_NTH:
+                return (writeCount++ % sampleParam) == 0;
+            case MODE_FIRST_LAST:
+                return index < sampleParam || index >= count - sampleParam;
+            default:
+                return false;
+        }
+    }
+
+    public boolean shouldTraceNotification() {
+        final int mode = this.mode;
+        final long idx = ntfCount++;
+        switch (mode) {
+            case MODE_ALL:
+                return true;
+            case MODE_EVERY_NTH:
+                return (idx % sampleParam) == 0;
+            case MODE_FIRST_LAST:
+                return idx < sampleParam;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Restart counting, e.g. for a new connection.
+     */
+    public void reset() {
+        ntfCount = 0;
+        writeCount = 0;
+    }
+
+    public void traceWrite(UUID chr, int index, int count, boolean result, byte[] dat, int offset, int size) {
+        final StringBuilder builder = new StringBuilder(32 + size * 2);
+        builder.append("TX ").append(chr).append(" #").append(index).append('/').append(count);
+        if (!result) {
+            builder.append(" FAILED");
+        }
+        builder.append(" [").append(size).append(']').append(BlockingBle.dump(dat, offset, size));
+        logger.logRaw(System.currentTimeMillis(), result ? ILogger.DEBUG : ILogger.WARNING, TAG, builder.toString());
+    }
+
+    public void traceWriteStatus(UUID chr, int status) {
+        logger.logRaw(System.currentTimeMillis(), ILogger.WARNING, TAG, "TX " + chr + " status = " + status);
+    }
+
+    public void traceNotification(UUID chr, byte[] dat) {
+        final int size = dat != null ? dat.length : 0;
+        final StringBuilder builder = new StringBuilder(32 + size * 2);
+        builder.append("RX ").append(chr).append(" #").append(ntfCount - 1);
+        builder.append(" [").append(size).append(']').append(BlockingBle.dump(dat));
+        logger.logRaw(System.currentTimeMillis(), ILogger.DEBUG, TAG, builder.toString());
+    }
+}
@@ -0,0 +1,311 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com.ble;
+
+/**
+ * The metrics of a session, e.g. a DFU, which is used to find where the time is spent.
+ * <p>
+ * All timestamps are got from {@link System#nanoTime()}. A phase may be entered several times, e.g. reconnecting,
+ * and its durations are accumulated. The metrics is frozen after {@link #finish(Throwable)}.
+ */
+@SuppressWarnings("unused")
+public class SessionMetrics {
+    public static final int PHASE_CONNECT = 0;
+    public static final int PHASE_DISCOVER = 1;
+    public static final int PHASE_MTU = 2;
+    public static final int PHASE_PREFLIGHT = 3;
+    public static final int PHASE_ERASE = 4;
+    public static final int PHASE_PROGRAM = 5;
+    public static final int PHASE_VERIFY = 6;
+    public static final int PHASE_REBOOT = 7;
+    public static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {"connect", "discover", "mtu", "preflight", "erase", "program", "verify", "reboot"};
+
+    /**
+     * The window to calculate the peak throughput.
+     */
+    public static final long PEAK_WINDOW_NANOS = 250_000_000L;
+
+    private long beginTime = 0;
+    private long endTime = 0;
+    private boolean finished = false;
+    private Throwable error = null;
+
+    private final long[] phaseFirstBeginTime = new long[PHASE_COUNT];
+    private final long[] phaseBeginTime = new long[PHASE_COUNT];
+    private final long[] phaseDuration = new long[PHASE_COUNT];
+    private final int[] phaseEnterCount = new int[PHASE_COUNT];
+
+    private long bytesSent = 0;
+    private long packetsSent = 0;
+    private long bytesReceived = 0;
+    private long packetsReceived = 0;
+    private long payloadBytes = 0;
+    private int retries = 0;
+    private int stalls = 0;
+
+    private long peakWindowBeginTime = 0;
+    private long peakWindowBytes = 0;
+    private long peakThroughput = 0;
+
+    public static String getPhaseName(int phase) {
+        if (phase < 0 || phase >= PHASE_COUNT) {
+            return "unknown";
+        }
+        return PHASE_NAMES[phase];
+    }
+
+    public synchronized void start() {
+        if (beginTime == 0) {
+            beginTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Stop recording. The phases which are not ended are ended now.
+     *
+     * @param error null if the session is completed successfully.
+     */
+    public synchronized void finish(Throwable error) {
+        if (finished) {
+            return;
+        }
+        final long now = System.nanoTime();
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (phaseBeginTime[i] != 0) {
+                phaseDuration[i] += now - phaseBeginTime[i];
+                phaseBeginTime[i] = 0;
+            }
+        }
+        if (beginTime == 0) {
+            beginTime = now;
+        }
+        endTime = now;
+        this.error = error;
+        finished = true;
+    }
+
+    public synchronized void beginPhase(int phase) {
+        if (finished || phase < 0 || phase >= PHASE_COUNT) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (beginTime == 0) {
+            beginTime = now;
+        }
+        if (phaseFirstBeginTime[phase] == 0) {
+            phaseFirstBeginTime[phase] = now;
+        }
+        if (phaseBeginTime[phase] == 0) {
+            phaseBeginTime[phase] = now;
+            phaseEnterCount[phase]++;
+        }
+    }
+
+    public synchronized void endPhase(int phase) {
+        if (finished || phase < 0 || phase >= PHASE_COUNT) {
+            return;
+        }
+        if (phaseBeginTime[phase] != 0) {
+            phaseDuration[phase] += System.nanoTime() - phaseBeginTime[phase];
+            phaseBeginTime[phase] = 0;
+        }
+    }
+
+    /**
+     * Called for each packet which is sent to the peer successfully.
+     */
+    public synchronized void onPacketSent(int size) {
+        if (finished) {
+            return;
+        }
+        bytesSent += size;
+        packetsSent++;
+
+        final long now = System.nanoTime();
+        if (peakWindowBeginTime == 0) {
+            peakWindowBeginTime = now;
+            peakWindowBytes = 0;
+        }
+        peakWindowBytes += size;
+        final long windowTime = now - peakWindowBeginTime;
+        if (windowTime >= PEAK_WINDOW_NANOS) {
+            final long throughput = peakWindowBytes * 1_000_000_000L / windowTime;
+            if (throughput > peakThroughput) {
+                peakThroughput = throughput;
+            }
+            peakWindowBeginTime = now;
+            peakWindowBytes = 0;
+        }
+    }
+
+    public synchronized void onPacketReceived(int size) {
+        if (finished) {
+            return;
+        }
+        bytesReceived += size;
+        packetsReceived++;
+    }
+
+    /**
+     * Called when the data of an image is programmed.
+     */
+    public synchronized void onPayloadProgrammed(int size) {
+        if (finished) {
+            return;
+        }
+        payloadBytes += size;
+    }
+
+    public synchronized void onRetry() {
+        if (!finished) {
+            retries++;
+        }
+    }
+
+    /**
+     * Called when no event is received from the peer for a while.
+     */
+    public synchronized void onStall() {
+        if (!finished) {
+            stalls++;
+        }
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the duration of the whole session in nanoseconds.
+     */
+    public synchronized long getTotalTime() {
+        if (beginTime == 0) {
+            return 0;
+        }
+        return (finished ? endTime : System.nanoTime()) - beginTime;
+    }
+
+    /**
+     * @return the timestamp when the phase is entered firstly, or 0 if the phase is not entered.
+     */
+    public synchronized long getPhaseBeginTime(int phase) {
+        return phaseFirstBeginTime[phase];
+    }
+
+    /**
+     * @return the accumulated duration of the phase in nanoseconds.
+     */
+    public synchronized long getPhaseTime(int phase) {
+        long duration = phaseDuration[phase];
+        if (phaseBeginTime[phase] != 0) {
+            duration += System.nanoTime() - phaseBeginTime[phase];
+        }
+        return duration;
+    }
+
+    public synchronized int getPhaseEnterCount(int phase) {
+        return phaseEnterCount[phase];
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public synchronized long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    public synchronized long getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    public synchronized int getRetries() {
+        return retries;
+    }
+
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * @return the programmed bytes per second in the phase of programming.
+     */
+    public synchronized long getEffectiveThroughput() {
+        final long programTime = getPhaseTime(PHASE_PROGRAM);
+        if (programTime <= 0) {
+            return 0;
+        }
+        return payloadBytes * 1_000_000_000L / programTime;
+    }
+
+    /**
+     * @return the max bytes per second which are sent in a window of {@link #PEAK_WINDOW_NANOS}.
+     */
+    public synchronized long getPeakThroughput() {
+        return peakThroughput;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder(256);
+        builder.append("SessionMetrics{total=").append(getTotalTime() / 1_000_000).append("ms");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            if (phaseEnterCount[i] > 0) {
+                builder.append(", ").append(PHASE_NAMES[i]).append('=').append(getPhaseTime(i) / 1_000_000).append("ms");
+            }
+        }
+        builder.append(", sent=").append(bytesSent).append("B/").append(packetsSent).append("pkt");
+        builder.append(", received=").append(bytesReceived).append("B/").append(packetsReceived).append("pkt");
+        builder.append(", payload=").append(payloadBytes).append('B');
+        builder.append(", retries=").append(retries);
+        builder.append(", stalls=").append(stalls);
+        builder.append(", effective=").append(getEffectiveThroughput()).append("B/s");
+        builder.append(", peak=").append(peakThroughput).append("B/s");
+        if (error != null) {
+            builder.append(", error=").append(error.getMessage());
+        }
+        builder.append('}');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,513 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.com.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.goodix.ble.gr.lib.com.HexString;
+import com.goodix.ble.gr.lib.com.LongHashMap;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One radio scan shared by many waiters, e.g. several DFU sessions looking for their bootloaders at once.
+ * <p>
+ * Each waiter subscribes a MAC address or a matcher with its own deadline. The scan starts with the first
+ * subscription and stops a while after the last one ends, so that back-to-back waiters do not restart it
+ * and run into the limit of scan starts of Android. Each advertisement is routed by the MAC as a long,
+ * the tables are replaced on (un)subscription, so the lookup takes no lock.
+ */
+@SuppressWarnings("unused")
+public class SharedLeScanner {
+    private static final String TAG = "SharedLeScanner";
+
+    public interface Matcher {
+        /**
+         * Called on the thread of scan callback. Keep it short.
+         */
+        boolean matchScanResult(ScanResult result);
+    }
+
+    public class Subscription {
+        public final long mac; // -1 for a matcher
+        public final Matcher matcher;
+        public final long deadline; // System.currentTimeMillis()
+        private BlockingLeScanner.Report report = null;
+        private boolean done = false;
+        private int errorCode = 0;
+        // connect on match, see scanAndConnect()
+        private BlockingBle connectBle = null;
+        private int connectPhyMask = 0;
+        private Throwable connectError = null;
+
+        Subscription(long mac, Matcher matcher, long deadline) {
+            this.mac = mac;
+            this.matcher = matcher;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Block until the device is found, the deadline is reached or it is canceled.
+         *
+         * @return the first matched report, or null.
+         */
+        @Nullable
+        public BlockingLeScanner.Report await() throws InterruptedException {
+            try {
+                synchronized (this) {
+                    long now;
+                    while (!done && (now = System.currentTimeMillis()) < deadline) {
+                        this.wait(deadline - now);
+                    }
+                    return report;
+                }
+            } finally {
+                cancel();
+            }
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                if (!done) {
+                    done = true;
+                    this.notifyAll();
+                }
+            }
+            unsubscribe(this);
+        }
+
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return the error code of {@link ScanCallback#onScanFailed(int)} if the scan failed, otherwise 0.
+         */
+        public synchronized int getErrorCode() {
+            return errorCode;
+        }
+
+        synchronized boolean fail(int errorCode) {
+            if (done) {
+                return false;
+            }
+            this.errorCode = errorCode;
+            done = true;
+            this.notifyAll();
+            return true;
+        }
+
+        synchronized boolean complete(ScanResult result) {
+            if (done) {
+                return false;
+            }
+            report = new BlockingLeScanner.Report(result.getDevice());
+            report.rssi = result.getRssi();
+            report.rssiSum = report.rssi;
+            report.rssiCnt = 1;
+            report.rssiAvg = report.rssi;
+            report.rssiEwma = report.rssi;
+            report.lastSeenTime = System.currentTimeMillis();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                report.extended = !result.isLegacy();
+                report.advertisingSetId = result.getAdvertisingSid();
+                report.periodicAdvertisingInterval = result.getPeriodicAdvertisingInterval();
+                report.primaryPhy = result.getPrimaryPhy();
+                report.secondaryPhy = result.getSecondaryPhy();
+            }
+            if (connectBle != null) {
+                try {
+                    connectBle.beginConnect(connectPhyMask);
+                } catch (Throwable e) {
+                    connectError = e; // thrown on the thread of waiter
+                }
+            }
+            done = true;
+            this.notifyAll();
+            return true;
+        }
+    }
+
+    public static final long DEFAULT_STOP_DELAY = 3_000;
+
+    private static final Subscription[] NO_SUBSCRIPTION = new Subscription[0];
+
+    private static SharedLeScanner instance = null;
+    private static ScheduledExecutorService scheduler = null;
+
+    private final BluetoothAdapter adapter;
+    private final Callback callback = new Callback();
+    private BluetoothLeScanner leScanner = null;
+    private boolean scanning = false;
+    private long stopDelay = DEFAULT_STOP_DELAY;
+    private ScheduledFuture<?> pendingStop = null;
+    private int subscriptionCount = 0;
+    private int startCount = 0;
+
+    // replaced as a whole when a subscription is added or removed
+    private volatile LongHashMap<Subscription[]> macTable = new LongHashMap<>();
+    private volatile Subscription[] matcherTable = NO_SUBSCRIPTION;
+
+    public static synchronized SharedLeScanner getDefault() {
+        if (instance == null) {
+            instance = new SharedLeScanner(BluetoothAdapter.getDefaultAdapter());
+        }
+        return instance;
+    }
+
+    public SharedLeScanner(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * @param stopDelay how long to keep scanning after the last subscription ends, in milliseconds.
+     */
+    public synchronized void setStopDelay(long stopDelay) {
+        this.stopDelay = Math.max(stopDelay, 0);
+    }
+
+    public synchronized boolean isScanning() {
+        return scanning;
+    }
+
+    /**
+     * @return how many times the radio scan has been started.
+     */
+    public synchronized int getStartCount() {
+        return startCount;
+    }
+
+    /**
+     * Subscribe before triggering the advertisement, e.g. before jumping to the bootloader, to not miss it.
+     */
+    public Subscription subscribe(String mac, long timeoutMilliseconds) {
+        final long macVal = HexString.macToValue(mac);
+        return subscribe(new Subscription(macVal, null, System.currentTimeMillis() + timeoutMilliseconds));
+    }
+
+    public Subscription subscribe(Matcher matcher, long timeoutMilliseconds) {
+        if (matcher == null) {
+            throw new IllegalArgumentException("subscribe(): matcher is null.");
+        }
+        return subscribe(new Subscription(-1, matcher, System.currentTimeMillis() + timeoutMilliseconds));
+    }
+
+    @Nullable
+    public BlockingLeScanner.Report scanForDevice(long timeoutMilliseconds, String mac) throws InterruptedException {
+        return subscribe(mac, timeoutMilliseconds).await();
+    }
+
+    @Nullable
+    public BlockingLeScanner.Report scanForDevice(long timeoutMilliseconds, Matcher matcher) throws InterruptedException {
+        return subscribe(matcher, timeoutMilliseconds).await();
+    }
+
+    /**
+     * Connect on the first match like {@link BlockingLeScanner#scanAndConnect(long, BlockingBle, int)},
+     * but on the shared scan. The connection is initiated on the thread of scan callback.
+     *
+     * @return the report of target, or null if it is not found. If it is found,
+     * call {@link BlockingBle#awaitConnected(long)} to wait for the connection.
+     */
+    @Nullable
+    public BlockingLeScanner.Report scanAndConnect(long timeoutMilliseconds, BlockingBle ble, int preferredPhyMask) throws Throwable {
+        final long macVal = HexString.macToValue(ble.targetDevice.getAddress());
+        final Subscription sub = new Subscription(macVal, null, System.currentTimeMillis() + timeoutMilliseconds);
+        sub.connectBle = ble;
+        sub.connectPhyMask = preferredPhyMask;
+        final BlockingLeScanner.Report report = subscribe(sub).await();
+        synchronized (sub) {
+            if (sub.connectError != null) {
+                throw sub.connectError;
+            }
+            if (sub.errorCode != 0) {
+                throw new Error("scanAndConnect(): Failed to scan: " + sub.errorCode);
+            }
+        }
+        return report;
+    }
+
+    private synchronized Subscription subscribe(Subscription sub) {
+        if (sub.matcher == null) {
+            final LongHashMap<Subscription[]> table = new LongHashMap<>(macTable);
+            table.put(sub.mac, append(table.get(sub.mac), sub));
+            macTable = table;
+        } else {
+            matcherTable = append(matcherTable, sub);
+        }
+        subscriptionCount++;
+
+        if (pendingStop != null) {
+            pendingStop.cancel(false);
+            pendingStop = null;
+        }
+        if (!scanning) {
+            try {
+                start();
+            } catch (RuntimeException e) {
+                unsubscribe(sub);
+                throw e;
+            }
+        }
+        return sub;
+    }
+
+    synchronized void unsubscribe(Subscription sub) {
+        boolean removed;
+        if (sub.matcher == null) {
+            final Subscription[] subs = macTable.get(sub.mac);
+            final Subscription[] rest = remove(subs, sub);
+            removed = rest != subs;
+            if (removed) {
+                final LongHashMap<Subscription[]> table = new LongHashMap<>(macTable);
+                if (rest.length == 0) {
+                    table.remove(sub.mac);
+                } else {
+                    table.put(sub.mac, rest);
+                }
+                macTable = table;
+            }
+        } else {
+            final Subscription[] rest = remove(matcherTable, sub);
+            removed = rest != matcherTable;
+            matcherTable = rest;
+        }
+        if (!removed) {
+            return;
+        }
+
+        subscriptionCount--;
+        if (subscriptionCount == 0 && scanning && pendingStop == null) {
+            if (stopDelay > 0) {
+                pendingStop = getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        stopIfIdle();
+                    }
+                }, stopDelay, TimeUnit.MILLISECONDS);
+            } else {
+                stop();
+            }
+        }
+    }
+
+    private synchronized void stopIfIdle() {
+        pendingStop = null;
+        if (subscriptionCount == 0) {
+            stop();
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void start() {
+        if (leScanner == null) {
+            leScanner = adapter.getBluetoothLeScanner(); // null if Bluetooth is off
+        }
+        if (leScanner == null) {
+            throw new IllegalStateException("leScanner = null");
+        }
+        final ScanSettings.Builder builder = new ScanSettings.Builder();
+        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setReportDelay(0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setLegacy(false);
+            if (adapter.isLeCodedPhySupported()) {
+                builder.setPhy(ScanSettings.PHY_LE_ALL_SUPPORTED);
+            }
+        }
+        leScanner.startScan(null, builder.build(), callback);
+        scanning = true;
+        startCount++;
+    }
+
+    @SuppressLint("MissingPermission")
+    private void stop() {
+        if (scanning && leScanner != null) {
+            leScanner.stopScan(callback);
+        }
+        scanning = false;
+    }
+
+    void dispatch(ScanResult result) {
+        final long now = System.currentTimeMillis();
+
+        final Subscription[] subs = macTable.get(HexString.macToValue(result.getDevice().getAddress()));
+        if (subs != null) {
+            for (Subscription sub : subs) {
+                if (now < sub.deadline && sub.complete(result)) {
+                    unsubscribe(sub);
+                }
+            }
+        }
+
+        for (Subscription sub : matcherTable) {
+            if (now < sub.deadline && sub.matcher.matchScanResult(result) && sub.complete(result)) {
+                unsubscribe(sub);
+            }
+        }
+    }
+
+    /**
+     * Drop the subscriptions whose waiters have gone without canceling them.
+     */
+    private void expire(long now) {
+        final Subscription[] expired = collect(now);
+        if (expired != null) {
+            for (Subscription sub : expired) {
+                sub.cancel();
+            }
+        }
+    }
+
+    /**
+     * Fail all the subscriptions, so that their waiters return at once. A later subscription restarts the scan.
+     */
+    private void fail(int errorCode) {
+        final Subscription[] pending;
+        synchronized (this) {
+            scanning = false;
+            if (pendingStop != null) {
+                pendingStop.cancel(false);
+                pendingStop = null;
+            }
+            pending = collect(Long.MAX_VALUE);
+        }
+        if (pending != null) {
+            for (Subscription sub : pending) {
+                sub.fail(errorCode);
+                unsubscribe(sub);
+            }
+        }
+    }
+
+    /**
+     * @return the subscriptions whose deadline is not later than the given time, or null.
+     */
+    @Nullable
+    private synchronized Subscription[] collect(long deadline) {
+        Subscription[] result = null;
+        final LongHashMap<Subscription[]> table = macTable;
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            final Subscription[] subs = table.valueAt(slot);
+            if (subs != null) {
+                for (Subscription sub : subs) {
+                    if (sub.deadline <= deadline) {
+                        result = append(result, sub);
+                    }
+                }
+            }
+        }
+        for (Subscription sub : matcherTable) {
+            if (sub.deadline <= deadline) {
+                result = append(result, sub);
+            }
+        }
+        return result;
+    }
+
+    private static Subscription[] append(@Nullable Subscription[] subs, Subscription sub) {
+        if (subs == null) {
+            return new Subscription[]{sub};
+        }
+        final Subscription[] result = new Subscription[subs.length + 1];
+        System.arraycopy(subs, 0, result, 0, subs.length);
+        result[subs.length] = sub;
+        return result;
+    }
+
+    private static Subscription[] remove(@Nullable Subscription[] subs, Subscription sub) {
+        if (subs == null) {
+            return NO_SUBSCRIPTION;
+        }
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] == sub) {
+                final Subscription[] result = new Subscription[subs.length - 1];
+                System.arraycopy(subs, 0, result, 0, i);
+                System.arraycopy(subs, i + 1, result, i, subs.length - i - 1);
+                return result;
+            }
+        }
+        return subs;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    class Callback extends ScanCallback {
+        private long lastExpireTime = 0;
+
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            dispatch(result);
+            final long now = System.currentTimeMillis();
+            if (now - lastExpireTime > 1000) {
+                lastExpireTime = now;
+                expire(now);
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(java.util.List<ScanResult> results) {
+            for (ScanResult result : results) {
+                dispatch(result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "onScanFailed: " + errorCode);
+            fail(errorCode);
+        }
+    }
+}
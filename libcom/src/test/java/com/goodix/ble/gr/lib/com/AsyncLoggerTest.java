@@ -0,0 +1,141 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLoggerTest {
+    /**
+     * Collects the messages. It blocks on the first record until released, so the queue can be filled.
+     */
+    private static class GateLogger implements ILogger {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void v(String tag, String msg) {
+        }
+
+        @Override
+        public void d(String tag, String msg) {
+        }
+
+        @Override
+        public void i(String tag, String msg) {
+        }
+
+        @Override
+        public void w(String tag, String msg) {
+        }
+
+        @Override
+        public void e(String tag, String msg) {
+        }
+
+        @Override
+        public void logRaw(long timestamp, int level, String tag, String msg) {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!"AsyncLogger".equals(tag)) {
+                synchronized (messages) {
+                    messages.add(msg);
+                }
+            }
+        }
+
+        List<String> getMessages() {
+            synchronized (messages) {
+                return new ArrayList<>(messages);
+            }
+        }
+    }
+
+    private static void fillBehindGate(AsyncLogger logger, GateLogger gate) throws InterruptedException {
+        logger.i("T", "gate");
+        assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullQueue_evictsLowerLevelsBeforeDroppingItself() throws InterruptedException {
+        final GateLogger gate = new GateLogger();
+        final AsyncLogger logger = new AsyncLogger(gate, 4, 1);
+        fillBehindGate(logger, gate);
+
+        logger.d("T", "d1");
+        logger.d("T", "d2");
+        logger.i("T", "i1");
+        logger.i("T", "i2");
+        logger.i("T", "i3"); // evicts d1
+        logger.v("T", "v1"); // nothing below VERBOSE, dropped
+        logger.d("T", "d3"); // nothing below DEBUG, dropped
+        logger.i("T", "i4"); // evicts d2
+        assertEquals(4, logger.getDroppedCount());
+
+        gate.released.countDown();
+        assertTrue(logger.flush(5000));
+        assertEquals(Arrays.asList("gate", "i1", "i2", "i3", "i4"), gate.getMessages());
+        logger.close();
+    }
+
+    @Test
+    public void fullQueue_keepsWarningsWhenInterrupted() throws InterruptedException {
+        final GateLogger gate = new GateLogger();
+        final AsyncLogger logger = new AsyncLogger(gate, 2, 1);
+        fillBehindGate(logger, gate);
+        logger.i("T", "i1");
+        logger.i("T", "i2");
+
+        final boolean[] interruptedAfterLog = new boolean[1];
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Thread.currentThread().interrupt();
+                logger.w("T", "w1");
+                interruptedAfterLog[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        producer.start();
+        producer.join(300);
+        assertTrue("the warning must wait for room", producer.isAlive());
+        producer.interrupt();
+        producer.join(300);
+        assertTrue("the warning must keep waiting", producer.isAlive());
+
+        gate.released.countDown();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(interruptedAfterLog[0]);
+        assertTrue(logger.flush(5000));
+        assertEquals(Arrays.asList("gate", "i1", "i2", "w1"), gate.getMessages());
+        assertEquals(0, logger.getDroppedCount());
+        logger.close();
+    }
+
+    @Test
+    public void close_writesWarningsSynchronously() throws InterruptedException {
+        final GateLogger gate = new GateLogger();
+        gate.released.countDown();
+        final AsyncLogger logger = new AsyncLogger(gate, 4, 4);
+        logger.i("T", "i1");
+        assertTrue(logger.flush(5000));
+        logger.close();
+
+        logger.i("T", "i2"); // ignored
+        logger.w("T", "w1");
+        logger.e("T", "e1");
+        assertEquals(Arrays.asList("i1", "w1", "e1"), gate.getMessages());
+    }
+}
@@ -0,0 +1,74 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class HexChecksumTest {
+    private static byte[] randomBytes(int size, long seed) {
+        final byte[] dat = new byte[size];
+        new Random(seed).nextBytes(dat);
+        return dat;
+    }
+
+    @Test
+    public void sequential_matchesByteByByte_forOddLengthsAndOffsets() {
+        final byte[] dat = randomBytes(4096, 1);
+        for (int offset = 0; offset < 9; offset++) {
+            for (int size = 0; size < 300; size++) {
+                assertEquals("offset=" + offset + ", size=" + size,
+                        HexSerializer.calcChecksum(dat, offset, size),
+                        HexChecksum.calcSequential(dat, offset, size));
+            }
+        }
+    }
+
+    @Test
+    public void sequential_allOnes_doesNotOverflowLanes() {
+        // 0xFF in every byte is the worst case for the 16-bit lanes, across several folds
+        final byte[] dat = new byte[128 * 8 * 3 + 5];
+        Arrays.fill(dat, (byte) 0xFF);
+        assertEquals(HexChecksum.calcByteByByte(dat, 0, dat.length), HexChecksum.calcSequential(dat, 0, dat.length));
+        assertEquals(HexChecksum.calcByteByByte(dat, 3, dat.length - 3), HexChecksum.calcSequential(dat, 3, dat.length - 3));
+    }
+
+    @Test
+    public void parallel_matchesByteByByte_aroundSplitThreshold() {
+        final int threshold = HexChecksum.PARALLEL_THRESHOLD;
+        final byte[] dat = randomBytes(threshold + 64 * 1024, 2);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            final int[] sizes = {threshold - 1, threshold, threshold + 1, threshold + 7, dat.length - 3};
+            for (int size : sizes) {
+                final int offset = dat.length - size;
+                final int expected = HexChecksum.calcByteByByte(dat, offset, size);
+                assertEquals("size=" + size, expected, HexChecksum.calcParallel(dat, offset, size, pool));
+                assertEquals("size=" + size, expected, HexChecksum.calc(dat, offset, size));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallel_wrapsLikeIntSum() {
+        // 20 MB of 0xFF exceeds the range of int, both must wrap the same way
+        final byte[] dat = new byte[20 * 1024 * 1024 + 3];
+        Arrays.fill(dat, (byte) 0xFF);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(HexChecksum.calcByteByByte(dat, 0, dat.length), HexChecksum.calcParallel(dat, 0, dat.length, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void outOfRange_isRejected() {
+        HexChecksum.calcSequential(new byte[8], 4, 5);
+    }
+}
@@ -0,0 +1,116 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HexCodecTest {
+    private static byte[] allBytes() {
+        final byte[] dat = new byte[256];
+        for (int i = 0; i < dat.length; i++) {
+            dat[i] = (byte) i;
+        }
+        return dat;
+    }
+
+    private static void assertDecodeFails(String text, String expectedMsg) {
+        try {
+            HexCodec.decode(text);
+            fail("decoded: " + text);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expectedMsg));
+        }
+    }
+
+    @Test
+    public void roundTrip_allByteValues() {
+        final byte[] dat = allBytes();
+        final String text = HexCodec.encode(dat, 0, dat.length);
+        assertEquals(512, text.length());
+        assertTrue(text.startsWith("000102"));
+        assertTrue(text.endsWith("FDFEFF"));
+        assertArrayEquals(dat, HexCodec.decode(text));
+        assertArrayEquals(dat, HexCodec.decode(text.toLowerCase()));
+    }
+
+    @Test
+    public void decode_emptyAndNull() {
+        assertNull(HexCodec.decode(null));
+        assertEquals(0, HexCodec.decode("").length);
+    }
+
+    @Test
+    public void decode_rejectsOddLength() {
+        assertDecodeFails("ABC", "Odd count of hex digits: 3");
+    }
+
+    @Test
+    public void decode_reportsPositionOfInvalidDigit() {
+        assertDecodeFails("00G1", "at 2: G1");
+        assertDecodeFails("001G", "at 3: 1G");
+        assertDecodeFails("0 01", "at 1: 0 ");
+        assertDecodeFails("0x00", "at 1: 0x");
+    }
+
+    @Test
+    public void decode_rejectsNonAsciiChars() {
+        // their lower 7 bits are valid digits, they must not alias.
+        assertDecodeFails("\u00B0A", "at 0");
+        assertDecodeFails("A\u0141", "at 1");
+        assertDecodeFails("\uFF10\uFF10", "at 0"); // fullwidth zero
+        assertEquals(-1, HexCodec.digit('\u0130'));
+        assertEquals(-1, HexCodec.digit('\uFFFF'));
+    }
+
+    @Test
+    public void decode_range() {
+        final byte[] out = new byte[4];
+        final int count = HexCodec.decode("xxA1B2yy", 2, 6, out, 1);
+        assertEquals(2, count);
+        assertArrayEquals(new byte[]{0, (byte) 0xA1, (byte) 0xB2, 0}, out);
+        assertEquals(0, HexCodec.decode("xx", 1, 1, out, 0));
+    }
+
+    @Test
+    public void digit_coversAllCases() {
+        for (char ch = 0; ch < 128; ch++) {
+            final int expected = Character.digit(ch, 16);
+            assertEquals("char " + (int) ch, expected, HexCodec.digit(ch));
+        }
+    }
+
+    @Test
+    public void encode_withSeparators() {
+        final byte[] dat = {0x01, (byte) 0xAB, 0x7F};
+        assertEquals("01 AB 7F", HexCodec.encode(dat, 0, 3, " ", new StringBuilder()).toString());
+        assertEquals("01, AB, 7F", HexCodec.encode(dat, 0, 3, ", ", new StringBuilder()).toString());
+        assertEquals("AB7F", HexCodec.encode(dat, 1, 2, null, new StringBuilder()).toString());
+        assertEquals("", HexCodec.encode(dat, 0, 0, " ", new StringBuilder()).toString());
+        assertEquals(8, HexCodec.encodedLength(3, " "));
+        assertEquals(0, HexCodec.encodedLength(0, " "));
+    }
+
+    @Test
+    public void encode_largeInputAcrossChunks() {
+        final byte[] dat = new byte[1000];
+        for (int i = 0; i < dat.length; i++) {
+            dat[i] = (byte) (i * 7);
+        }
+        final String text = HexCodec.encode(dat, 0, dat.length, ":", new StringBuilder()).toString();
+        assertEquals(HexCodec.encodedLength(dat.length, ":"), text.length());
+        assertArrayEquals(dat, HexCodec.decode(text.replace(":", "")));
+    }
+
+    @Test
+    public void encode_value() {
+        final long val = 0x1122334455667788L;
+        assertEquals("55667788", HexCodec.encode(val, 4, true, null, new StringBuilder()).toString());
+        assertEquals("88-77-66-55", HexCodec.encode(val, 4, false, "-", new StringBuilder()).toString());
+        assertEquals("1122334455667788", HexCodec.encode(val, 12, true, "", new StringBuilder()).toString());
+        assertEquals("", HexCodec.encode(val, 0, true, null, new StringBuilder()).toString());
+    }
+}
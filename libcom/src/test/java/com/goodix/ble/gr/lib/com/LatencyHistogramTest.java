@@ -0,0 +1,82 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void buckets_areContiguousAndCoverAllValues() {
+        assertEquals(0, LatencyHistogram.lowerBoundOf(0));
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+            assertEquals("bucket " + i, LatencyHistogram.upperBoundOf(i) + 1, LatencyHistogram.lowerBoundOf(i + 1));
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void indexOf_isWithinBoundsAndRelativeErrorIsSmall() {
+        final long[] values = {0, 1, 31, 32, 33, 63, 64, 65, 1000, 1023, 1024, 1025, 999_999, 1_000_000_007L, LatencyHistogram.MAX_VALUE};
+        for (long value : values) {
+            checkValue(value);
+        }
+        for (int bit = 5; bit < 40; bit++) {
+            checkValue((1L << bit) - 1);
+            checkValue(1L << bit);
+            checkValue((1L << bit) + 1);
+        }
+    }
+
+    private static void checkValue(long value) {
+        final int index = LatencyHistogram.indexOf(value);
+        final long lower = LatencyHistogram.lowerBoundOf(index);
+        final long upper = LatencyHistogram.upperBoundOf(index);
+        assertTrue(value + " in [" + lower + ", " + upper + "]", lower <= value && value <= upper);
+        assertTrue("width of bucket of " + value, (upper - lower) * 32 <= Math.max(lower, 1));
+    }
+
+    @Test
+    public void outOfRange_isClamped() {
+        assertEquals(0, LatencyHistogram.indexOf(-5));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE + 1));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_areWithinOneBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L); // 1us .. 1ms
+        }
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMin());
+        assertEquals(1_000_000, snapshot.getMax());
+        assertEquals(500_500, snapshot.getMean());
+        assertPercentile(500_000, snapshot.getPercentile(50));
+        assertPercentile(990_000, snapshot.getPercentile(99));
+        assertEquals(1_000_000, snapshot.getPercentile(100)); // clamped to max
+    }
+
+    private static void assertPercentile(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected && actual - expected <= expected / 32);
+    }
+
+    @Test
+    public void snapshotAndReset_clearsTheHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(-1); // as 0
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(1, snapshot.getCountOfBucket(0));
+
+        final LatencyHistogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMin());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getPercentile(99));
+    }
+}
@@ -0,0 +1,149 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LongHashMapTest {
+    private static final int CAPACITY = 16; // of new LongHashMap<>(8)
+
+    // the same mixing as the map, to build clusters on purpose
+    private static int homeOf(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (CAPACITY - 1);
+    }
+
+    private static List<Long> keysWithHome(int home, int count) {
+        final List<Long> keys = new ArrayList<>();
+        for (long key = 1; keys.size() < count; key++) {
+            if (homeOf(key) == home) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    private static void assertSameContent(Map<Long, String> expected, LongHashMap<String> map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        int count = 0;
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            final String value = map.valueAt(slot);
+            if (value != null) {
+                assertEquals(expected.get(map.keyAt(slot)), value);
+                count++;
+            }
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    public void remove_shiftsBackClusterWrappingAroundTheEnd() {
+        final LongHashMap<String> map = new LongHashMap<>(8);
+        assertEquals(CAPACITY, map.capacity());
+        final List<Long> last = keysWithHome(CAPACITY - 1, 3);
+        final List<Long> first = keysWithHome(0, 1);
+        final Map<Long, String> expected = new HashMap<>();
+        for (long key : last) {
+            map.put(key, "v" + key);
+            expected.put(key, "v" + key);
+        }
+        map.put(first.get(0), "first");
+        expected.put(first.get(0), "first");
+        // slots: 15, 0, 1 for the last cluster, then 2 for the first key
+        assertEquals(last.get(1).longValue(), map.keyAt(0));
+        assertEquals(first.get(0).longValue(), map.keyAt(2));
+
+        assertEquals("v" + last.get(0), map.remove(last.get(0)));
+        expected.remove(last.get(0));
+        assertSameContent(expected, map);
+        // every entry is moved back by one slot, across the end
+        assertEquals(last.get(1).longValue(), map.keyAt(CAPACITY - 1));
+        assertEquals(last.get(2).longValue(), map.keyAt(0));
+        assertEquals(first.get(0).longValue(), map.keyAt(1));
+        assertNull(map.valueAt(2));
+    }
+
+    @Test
+    public void remove_keepsEntriesAtTheirHome() {
+        final LongHashMap<String> map = new LongHashMap<>(8);
+        final List<Long> colliding = keysWithHome(4, 2);
+        final List<Long> homeAt6 = keysWithHome(6, 1);
+        map.put(colliding.get(0), "a"); // slot 4
+        map.put(colliding.get(1), "b"); // slot 5
+        map.put(homeAt6.get(0), "c"); // slot 6, at home
+
+        map.remove(colliding.get(0));
+        assertEquals(colliding.get(1).longValue(), map.keyAt(4));
+        assertNull(map.valueAt(5));
+        assertEquals(homeAt6.get(0).longValue(), map.keyAt(6));
+        assertEquals("b", map.get(colliding.get(1)));
+        assertEquals("c", map.get(homeAt6.get(0)));
+    }
+
+    @Test
+    public void removeAt_whileIterating() {
+        final LongHashMap<String> map = new LongHashMap<>(8);
+        final Map<Long, String> expected = new HashMap<>();
+        for (long key : keysWithHome(14, 4)) {
+            map.put(key, "odd" + (key & 1));
+            expected.put(key, "odd" + (key & 1));
+        }
+        for (long key : keysWithHome(1, 2)) {
+            map.put(key, "odd" + (key & 1));
+            expected.put(key, "odd" + (key & 1));
+        }
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            final String value = map.valueAt(slot);
+            if (value != null && value.equals("odd1")) {
+                map.removeAt(slot);
+                slot--; // check the shifted entry
+            }
+        }
+        final Map<Long, String> rest = new HashMap<>();
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            if (entry.getValue().equals("odd0")) {
+                rest.put(entry.getKey(), entry.getValue());
+            }
+        }
+        assertSameContent(rest, map);
+    }
+
+    @Test
+    public void randomOperations_matchHashMap() {
+        final Random random = new Random(1);
+        final LongHashMap<String> map = new LongHashMap<>();
+        final Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            final long key = random.nextInt(64) - 8; // negative keys and many collisions
+            final int op = random.nextInt(3);
+            if (op == 0) {
+                assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+            } else if (op == 1) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+            if (i % 10_000 == 0) {
+                assertSameContent(expected, map);
+            }
+        }
+        assertSameContent(expected, map);
+
+        final LongHashMap<String> copy = new LongHashMap<>(map);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertSameContent(expected, copy);
+    }
+}
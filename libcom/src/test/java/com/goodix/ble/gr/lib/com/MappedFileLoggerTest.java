@@ -0,0 +1,112 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedFileLoggerTest {
+    private static final int FILE_SIZE = MappedFileLogger.HEADER_SIZE + 1024;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("session", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static String lineOf(int i) {
+        return " I T: line" + i + "\n";
+    }
+
+    @Test
+    public void read_returnsAllLinesBeforeWrapping() throws IOException {
+        final MappedFileLogger logger = new MappedFileLogger(file, FILE_SIZE, 0);
+        logger.i("T", "line0");
+        logger.i("T", "line1");
+        logger.close();
+
+        final String[] lines = MappedFileLogger.read(file).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" I T: line0"));
+        assertTrue(lines[1].endsWith(" I T: line1"));
+        assertEquals(MappedFileLogger.read(file).length(), logger.getTotalSize());
+    }
+
+    @Test
+    public void read_keepsNewestCompleteLinesAfterRolling() throws IOException {
+        final MappedFileLogger logger = new MappedFileLogger(file, FILE_SIZE, 0);
+        for (int i = 0; i < 200; i++) {
+            logger.i("T", "line" + i);
+        }
+        logger.close();
+
+        final String text = MappedFileLogger.read(file);
+        assertTrue(text.length() < 1024);
+        assertTrue(text.endsWith(lineOf(199)));
+        final String[] lines = text.split("\n");
+        assertTrue(lines.length > 5);
+        // the partial line is skipped, and the lines are consecutive
+        final int first = 200 - lines.length;
+        for (int i = 0; i < lines.length; i++) {
+            assertTrue(lines[i], lines[i].startsWith("[") && lines[i].endsWith(" I T: line" + (first + i)));
+        }
+        assertTrue(logger.getTotalSize() > 1024 * 4);
+    }
+
+    @Test
+    public void totalSize_countsLinesLargerThanDataArea() throws IOException {
+        final MappedFileLogger logger = new MappedFileLogger(file, FILE_SIZE, 0);
+        final char[] big = new char[3000];
+        Arrays.fill(big, 'x');
+        logger.i("T", "small");
+        final long before = logger.getTotalSize();
+        logger.i("T", new String(big));
+        final long bigLineSize = logger.getTotalSize() - before;
+        assertEquals(before - "small".length() + big.length, bigLineSize);
+
+        logger.i("T", "tail");
+        logger.close();
+        assertTrue(MappedFileLogger.read(file).endsWith(lineOf(0).replace("line0", "tail")));
+    }
+
+    @Test
+    public void read_recoversFromTornHeader() throws IOException {
+        final MappedFileLogger logger = new MappedFileLogger(file, FILE_SIZE, 0);
+        logger.i("T", "line0");
+        logger.i("T", "line1");
+        logger.close();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(40); // checksum
+            raf.write("torn".getBytes(StandardCharsets.US_ASCII));
+        }
+        final String text = MappedFileLogger.read(file);
+        assertTrue(text.endsWith(lineOf(1)));
+    }
+
+    @Test
+    public void flush_afterCloseIsIgnored() throws IOException {
+        final MappedFileLogger logger = new MappedFileLogger(file, FILE_SIZE, 0);
+        logger.i("T", "line0");
+        logger.flush();
+        logger.close();
+        logger.i("T", "line1");
+        logger.flush();
+        assertTrue(MappedFileLogger.read(file).endsWith(lineOf(0)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.goodix.ble.gr.lib.com;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingLoggerTest {
+    private static String[] linesOf(RingLogger logger) {
+        final String text = logger.toString();
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    @Test
+    public void capacity_isRoundedUpToPowerOf2() {
+        assertEquals(8, new RingLogger(5).getCapacity());
+        assertEquals(8, new RingLogger(8).getCapacity());
+    }
+
+    @Test
+    public void dump_keepsNewestRecordsInOrderAfterWrapAround() {
+        final RingLogger logger = new RingLogger(4);
+        for (int i = 0; i < 10; i++) {
+            logger.i("T", "msg" + i);
+        }
+        assertEquals(10, logger.getWrittenCount());
+
+        final String[] lines = linesOf(logger);
+        assertEquals(4, lines.length);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines[i], lines[i].endsWith(" I T: msg" + (6 + i)));
+        }
+    }
+
+    @Test
+    public void levelFilter_dropsLowerLevels() {
+        final RingLogger logger = new RingLogger(4).setLevelFilter(ILogger.WARNING);
+        logger.d("T", "debug");
+        logger.i("T", "info");
+        logger.e("T", "error");
+        assertEquals(1, logger.getWrittenCount());
+        assertTrue(logger.toString().contains(" E T: error"));
+    }
+
+    @Test
+    public void tags_growBeyondInitialTable() {
+        final RingLogger logger = new RingLogger(256);
+        for (int i = 0; i < 200; i++) {
+            logger.d("tag" + i, "msg" + i);
+        }
+        final String[] lines = linesOf(logger);
+        assertEquals(200, lines.length);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(lines[i], lines[i].endsWith(" D tag" + i + ": msg" + i));
+        }
+    }
+
+    @Test
+    public void clear_forgetsRecords() {
+        final RingLogger logger = new RingLogger(4);
+        logger.i("T", "a");
+        logger.i("T", "b");
+        logger.clear();
+        assertEquals(0, linesOf(logger).length);
+
+        logger.i("T", "c");
+        final String[] lines = linesOf(logger);
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith(" I T: c"));
+    }
+
+    @Test
+    public void concurrentProducers_neverPublishTornRecords() throws InterruptedException {
+        final RingLogger logger = new RingLogger(8);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final String tag = "P" + t;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        logger.i(tag, tag);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // Dump while producers are racing on the small ring.
+        for (int round = 0; round < 200; round++) {
+            for (String line : linesOf(logger)) {
+                final int pos = line.lastIndexOf(" I ");
+                final String[] tagAndMsg = line.substring(pos + 3).split(": ");
+                assertEquals(line, tagAndMsg[0], tagAndMsg[1]);
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, logger.getWrittenCount());
+        assertEquals(8, linesOf(logger).length);
+    }
+}
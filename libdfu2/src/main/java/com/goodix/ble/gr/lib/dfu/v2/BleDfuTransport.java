@@ -0,0 +1,136 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.goodix.ble.gr.lib.com.DataProgressListener;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
+import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+
+/**
+ * Map the channels of {@link DfuTransport} to the characteristics of a {@link BlockingBle}.
+ * Writing with or without response is selected by the properties of the characteristic.
+ */
+public class BleDfuTransport implements DfuTransport {
+    public final BlockingBle ble;
+
+    private final BluetoothGattCharacteristic[] writeChrs = new BluetoothGattCharacteristic[CHANNEL_COUNT];
+    private final BluetoothGattCharacteristic[] notifyChrs = new BluetoothGattCharacteristic[CHANNEL_COUNT];
+
+    public BleDfuTransport(BlockingBle ble) {
+        if (ble == null) {
+            throw new Error("BleDfuTransport(null)");
+        }
+        this.ble = ble;
+    }
+
+    /**
+     * @param notifyChr null if the channel has no notification.
+     */
+    public BleDfuTransport setChannel(int channel, BluetoothGattCharacteristic writeChr, BluetoothGattCharacteristic notifyChr) {
+        writeChrs[channel] = writeChr;
+        notifyChrs[channel] = notifyChr;
+        return this;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return ble.isConnected();
+    }
+
+    @Override
+    public int getMtu() {
+        return ble.getMtu();
+    }
+
+    @Override
+    public void write(int channel, long timeout, byte[] dat, int offsetInDat, int writeSize, DataProgressListener listener) throws Throwable {
+        final BluetoothGattCharacteristic chr = getWriteChr(channel);
+        final int properties = chr.getProperties();
+        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
+            ble.writeChrWithoutResponse(chr, timeout, dat, offsetInDat, writeSize, listener);
+        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
+            ble.writeChrWithResponse(chr, timeout, dat, offsetInDat, writeSize, listener);
+        } else {
+            throw new Error("write(): <" + chr.getUuid().toString() + "> is not writable. Properties = " + properties);
+        }
+    }
+
+    @Override
+    public void write(int channel, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, DataProgressListener listener) throws Throwable {
+        final BluetoothGattCharacteristic chr = getWriteChr(channel);
+        final int properties = chr.getProperties();
+        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
+            ble.writeChrWithoutResponse(chr, timeout, pieces, offsetsInPieces, sizesOfPieces, pieceCount, listener);
+        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
+            ble.writeChrWithResponse(chr, timeout, pieces, offsetsInPieces, sizesOfPieces, pieceCount, listener);
+        } else {
+            throw new Error("write(): <" + chr.getUuid().toString() + "> is not writable. Properties = " + properties);
+        }
+    }
+
+    @Override
+    public int readNtf(int channel, long timeout, byte[] outBuf, int offsetInBuf, int readSize) throws Throwable {
+        return ble.readNtf(getNotifyChr(channel), timeout, outBuf, offsetInBuf, readSize);
+    }
+
+    @Override
+    public byte[] readNtf(int channel, long timeout) throws Throwable {
+        return ble.readNtf(getNotifyChr(channel), timeout);
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return ble.getMetrics();
+    }
+
+    @Override
+    public TraceRecorder getTracer() {
+        return ble.getTracer();
+    }
+
+    private BluetoothGattCharacteristic getWriteChr(int channel) {
+        final BluetoothGattCharacteristic chr = writeChrs[channel];
+        if (chr == null) {
+            throw new Error("write(): No characteristic for channel " + channel);
+        }
+        return chr;
+    }
+
+    private BluetoothGattCharacteristic getNotifyChr(int channel) {
+        final BluetoothGattCharacteristic chr = notifyChrs[channel];
+        if (chr == null) {
+            throw new Error("readNtf(): No characteristic for channel " + channel);
+        }
+        return chr;
+    }
+}
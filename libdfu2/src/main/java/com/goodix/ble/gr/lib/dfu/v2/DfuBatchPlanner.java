@@ -0,0 +1,233 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.BlockingLeScanner;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order the devices of a batch update by the quality of their links.
+ * <p>
+ * A device at the edge of range takes much longer and fails more often, and it holds a connection slot meanwhile.
+ * So the strong links are updated first with the fastest settings, and the weak links last with conservative ones.
+ * The candidates are usually got by {@link BlockingLeScanner#scan(long)} or {@link BlockingLeScanner#getStrongest(int)}.
+ */
+@SuppressWarnings("unused")
+public class DfuBatchPlanner {
+    public static final int TIER_STRONG = 0;
+    public static final int TIER_MEDIUM = 1;
+    public static final int TIER_WEAK = 2;
+
+    public static final int DEFAULT_STRONG_RSSI = -65;
+    public static final int DEFAULT_WEAK_RSSI = -80;
+    public static final int WEAK_SEGMENT_SIZE = 256;
+    public static final long CONNECT_TIMEOUT = 31_000;
+    // dB added to the score of a device advertising on 2M, which gets twice the throughput once connected
+    private static final float PHY_2M_BONUS = 3;
+    // dB added to the score of a weak device advertising on Coded, whose link is kept by the long range PHY
+    private static final float PHY_CODED_BONUS = 6;
+
+    public static class Plan {
+        public final BlockingLeScanner.Report report;
+        public final int tier; // TIER_*
+        public final float score; // smoothed RSSI adjusted by PHY capability, higher is better
+        public final boolean supports2M;
+        public final boolean supportsCoded;
+
+        // settings of the update, see updateFirmware()
+        public int preferredPhyMask; // for BlockingBle.connect(int, long)
+        public int segmentSize; // for GR5xxxDfu2.setSegmentSize()
+        public boolean fastMode; // for GR5xxxDfu2.updateFirmware()
+        public int maxAttempts; // each attempt on a new connection
+
+        Plan(BlockingLeScanner.Report report, int tier, float score, boolean supports2M, boolean supportsCoded) {
+            this.report = report;
+            this.tier = tier;
+            this.score = score;
+            this.supports2M = supports2M;
+            this.supportsCoded = supportsCoded;
+        }
+
+        public void apply(GR5xxxDfu2 dfu) {
+            dfu.setSegmentSize(segmentSize);
+        }
+
+        /**
+         * Connect with the preferred PHY and update the firmware with the planned settings.
+         * A failed attempt is retried on a new connection until maxAttempts is reached.
+         */
+        public void updateFirmware(GR5xxxDfu2 dfu, DfuFile dfuFw, int writeAddress, byte[] ctrlCmd, DfuProgressListener listener) throws Throwable {
+            Throwable lastError = null;
+            for (int attempt = 0; attempt < Math.max(maxAttempts, 1); attempt++) {
+                final BlockingBle ble = new BlockingBle(report.device);
+                try {
+                    ble.connect(preferredPhyMask, CONNECT_TIMEOUT);
+                    ble.discoverServices();
+                    ble.setMtu(247);
+                    dfu.bindTo(ble);
+                    apply(dfu);
+                    dfu.updateFirmware(fastMode, dfuFw, writeAddress, ctrlCmd, listener);
+                    Thread.sleep(200); /* waiting for the last cmd arrived */
+                    return;
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable e) {
+                    lastError = e;
+                } finally {
+                    // it may be bound to AppBootloader after a jump
+                    final BlockingBle bondBle = dfu.getBondBle();
+                    disconnectQuietly(bondBle);
+                    if (bondBle != ble) {
+                        disconnectQuietly(ble);
+                    }
+                }
+            }
+            throw lastError;
+        }
+
+        private static void disconnectQuietly(BlockingBle ble) {
+            if (ble != null) {
+                try {
+                    ble.disconnect();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{" + report.mac + ", tier=" + tier + ", score=" + score
+                    + ", phyMask=" + preferredPhyMask + ", segmentSize=" + segmentSize
+                    + ", fastMode=" + fastMode + ", maxAttempts=" + maxAttempts + "}";
+        }
+    }
+
+    private int strongRssi = DEFAULT_STRONG_RSSI;
+    private int weakRssi = DEFAULT_WEAK_RSSI;
+    private boolean fastModeAllowed = false;
+
+    /**
+     * @param strongRssi the smoothed RSSI from which a link is strong.
+     * @param weakRssi   the smoothed RSSI below which a link is weak.
+     */
+    public void setThresholds(int strongRssi, int weakRssi) {
+        if (weakRssi > strongRssi) {
+            throw new Error("setThresholds(): weakRssi > strongRssi: " + weakRssi + " > " + strongRssi);
+        }
+        this.strongRssi = strongRssi;
+        this.weakRssi = weakRssi;
+    }
+
+    /**
+     * Allow the fast mode for strong links. The fast mode writes without response, which suffers from a lossy link.
+     */
+    public void setFastModeAllowed(boolean fastModeAllowed) {
+        this.fastModeAllowed = fastModeAllowed;
+    }
+
+    /**
+     * @return the plans from the strongest link to the weakest.
+     */
+    public List<Plan> plan(Collection<BlockingLeScanner.Report> candidates) {
+        final ArrayList<Plan> plans = new ArrayList<>(candidates.size());
+        for (BlockingLeScanner.Report report : candidates) {
+            plans.add(plan(report));
+        }
+        Collections.sort(plans, new Comparator<Plan>() {
+            @Override
+            public int compare(Plan o1, Plan o2) {
+                if (o1.tier != o2.tier) {
+                    return o1.tier - o2.tier;
+                }
+                return Float.compare(o2.score, o1.score);
+            }
+        });
+        return plans;
+    }
+
+    public Plan plan(BlockingLeScanner.Report report) {
+        final boolean supports2M = report.secondaryPhy == BluetoothDevice.PHY_LE_2M;
+        final boolean supportsCoded = report.primaryPhy == BluetoothDevice.PHY_LE_CODED
+                || report.secondaryPhy == BluetoothDevice.PHY_LE_CODED;
+        final float rssi = report.rssiCnt > 0 ? report.rssiEwma : report.rssi;
+
+        final int tier;
+        float score = rssi;
+        if (rssi >= strongRssi) {
+            tier = TIER_STRONG;
+        } else if (rssi >= weakRssi) {
+            tier = TIER_MEDIUM;
+        } else {
+            tier = TIER_WEAK;
+        }
+        if (supports2M && tier != TIER_WEAK) {
+            score += PHY_2M_BONUS;
+        }
+        if (supportsCoded && tier == TIER_WEAK) {
+            score += PHY_CODED_BONUS;
+        }
+
+        final Plan plan = new Plan(report, tier, score, supports2M, supportsCoded);
+        switch (tier) {
+            case TIER_STRONG:
+                plan.preferredPhyMask = BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_2M_MASK;
+                plan.segmentSize = GR5xxxDfu2.DEFAULT_SEGMENT_SIZE;
+                plan.fastMode = fastModeAllowed;
+                plan.maxAttempts = 1;
+                break;
+            case TIER_MEDIUM:
+                plan.preferredPhyMask = BluetoothDevice.PHY_LE_1M_MASK;
+                plan.segmentSize = GR5xxxDfu2.DEFAULT_SEGMENT_SIZE;
+                plan.fastMode = false;
+                plan.maxAttempts = 2;
+                break;
+            default:
+                // a smaller segment loses less when a write fails and the link drops
+                plan.preferredPhyMask = supportsCoded
+                        ? BluetoothDevice.PHY_LE_1M_MASK | BluetoothDevice.PHY_LE_CODED_MASK
+                        : BluetoothDevice.PHY_LE_1M_MASK;
+                plan.segmentSize = WEAK_SEGMENT_SIZE;
+                plan.fastMode = false;
+                plan.maxAttempts = 3;
+                break;
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import com.goodix.ble.gr.lib.com.HexEndian;
+import com.goodix.ble.gr.lib.com.HexSerializer;
+
+/**
+ * Build a command frame without copying its parameter.
+ * <p>
+ * Frame: magic(2) + opcode(2) + length(2) + param(length) + checksum(2)
+ * <p>
+ * The header and a short prefix of the param are put in a reusable buffer. The rest of the param
+ * is referenced in place, so that a segment of the firmware image is copied only once, into the
+ * packet which is passed to the BLE stack. The header and the prefix are summed as they are written,
+ * while the payload is summed by one read pass before the transport copies it.
+ * The frame is described as pieces which can be passed to
+ * {@link com.goodix.ble.gr.lib.com.ble.BlockingBle#writeChrWithoutResponse(android.bluetooth.BluetoothGattCharacteristic, long, byte[][], int[], int[], int, com.goodix.ble.gr.lib.com.DataProgressListener)}.
+ * <p>
+ * Usage:
+ * <pre>
+ * HexSerializer prefix = encoder.begin(opcode);
+ * prefix.put(4, address);
+ * encoder.end(image, offset, size);
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class DfuFrameEncoder {
+    public static final int FRAME_MAGIC = 0x4744;
+    public static final int HEADER_SIZE = 2 + 2 + 2;
+    public static final int CHECKSUM_SIZE = 2;
+    public static final int MAX_PREFIX_SIZE = 32;
+
+    private static final int PIECE_HEADER = 0;
+    private static final int PIECE_PAYLOAD = 1;
+    private static final int PIECE_CHECKSUM = 2;
+
+    private final byte[] header = new byte[HEADER_SIZE + MAX_PREFIX_SIZE];
+    private final byte[] checksumBuf = new byte[CHECKSUM_SIZE];
+    private final HexSerializer prefix = new HexSerializer(header);
+
+    private final byte[][] pieces = new byte[3][];
+    private final int[] pieceOffsets = new int[3];
+    private final int[] pieceSizes = new int[3];
+
+    private int opcode;
+    private int checksum;
+    private int frameSize;
+
+    /**
+     * Start a new frame.
+     *
+     * @return the serializer to put the prefix of param. At most {@link #MAX_PREFIX_SIZE} bytes.
+     */
+    public HexSerializer begin(int opcode) {
+        this.opcode = opcode;
+        this.frameSize = 0;
+        prefix.setRange(HEADER_SIZE, MAX_PREFIX_SIZE);
+        prefix.setPos(0);
+        return prefix;
+    }
+
+    /**
+     * Complete the frame with the rest of the param.
+     *
+     * @param payload the array is referenced and must be unchanged until the frame is sent. It could be null.
+     */
+    public DfuFrameEncoder end(byte[] payload, int offset, int size) {
+        if (payload == null || size < 0) {
+            size = 0;
+        }
+        if (payload != null && offset + size > payload.length) {
+            throw new Error("end(): Out of range. offset = [" + offset + "], size = [" + size + "], length = [" + payload.length + "]");
+        }
+
+        final int prefixSize = prefix.getPos();
+        final int paramSize = prefixSize + size;
+        if (paramSize > 0xFFFF) {
+            throw new Error("end(): Large length of param: " + paramSize);
+        }
+
+        HexEndian.toByte(FRAME_MAGIC, header, 0, 2, false);
+        HexEndian.toByte(opcode, header, 2, 2, false);
+        HexEndian.toByte(paramSize, header, 4, 2, false);
+
+        // opcode + length + param, the fields are summed as they are written instead of reading them back
+        int sum = (opcode & 0xFF) + ((opcode >> 8) & 0xFF) + (paramSize & 0xFF) + ((paramSize >> 8) & 0xFF);
+        for (int i = HEADER_SIZE, end = HEADER_SIZE + prefixSize; i < end; i++) {
+            sum += header[i] & 0xFF;
+        }
+        // a read-only pass over the payload, the transport still copies it only once
+        if (size > 0) {
+            sum += HexSerializer.calcChecksum(payload, offset, size);
+        }
+        this.checksum = sum & 0xFFFF;
+        HexEndian.toByte(checksum, checksumBuf, 0, CHECKSUM_SIZE, false);
+
+        pieces[PIECE_HEADER] = header;
+        pieceOffsets[PIECE_HEADER] = 0;
+        pieceSizes[PIECE_HEADER] = HEADER_SIZE + prefixSize;
+
+        pieces[PIECE_PAYLOAD] = payload;
+        pieceOffsets[PIECE_PAYLOAD] = offset;
+        pieceSizes[PIECE_PAYLOAD] = size;
+
+        pieces[PIECE_CHECKSUM] = checksumBuf;
+        pieceOffsets[PIECE_CHECKSUM] = 0;
+        pieceSizes[PIECE_CHECKSUM] = CHECKSUM_SIZE;
+
+        frameSize = HEADER_SIZE + paramSize + CHECKSUM_SIZE;
+        return this;
+    }
+
+    /**
+     * Drop the reference to the payload after the frame is sent.
+     */
+    public void release() {
+        pieces[PIECE_PAYLOAD] = null;
+    }
+
+    public byte[][] getPieces() {
+        return pieces;
+    }
+
+    /**
+     * The sizes may be modified by the writer. Call {@link #end(byte[], int, int)} again before resending.
+     */
+    public int[] getPieceOffsets() {
+        return pieceOffsets;
+    }
+
+    public int[] getPieceSizes() {
+        return pieceSizes;
+    }
+
+    public int getPieceCount() {
+        return pieces.length;
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Copy the frame into a new array. It's for debugging.
+     */
+    public byte[] toByteArray() {
+        final byte[] out = new byte[frameSize];
+        int pos = 0;
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] != null && pieceSizes[i] > 0) {
+                System.arraycopy(pieces[i], pieceOffsets[i], out, pos, pieceSizes[i]);
+                pos += pieceSizes[i];
+            }
+        }
+        return out;
+    }
+}
@@ -36,7 +36,11 @@ import android.bluetooth.BluetoothGattService;
 import com.goodix.ble.gr.lib.com.DataProgressListener;
 import com.goodix.ble.gr.lib.com.HexSerializer;
 import com.goodix.ble.gr.lib.com.HexString;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuDataSource;
+import com.goodix.ble.gr.lib.dfu.v2.utils.MiscUtils;
 
 import java.util.List;
 import java.util.UUID;
@@ -49,8 +53,10 @@ public class DfuProfile {
     public final static UUID DFU_CONTROL_CHARACTERISTIC_UUID = UUID.fromString("a6ed0404-d344-460a-8075-b9e8ec90d71b");
 
     protected BlockingBle ble = null;
+    protected DfuTransport transport = null;
 
     protected final HexSerializer rcvCmdBuf = new HexSerializer(2048);
+    protected final DfuFrameEncoder frameEncoder = new DfuFrameEncoder();
     protected long defaultTimeout = 10_000;
     protected boolean isAppBootloaderSolution = false;
     protected int dfuProtocolVersion = 0;
@@ -60,6 +66,9 @@ public class DfuProfile {
     protected BluetoothGattCharacteristic writeChr;
     protected BluetoothGattCharacteristic ctrlChr;
 
+    // used to trace the phases
+    private final long[] phaseBeginTime = new long[SessionMetrics.PHASE_COUNT];
+
     synchronized public void bindTo(BlockingBle ble) throws Throwable {
         if (ble == null) {
             throw new Error("bindTo(null)");
@@ -105,31 +114,100 @@ public class DfuProfile {
         }
 
         ble.enableNotification(notifyChr, true);
+
+        this.transport = new BleDfuTransport(ble)
+                .setChannel(DfuTransport.CHANNEL_CMD, writeChr, notifyChr)
+                .setChannel(DfuTransport.CHANNEL_CTRL, ctrlChr, null);
     }
 
+    /**
+     * Bind to a link other than BLE, e.g. a simulated peer.
+     *
+     * @param isAppBootloaderSolution true if the peer supports DFU protocol v2.
+     */
+    synchronized public void bindTo(DfuTransport transport, boolean isAppBootloaderSolution) {
+        if (transport == null) {
+            throw new Error("bindTo(null)");
+        }
+
+        if (!transport.isConnected()) {
+            throw new Error("The device is not connected. Please connect and try again.");
+        }
+
+        this.ble = null;
+        this.dfuSvc = null;
+        this.notifyChr = null;
+        this.writeChr = null;
+        this.ctrlChr = null;
+        this.isAppBootloaderSolution = isAppBootloaderSolution;
+        this.dfuProtocolVersion = isAppBootloaderSolution ? 2 : 1;
+        this.transport = transport;
+    }
+
+    /**
+     * @return null if it is bound to a transport other than BLE.
+     */
     public synchronized BlockingBle getBondBle() {
         return ble;
     }
 
+    public synchronized DfuTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the metrics of the bound connection, or null.
+     */
+    public SessionMetrics getMetrics() {
+        final DfuTransport transport = this.transport;
+        return transport != null ? transport.getMetrics() : null;
+    }
+
+    /**
+     * @return the tracer of the bound connection, or null.
+     */
+    public TraceRecorder getTracer() {
+        final DfuTransport transport = this.transport;
+        return transport != null ? transport.getTracer() : null;
+    }
+
+    protected void beginPhase(int phase) {
+        final SessionMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.beginPhase(phase);
+        }
+        if (phaseBeginTime[phase] == 0) {
+            phaseBeginTime[phase] = System.nanoTime();
+        }
+    }
+
+    protected void endPhase(int phase) {
+        final SessionMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.endPhase(phase);
+        }
+        final long beginTime = phaseBeginTime[phase];
+        if (beginTime != 0) {
+            phaseBeginTime[phase] = 0;
+            final TraceRecorder tracer = getTracer();
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_DFU, SessionMetrics.getPhaseName(phase), beginTime, 0);
+            }
+        }
+    }
+
     //命令收发接口
     public void writeCtrlPoint(byte[] data) throws Throwable {
         if (data == null) {
             return;
         }
 
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("writeCtrlPoint(): please call bindTo() firstly.");
         }
 
-        final int properties = ctrlChr.getProperties();
-        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-            ble.writeChrWithoutResponse(ctrlChr, defaultTimeout, data, 0, data.length, null);
-        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
-            ble.writeChrWithResponse(ctrlChr, defaultTimeout, data, 0, data.length, null);
-        } else {
-            throw new Error("writeCtrlPoint(): CTRL<" + ctrlChr.getUuid().toString() + "> is not writable.");
-        }
+        transport.write(DfuTransport.CHANNEL_CTRL, defaultTimeout, data, 0, data.length, null);
     }
 
     public void sendCmdRaw(byte[] cmdFrame, DataProgressListener progressListener) throws Throwable {
@@ -137,48 +215,80 @@ public class DfuProfile {
             return;
         }
 
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("sendCmdRaw(): please call bindTo() firstly.");
         }
 
-        final int properties = writeChr.getProperties();
-        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-            ble.writeChrWithoutResponse(writeChr, defaultTimeout, cmdFrame, 0, cmdFrame.length, progressListener);
-        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
-            ble.writeChrWithResponse(writeChr, defaultTimeout, cmdFrame, 0, cmdFrame.length, progressListener);
-        } else {
-            throw new Error("sendCtrlCmd(): RX<" + writeChr.getUuid().toString() + "> is not writable.");
-        }
+        transport.write(DfuTransport.CHANNEL_CMD, defaultTimeout, cmdFrame, 0, cmdFrame.length, progressListener);
     }
 
-    public void sendCmd(int opcode, byte[] param) throws Throwable {
-        int paramSize = 0;
-        if (param != null && param.length > 0) {
-            paramSize = param.length;
+    /**
+     * Send the data source as raw data. It is read in chunks if it is not in heap.
+     */
+    public void sendCmdRaw(DfuDataSource src, DataProgressListener progressListener) throws Throwable {
+        if (src == null) {
+            return;
+        }
+
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
+            throw new Error("sendCmdRaw(): please call bindTo() firstly.");
         }
 
-        final HexSerializer frame = new HexSerializer(2 + 2 + 2 + paramSize + 2);
-        frame.put(2, 0x4744);
-        frame.put(2, opcode);
-        frame.put(2, paramSize);
+        MiscUtils.write(transport, DfuTransport.CHANNEL_CMD, defaultTimeout, src, progressListener);
+    }
+
+    public void sendCmd(int opcode, byte[] param) throws Throwable {
+        frameEncoder.begin(opcode);
+        frameEncoder.end(param, 0, param != null ? param.length : 0);
+        sendFrame(frameEncoder, null);
+    }
 
-        if (paramSize > 0) {
-            frame.put(param);
+    /**
+     * Send a frame which is built by {@link DfuFrameEncoder}. The payload is not copied.
+     */
+    public void sendFrame(DfuFrameEncoder frame, DataProgressListener progressListener) throws Throwable {
+        if (frame == null) {
+            return;
         }
 
-        final int checksum = frame.getChecksum(2, 2 + 2 + paramSize);
-        frame.put(2, checksum);
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
+            throw new Error("sendFrame(): please call bindTo() firstly.");
+        }
 
-        sendCmdRaw(frame.getBuffer(), null);
+        final long startTime = System.nanoTime();
+        try {
+            transport.write(DfuTransport.CHANNEL_CMD, defaultTimeout, frame.getPieces(), frame.getPieceOffsets(), frame.getPieceSizes(), frame.getPieceCount(), progressListener);
+        } finally {
+            final TraceRecorder tracer = transport.getTracer();
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_DFU, "sendFrame", startTime, frame.getFrameSize());
+            }
+            frame.release();
+        }
     }
 
     public HexSerializer rcvCmd(int opcode) throws Throwable {
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("rcvCmd(): please call bindTo() firstly.");
         }
-        int read = ble.readNtf(this.notifyChr, defaultTimeout, rcvCmdBuf.getBuffer(), 0, 6);
+        final TraceRecorder tracer = transport.getTracer();
+        if (tracer == null) {
+            return readCmd(transport, opcode);
+        }
+        final long startTime = System.nanoTime();
+        try {
+            return readCmd(transport, opcode);
+        } finally {
+            tracer.complete(TraceRecorder.CAT_DFU, "rcvCmd", startTime, opcode);
+        }
+    }
+
+    private HexSerializer readCmd(DfuTransport transport, int opcode) throws Throwable {
+        int read = transport.readNtf(DfuTransport.CHANNEL_CMD, defaultTimeout, rcvCmdBuf.getBuffer(), 0, 6);
         if (read != 6) {
             if (read > 0) {
                 final HexString msg = new HexString();
@@ -206,7 +316,7 @@ public class DfuProfile {
             throw new Error("rcvCmd(): Large length of param: " + paramLen);
         }
 
-        read = ble.readNtf(notifyChr, defaultTimeout, rcvCmdBuf.getBuffer(), 6, paramLen + 2);
+        read = transport.readNtf(DfuTransport.CHANNEL_CMD, defaultTimeout, rcvCmdBuf.getBuffer(), 6, paramLen + 2);
 
         rcvCmdBuf.setReadonly(true);
         rcvCmdBuf.setRange(6, paramLen);
@@ -0,0 +1,256 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deliver the events of a DFU session to a listener through an executor, e.g. the main thread.
+ * <p>
+ * Progress is conflated: only the latest value is kept in one slot, and it is delivered at most once per interval.
+ * Start, complete and error are never dropped, and any pending progress is delivered before complete and error.
+ * The executor should run tasks in order, e.g. a Handler or a single thread executor.
+ */
+@SuppressWarnings("unused")
+public class DfuProgressDispatcher implements DfuProgressListener, DfuMetricsListener {
+    /**
+     * One frame of 60Hz display.
+     */
+    public static final long FRAME_INTERVAL = 16;
+
+    private static ScheduledExecutorService scheduler;
+
+    public volatile DfuProgressListener listener;
+
+    private final Executor executor;
+    private final long minInterval;
+
+    // the slot of latest progress
+    private boolean hasProgress = false;
+    private int percent;
+    private int speed;
+    private String message;
+
+    private boolean flushScheduled = false;
+    private long lastDeliverTime; // System.nanoTime(), which is not affected by changing the wall clock
+    private long coalescedCount = 0;
+    private long deliveredCount = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverProgress();
+        }
+    };
+
+    private final Runnable scheduledFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(flushTask);
+        }
+    };
+
+    /**
+     * @param minInterval the min interval in milliseconds between two progress events.
+     */
+    public DfuProgressDispatcher(Executor executor, long minInterval) {
+        if (executor == null) {
+            throw new Error("DfuProgressDispatcher(): executor is null.");
+        }
+        this.executor = executor;
+        this.minInterval = minInterval;
+        this.lastDeliverTime = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(minInterval);
+    }
+
+    public DfuProgressDispatcher(Executor executor, long minInterval, DfuProgressListener listener) {
+        this(executor, minInterval);
+        this.listener = listener;
+    }
+
+    /**
+     * @return the count of progress events which are replaced by later ones.
+     */
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return the count of progress events which are delivered.
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    @Override
+    public void onDfuStart() {
+        executor.execute(new Event(this, Event.CALL_ON_DFU_START));
+    }
+
+    @Override
+    public void onDfuProgress(int percent, int speed, String message) {
+        final long delay;
+        synchronized (this) {
+            if (hasProgress) {
+                coalescedCount++;
+            }
+            this.hasProgress = true;
+            this.percent = percent;
+            this.speed = speed;
+            this.message = message;
+
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            delay = TimeUnit.NANOSECONDS.toMillis(lastDeliverTime - System.nanoTime()) + minInterval;
+        }
+
+        if (delay > 0) {
+            getScheduler().schedule(scheduledFlushTask, delay, TimeUnit.MILLISECONDS);
+        } else {
+            executor.execute(flushTask);
+        }
+    }
+
+    /**
+     * The metrics is delivered if the listener implements {@link DfuMetricsListener}.
+     */
+    @Override
+    public void onDfuMetrics(SessionMetrics metrics) {
+        final Event event = new Event(this, Event.CALL_ON_DFU_METRICS);
+        event.metrics = metrics;
+        executor.execute(event);
+    }
+
+    @Override
+    public void onDfuComplete() {
+        executor.execute(new Event(this, Event.CALL_ON_DFU_COMPLETE));
+    }
+
+    @Override
+    public void onDfuError(String message, Error error) {
+        final Event event = new Event(this, Event.CALL_ON_DFU_ERROR);
+        event.message = message;
+        event.error = error;
+        executor.execute(event);
+    }
+
+    // run in the executor
+    private void deliverProgress() {
+        final int percent;
+        final int speed;
+        final String message;
+        synchronized (this) {
+            flushScheduled = false;
+            if (!hasProgress) {
+                return;
+            }
+            hasProgress = false;
+            percent = this.percent;
+            speed = this.speed;
+            message = this.message;
+            lastDeliverTime = System.nanoTime();
+            deliveredCount++;
+        }
+
+        final DfuProgressListener listener = this.listener;
+        if (listener != null) {
+            listener.onDfuProgress(percent, speed, message);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "DfuProgressDispatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    static class Event implements Runnable {
+        private static final int CALL_ON_DFU_START = 0;
+        private static final int CALL_ON_DFU_COMPLETE = 2;
+        private static final int CALL_ON_DFU_ERROR = 3;
+        private static final int CALL_ON_DFU_METRICS = 4;
+
+        final DfuProgressDispatcher dispatcher;
+        final int callType;
+
+        public Event(DfuProgressDispatcher dispatcher, int callType) {
+            this.dispatcher = dispatcher;
+            this.callType = callType;
+        }
+
+        String message;
+        Error error;
+        SessionMetrics metrics;
+
+        @Override
+        public void run() {
+            // the progress reported before the end should be delivered before it
+            if (callType != CALL_ON_DFU_START) {
+                dispatcher.deliverProgress();
+            }
+
+            final DfuProgressListener listener = dispatcher.listener;
+            if (listener == null) {
+                return;
+            }
+            switch (callType) {
+                case CALL_ON_DFU_START:
+                    listener.onDfuStart();
+                    break;
+                case CALL_ON_DFU_COMPLETE:
+                    listener.onDfuComplete();
+                    break;
+                case CALL_ON_DFU_ERROR:
+                    listener.onDfuError(message, error);
+                    break;
+                case CALL_ON_DFU_METRICS:
+                    if (listener instanceof DfuMetricsListener) {
+                        ((DfuMetricsListener) listener).onDfuMetrics(metrics);
+                    }
+                    break;
+            }
+        }
+    }
+}
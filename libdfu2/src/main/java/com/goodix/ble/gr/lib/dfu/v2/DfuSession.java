@@ -0,0 +1,373 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.dfu.v2.bundle.DfuBundle;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuChipInfo;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep a connection with the bound {@link GR5xxxDfu2}, so that several queries and updates can be done
+ * without connecting again.
+ * <p>
+ * All methods are blocking and should be called in a worker thread. The session is closed
+ * by {@link #close()}, by idle timeout, or after the firmware is updated because the chip reboots.
+ */
+@SuppressWarnings("unused")
+public class DfuSession {
+    private static final String TAG = "DfuSession";
+
+    public interface Operation<T> {
+        T run(GR5xxxDfu2 dfu) throws Throwable;
+    }
+
+    private static ScheduledExecutorService idleTimer;
+
+    private final GR5xxxDfu2 dfu;
+    private final ILogger logger;
+    // serializes the operations, held for as long as an operation runs
+    private final Object operationLock = new Object();
+
+    // guards the state below, never held while blocking
+    private final Object stateLock = new Object();
+    private long idleTimeout = 0;
+    private ScheduledFuture<?> idleTask = null;
+    private long lastActiveTime; // SystemClock.elapsedRealtime(), which is not affected by changing the wall clock
+    private boolean closed = false;
+    private boolean running = false;
+    private Throwable lastError = null; // of the last operation
+
+    private DfuSession(GR5xxxDfu2 dfu, ILogger logger) {
+        this.dfu = dfu;
+        this.logger = logger;
+        this.lastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Connect to the target, negotiate MTU and bind the DFU profile.
+     */
+    public static DfuSession open(Context ctx, BluetoothDevice target, ILogger logger) throws Throwable {
+        BlockingBle.setup(ctx);
+
+        final SessionMetrics metrics = new SessionMetrics();
+        metrics.start();
+
+        final BlockingBle ble = new BlockingBle(target);
+        ble.setLogger(logger);
+        ble.setMetrics(metrics);
+        try {
+            ble.connect();
+            ble.discoverServices();
+            ble.setMtu(247);
+
+            final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+            dfu.setLogger(logger);
+            dfu.bindTo(ble);
+            return new DfuSession(dfu, logger);
+        } catch (Throwable e) {
+            try {
+                ble.disconnect();
+            } catch (Throwable e2) {
+                e2.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Close the session if no operation is executed within the timeout.
+     *
+     * @param idleTimeout in milliseconds. 0 to disable it.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        synchronized (stateLock) {
+            this.idleTimeout = idleTimeout;
+            scheduleIdleClose();
+        }
+    }
+
+    public boolean isOpen() {
+        synchronized (stateLock) {
+            if (closed) {
+                return false;
+            }
+        }
+        final BlockingBle ble = dfu.getBondBle();
+        return ble != null && ble.isConnected();
+    }
+
+    public BlockingBle getBle() {
+        return dfu.getBondBle();
+    }
+
+    /**
+     * @return the metrics since the session is opened. It is finished when the session is closed.
+     */
+    public SessionMetrics getMetrics() {
+        return dfu.getMetrics();
+    }
+
+    public int getMtu() {
+        final BlockingBle ble = dfu.getBondBle();
+        return ble != null ? ble.getMtu() : 23;
+    }
+
+    public int getTxPhy() {
+        final BlockingBle ble = dfu.getBondBle();
+        return ble != null ? ble.getTxPhy() : 1;
+    }
+
+    public int getRxPhy() {
+        final BlockingBle ble = dfu.getBondBle();
+        return ble != null ? ble.getRxPhy() : 1;
+    }
+
+    /**
+     * Run an operation with the bound profile. Operations are executed one by one.
+     * {@link #close()} aborts the running operation.
+     */
+    public <T> T execute(Operation<T> operation) throws Throwable {
+        synchronized (operationLock) {
+            final BlockingBle ble = dfu.getBondBle();
+            final Error lost = ble == null || !ble.isConnected() ? new Error("execute(): The connection is lost.") : null;
+            synchronized (stateLock) {
+                if (closed) {
+                    throw new Error("execute(): The session has been closed.");
+                }
+                if (lost != null) {
+                    lastError = lost;
+                } else {
+                    cancelIdleClose();
+                    running = true;
+                }
+            }
+            if (lost != null) {
+                close();
+                throw lost;
+            }
+
+            Throwable error = null;
+            try {
+                return operation.run(dfu);
+            } catch (Throwable e) {
+                error = e;
+                throw e;
+            } finally {
+                final boolean closedWhileRunning;
+                synchronized (stateLock) {
+                    running = false;
+                    lastError = error;
+                    lastActiveTime = SystemClock.elapsedRealtime();
+                    closedWhileRunning = closed;
+                    scheduleIdleClose();
+                }
+                if (closedWhileRunning) {
+                    release();
+                }
+            }
+        }
+    }
+
+    public DfuChipInfo getChipInfo() throws Throwable {
+        return execute(new Operation<DfuChipInfo>() {
+            @Override
+            public DfuChipInfo run(GR5xxxDfu2 dfu) throws Throwable {
+                return dfu.getChipInfo();
+            }
+        });
+    }
+
+    public GR5xxxDfu2.ImgInfoList getImgList() throws Throwable {
+        return execute(new Operation<GR5xxxDfu2.ImgInfoList>() {
+            @Override
+            public GR5xxxDfu2.ImgInfoList run(GR5xxxDfu2 dfu) throws Throwable {
+                return dfu.getImgList(dfu.getAddressOfSCA(dfu.getChipInfo()));
+            }
+        });
+    }
+
+    /**
+     * The chip reboots after the firmware is updated, so the session is closed.
+     */
+    public void updateFirmware(boolean withFastMode, DfuFile dfuFw, int writeAddress, byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
+        try {
+            execute(new Operation<Void>() {
+                @Override
+                public Void run(GR5xxxDfu2 dfu) throws Throwable {
+                    dfu.updateFirmware(withFastMode, dfuFw, writeAddress, ctrlCmd, progressCallback);
+                    Thread.sleep(200); /* waiting for the last cmd arrived */
+                    return null;
+                }
+            });
+        } finally {
+            close();
+        }
+    }
+
+    public void updateResource(boolean toExtFlash, boolean withFastMode, DfuFile dataFile, int writeAddress, byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
+        execute(new Operation<Void>() {
+            @Override
+            public Void run(GR5xxxDfu2 dfu) throws Throwable {
+                dfu.updateResource(toExtFlash, withFastMode, dataFile, writeAddress, ctrlCmd, progressCallback);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * The session is closed if the bundle has firmware.
+     */
+    public void updateBundle(boolean withFastMode, DfuBundle bundle, int maxMergeGap, byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
+        try {
+            execute(new Operation<Void>() {
+                @Override
+                public Void run(GR5xxxDfu2 dfu) throws Throwable {
+                    dfu.updateBundle(withFastMode, bundle, maxMergeGap, ctrlCmd, progressCallback);
+                    Thread.sleep(200); /* waiting for the last cmd arrived */
+                    return null;
+                }
+            });
+        } finally {
+            if (bundle.getFirmware() != null) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Disconnect. It's safe to call it several times. It does not wait for the running operation,
+     * which fails as soon as the link is down and then releases the session.
+     */
+    public void close() {
+        final boolean running;
+        synchronized (stateLock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancelIdleClose();
+            running = this.running;
+        }
+        if (running) {
+            final BlockingBle ble = dfu.getBondBle();
+            if (ble != null) {
+                ble.abortConnection();
+            }
+        } else {
+            release();
+        }
+    }
+
+    /**
+     * Called once after the session is closed and no operation is running.
+     */
+    private void release() {
+        final Throwable lastError;
+        synchronized (stateLock) {
+            lastError = this.lastError;
+        }
+        final SessionMetrics metrics = dfu.getMetrics();
+        if (metrics != null) {
+            metrics.finish(lastError);
+        }
+        final BlockingBle ble = dfu.getBondBle();
+        if (ble != null) {
+            try {
+                ble.disconnect();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // guarded by stateLock
+    private void cancelIdleClose() {
+        if (idleTask != null) {
+            idleTask.cancel(false);
+            idleTask = null;
+        }
+    }
+
+    // guarded by stateLock
+    private void scheduleIdleClose() {
+        cancelIdleClose();
+        if (closed || running || idleTimeout <= 0) {
+            return;
+        }
+        final long delay = Math.max(lastActiveTime + idleTimeout - SystemClock.elapsedRealtime(), 0);
+        idleTask = getIdleTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                final long idleTimeout;
+                synchronized (stateLock) {
+                    idleTimeout = DfuSession.this.idleTimeout;
+                    if (closed || running || SystemClock.elapsedRealtime() - lastActiveTime < idleTimeout) {
+                        return;
+                    }
+                    // close it in the same lock, so that no operation can start in between
+                    closed = true;
+                    idleTask = null;
+                }
+                final ILogger logger = DfuSession.this.logger;
+                if (logger != null) {
+                    logger.i(TAG, "Close the session for idle timeout: " + idleTimeout + "ms");
+                }
+                release();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getIdleTimer() {
+        if (idleTimer == null) {
+            idleTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "DfuSessionIdle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return idleTimer;
+    }
+}
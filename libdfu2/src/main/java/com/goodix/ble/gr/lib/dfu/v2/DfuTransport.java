@@ -0,0 +1,88 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import com.goodix.ble.gr.lib.com.DataProgressListener;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+
+/**
+ * The link which carries the DFU protocols. {@link DfuProfile} and {@link com.goodix.ble.gr.lib.dfu.v2.fastdfu.FastDfuProfile} only talk to the peer
+ * through it, so the protocols can run on a connection other than {@link BleDfuTransport}, e.g. a simulated peer.
+ * <p>
+ * A channel is a pair of write characteristic and notification characteristic.
+ */
+public interface DfuTransport {
+    /**
+     * DFU: RX for writing commands and TX for the notifications. Fast DFU: CMD for commands and ACKs.
+     */
+    int CHANNEL_CMD = 0;
+    /**
+     * DFU: CTRL for the control point.
+     */
+    int CHANNEL_CTRL = 1;
+    /**
+     * Fast DFU: DAT for the data of firmware.
+     */
+    int CHANNEL_DAT = 2;
+    int CHANNEL_COUNT = 3;
+
+    boolean isConnected();
+
+    int getMtu();
+
+    /**
+     * Write the data, which is split into packets of (MTU - 3) bytes.
+     */
+    void write(int channel, long timeout, byte[] dat, int offsetInDat, int writeSize, DataProgressListener listener) throws Throwable;
+
+    /**
+     * Write the data gathered from several pieces as if they were one continuous array.
+     */
+    void write(int channel, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, DataProgressListener listener) throws Throwable;
+
+    /**
+     * Read the notifications as a stream.
+     *
+     * @return the count of read bytes. It is less than readSize if it timed out.
+     */
+    int readNtf(int channel, long timeout, byte[] outBuf, int offsetInBuf, int readSize) throws Throwable;
+
+    /**
+     * Read a notification as a whole.
+     *
+     * @return null if it timed out.
+     */
+    byte[] readNtf(int channel, long timeout) throws Throwable;
+
+    SessionMetrics getMetrics();
+
+    TraceRecorder getTracer();
+}
@@ -34,9 +34,16 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 
 import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 import com.goodix.ble.gr.lib.com.ble.BlockingBle;
 import com.goodix.ble.gr.lib.com.ble.BlockingLeScanner;
+import com.goodix.ble.gr.lib.com.ble.BtsnoopCapture;
+import com.goodix.ble.gr.lib.com.ble.PacketTraceSampler;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.com.ble.SharedLeScanner;
+import com.goodix.ble.gr.lib.dfu.v2.bundle.DfuBundle;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFileCache;
 
 import java.io.InputStream;
 
@@ -44,10 +51,15 @@ public class EasyDfu2 {
     private static final String TAG = "EasyDfu2";
 
     private ILogger logger = null;
+    private TraceRecorder tracer = null;
+    private BtsnoopCapture capture = null;
+    private PacketTraceSampler packetTracer = null;
+    private SharedLeScanner sharedScanner = null;
 
 
     private byte[] ctrlCmd = null;
     private boolean isFastMode = false;
+    private int bundleMergeGap = 0;
 
     private Thread currentTask = null;
 
@@ -57,10 +69,46 @@ public class EasyDfu2 {
         this.logger = logger;
     }
 
+    /**
+     * Record the timeline of following tasks. Export it by {@link TraceRecorder#writeChromeTrace(java.io.OutputStream)}.
+     */
+    public void setTracer(TraceRecorder tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Capture the GATT traffic of following tasks. Export it by {@link BtsnoopCapture#writeBtsnoop(java.io.OutputStream)}.
+     */
+    public void setCapture(BtsnoopCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Log the sampled packets of following tasks.
+     */
+    public void setPacketTracer(PacketTraceSampler packetTracer) {
+        this.packetTracer = packetTracer;
+    }
+
+    /**
+     * Find the bootloaders of following tasks on the shared scan, e.g. when several devices are upgraded at once.
+     * By default, each task runs its own scan.
+     */
+    public void setSharedScanner(SharedLeScanner sharedScanner) {
+        this.sharedScanner = sharedScanner;
+    }
+
     public void setFastMode(boolean isFastMode) {
         this.isFastMode = isFastMode;
     }
 
+    /**
+     * Resources in a bundle are programmed as one region if the gap between them is not larger than it.
+     */
+    public void setBundleMergeGap(int bundleMergeGap) {
+        this.bundleMergeGap = bundleMergeGap;
+    }
+
     public void setCtrlCmd(byte[] ctrlCmd) {
         this.ctrlCmd = ctrlCmd;
     }
@@ -80,6 +128,32 @@ public class EasyDfu2 {
 
     //接口函数
     public boolean startDfu(Context ctx, BluetoothDevice target, InputStream file) {
+        return startDfu(ctx, target, file, null, false);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startDfu(Context ctx, BluetoothDevice target, DfuFile file) {
+        return startDfu(ctx, target, null, file, false);
+    }
+
+    /**
+     * The file is got from the cache, so that the same image is not read and parsed again for every DFU.
+     * On a miss, it is loaded by the opener in the calling thread. The view of file is closed after the DFU.
+     *
+     * @return false if the file could not be loaded.
+     */
+    public boolean startDfu(Context ctx, BluetoothDevice target, DfuFileCache cache, String key, DfuFileCache.StreamOpener opener) {
+        final DfuFile view = cache.get(key, opener);
+        if (view == null) {
+            return false;
+        }
+        return startDfu(ctx, target, null, view, true);
+    }
+
+    private boolean startDfu(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, boolean closeFile) {
         BlockingBle.setup(ctx);
 
         final DfuProgressListener listener = EasyDfu2.this.listenerWrapper;
@@ -89,17 +163,24 @@ public class EasyDfu2 {
             @Override
             public void run() {
                 final GR5xxxDfu2 dfu2 = new GR5xxxDfu2();
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    if (!dfuFile.load(file, true)) {
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile);
+                    if (!dfuFile.isValidDfuFile()) {
                         listener.onDfuError(dfuFile.getLastError(), new Error(dfuFile.getLastError()));
                         return;
                     }
 
                     dfu2.setLogger(logger);
+                    dfu2.setSharedScanner(sharedScanner);
 
                     BlockingBle ble = new BlockingBle(target);
                     ble.setLogger(EasyDfu2.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -110,8 +191,10 @@ public class EasyDfu2 {
                     dfu2.updateFirmware(isFastMode, dfuFile, dfuFile.getImgInfo().bootInfo.loadAddr, ctrlCmd, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -123,6 +206,9 @@ public class EasyDfu2 {
                             e.printStackTrace();
                         }
                     }
+                    if (closeFile) {
+                        loadedFile.close();
+                    }
                     EasyDfu2.this.currentTask = null;
                 }
             }
@@ -140,6 +226,18 @@ public class EasyDfu2 {
      * @param copyAddr For DFU V1, if null, abort progress. For DFU V2, if null, use address got from chip.
      */
     public boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, InputStream file, Integer copyAddr) {
+        return startDfuInCopyMode(ctx, target, file, null, copyAddr);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, DfuFile file, Integer copyAddr) {
+        return startDfuInCopyMode(ctx, target, null, file, copyAddr);
+    }
+
+    private boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, Integer copyAddr) {
         BlockingBle.setup(ctx);
         int writeAddress;
 
@@ -156,17 +254,24 @@ public class EasyDfu2 {
             @Override
             public void run() {
                 final GR5xxxDfu2 dfu2 = new GR5xxxDfu2();
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 dfu2.setLogger(logger);
+                dfu2.setSharedScanner(sharedScanner);
 
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    if (!dfuFile.load(file, true)) {
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile);
+                    if (!dfuFile.isValidDfuFile()) {
                         listener.onDfuError(dfuFile.getLastError(), new Error(dfuFile.getLastError()));
                         return;
                     }
 
                     BlockingBle ble = new BlockingBle(target);
                     ble.setLogger(EasyDfu2.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -177,8 +282,10 @@ public class EasyDfu2 {
                     dfu2.updateFirmware(isFastMode, dfuFile, writeAddress, ctrlCmd, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -201,7 +308,19 @@ public class EasyDfu2 {
     }
 
     public boolean startUpdateResource(Context ctx, BluetoothDevice target, InputStream file, boolean isExtFlash, int startAddress) {
-        if (ctx == null || target == null || file == null) return false;
+        return startUpdateResource(ctx, target, file, null, isExtFlash, startAddress);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startUpdateResource(Context ctx, BluetoothDevice target, DfuFile file, boolean isExtFlash, int startAddress) {
+        return startUpdateResource(ctx, target, null, file, isExtFlash, startAddress);
+    }
+
+    private boolean startUpdateResource(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, boolean isExtFlash, int startAddress) {
+        if (ctx == null || target == null || (file == null && loadedFile == null)) return false;
 
         BlockingBle.setup(ctx);
 
@@ -212,15 +331,15 @@ public class EasyDfu2 {
             @Override
             public void run() {
                 final GR5xxxDfu2 dfu2 = new GR5xxxDfu2();
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 dfu2.setLogger(logger);
+                dfu2.setSharedScanner(sharedScanner);
 
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    dfuFile.load(file, true);
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile); // resource file has no ImgInfo
                     String errMsg = null;
-                    if (dfuFile.getData() == null) {
-                        errMsg = "Can't load resource file.";
-                    } else if (dfuFile.getData().length < 1) {
+                    if (dfuFile.getSize() < 1) {
                         errMsg = "Empty resource file.";
                     }
                     if (errMsg != null) {
@@ -230,6 +349,10 @@ public class EasyDfu2 {
 
                     BlockingBle ble = new BlockingBle(target);
                     ble.setLogger(EasyDfu2.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -240,8 +363,10 @@ public class EasyDfu2 {
                     dfu2.updateResource(isExtFlash, isFastMode, dfuFile, startAddress, ctrlCmd, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -263,10 +388,103 @@ public class EasyDfu2 {
         return true;
     }
 
+    /**
+     * Update the firmware and resources in a bundle over one connection.
+     *
+     * @param file a zip file with a manifest. See {@link DfuBundle}.
+     */
+    public boolean startBundle(Context ctx, BluetoothDevice target, InputStream file) {
+        return startBundle(ctx, target, file, null);
+    }
+
+    public boolean startBundle(Context ctx, BluetoothDevice target, DfuBundle bundle) {
+        return startBundle(ctx, target, null, bundle);
+    }
+
+    private boolean startBundle(Context ctx, BluetoothDevice target, InputStream file, DfuBundle loadedBundle) {
+        if (ctx == null || target == null || (file == null && loadedBundle == null)) return false;
+
+        BlockingBle.setup(ctx);
+
+        final DfuProgressListener listener = EasyDfu2.this.listenerWrapper;
+        listener.onDfuStart();
+
+        currentTask = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final GR5xxxDfu2 dfu2 = new GR5xxxDfu2();
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
+                dfu2.setLogger(logger);
+                dfu2.setSharedScanner(sharedScanner);
+
+                try {
+                    DfuBundle bundle = loadedBundle;
+                    if (bundle == null) {
+                        bundle = new DfuBundle();
+                        if (!bundle.load(file, true)) {
+                            listener.onDfuError(bundle.getLastError(), new Error(bundle.getLastError()));
+                            return;
+                        }
+                    }
+
+                    BlockingBle ble = new BlockingBle(target);
+                    ble.setLogger(EasyDfu2.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
+
+                    ble.connect();
+                    ble.discoverServices();
+                    ble.setMtu(247);
+
+                    dfu2.bindTo(ble);
+
+                    dfu2.updateBundle(isFastMode, bundle, bundleMergeGap, ctrlCmd, listener);
+                    Thread.sleep(200); /* waiting for the last cmd arrived */
+
+                    reportMetrics(metrics, null);
+                    listener.onDfuComplete();
+                } catch (Throwable e) {
+                    reportMetrics(metrics, e);
+                    listener.onDfuError(e.getMessage(), new Error(e));
+                    e.printStackTrace();
+                } finally {
+                    final BlockingBle ble = dfu2.getBondBle();
+                    if (ble != null) {
+                        try {
+                            ble.disconnect();
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                    }
+                    EasyDfu2.this.currentTask = null;
+                }
+            }
+        }, "startBundle");
+
+        this.currentTask.start();
+
+        return true;
+    }
+
     /**
      * For GR5515. Jump to boot firmware and reconnect to boot firmware. Update APP firmware.
      */
     public boolean startDfuWithDfuBoot(Context ctx, BluetoothDevice target, InputStream file, String macOfBootFw) {
+        return startDfuWithDfuBoot(ctx, target, file, null, macOfBootFw);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startDfuWithDfuBoot(Context ctx, BluetoothDevice target, DfuFile file, String macOfBootFw) {
+        return startDfuWithDfuBoot(ctx, target, null, file, macOfBootFw);
+    }
+
+    private boolean startDfuWithDfuBoot(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, String macOfBootFw) {
         BlockingBle.setup(ctx);
 
         final DfuProgressListener listener = EasyDfu2.this.listenerWrapper;
@@ -276,16 +494,23 @@ public class EasyDfu2 {
             @Override
             public void run() {
                 final GR5xxxDfu2 dfu2 = new GR5xxxDfu2();
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 dfu2.setLogger(logger);
+                dfu2.setSharedScanner(sharedScanner);
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    if (!dfuFile.load(file, true)) {
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile);
+                    if (!dfuFile.isValidDfuFile()) {
                         listener.onDfuError(dfuFile.getLastError(), new Error(dfuFile.getLastError()));
                         return;
                     }
 
                     BlockingBle ble = new BlockingBle(target);
                     ble.setLogger(EasyDfu2.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     listener.onDfuProgress(0, 0, "Connect to APP firmware.");
                     ble.connect();
@@ -302,17 +527,26 @@ public class EasyDfu2 {
                     ble.disconnect();
 
                     listener.onDfuProgress(0, 0, "Scan for boot firmware: " + macOfBootFw);
-                    // scan to check existence
-                    final BlockingLeScanner scanner = new BlockingLeScanner(ctx);
-                    final BlockingLeScanner.Report report = scanner.scanForDevice(31_000, macOfBootFw);
+                    final BlockingBle bootBle = new BlockingBle(macOfBootFw);
+                    bootBle.setMetrics(metrics);
+                    bootBle.setTracer(tracer);
+                    bootBle.setCapture(capture);
+                    bootBle.setPacketTracer(packetTracer);
+                    // reconnect to boot firmware as soon as it advertises
+                    final SharedLeScanner sharedScanner = EasyDfu2.this.sharedScanner;
+                    final BlockingLeScanner.Report report;
+                    if (sharedScanner != null) {
+                        report = sharedScanner.scanAndConnect(31_000, bootBle, BluetoothDevice.PHY_LE_1M_MASK);
+                    } else {
+                        final BlockingLeScanner scanner = new BlockingLeScanner(ctx);
+                        report = scanner.scanAndConnect(31_000, bootBle, BluetoothDevice.PHY_LE_1M_MASK);
+                    }
                     if (report == null) {
                         throw new Error("Not found the advertisement of boot firmware: " + macOfBootFw);
                     }
 
                     listener.onDfuProgress(0, 0, "Connect boot firmware.");
-                    // reconnect to boot firmware,
-                    final BlockingBle bootBle = new BlockingBle(macOfBootFw);
-                    bootBle.connect();
+                    bootBle.awaitConnected(31_000);
                     bootBle.discoverServices();
                     bootBle.setMtu(247);
                     dfu2.bindTo(bootBle);
@@ -321,8 +555,10 @@ public class EasyDfu2 {
                     dfu2.updateFirmware(isFastMode, dfuFile, dfuFile.getImgInfo().bootInfo.loadAddr, ctrlCmd, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -426,4 +662,21 @@ public class EasyDfu2 {
 //        return true;
 //    }
 
+    private void reportMetrics(SessionMetrics metrics, Throwable error) {
+        metrics.finish(error);
+        final ILogger logger = this.logger;
+        if (logger != null) {
+            logger.i(TAG, metrics.toString());
+        }
+        listenerWrapper.onDfuMetrics(metrics);
+    }
+
+    private static DfuFile loadDfuFile(InputStream file, DfuFile loadedFile) {
+        if (loadedFile != null) {
+            return loadedFile;
+        }
+        final DfuFile dfuFile = new DfuFile();
+        dfuFile.load(file, true);
+        return dfuFile;
+    }
 }
@@ -30,15 +30,22 @@
 
 package com.goodix.ble.gr.lib.dfu.v2;
 
+import android.bluetooth.BluetoothDevice;
 import android.util.Log;
 
 import com.goodix.ble.gr.lib.com.DataProgressListener;
 import com.goodix.ble.gr.lib.com.HexSerializer;
 import com.goodix.ble.gr.lib.com.HexString;
 import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 import com.goodix.ble.gr.lib.com.ble.BlockingBle;
 import com.goodix.ble.gr.lib.com.ble.BlockingBleUtil;
 import com.goodix.ble.gr.lib.com.ble.BlockingLeScanner;
+import com.goodix.ble.gr.lib.com.ble.BtsnoopCapture;
+import com.goodix.ble.gr.lib.com.ble.PacketTraceSampler;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.com.ble.SharedLeScanner;
+import com.goodix.ble.gr.lib.dfu.v2.bundle.DfuBundle;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.BootInfo;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuChipInfo;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
@@ -46,6 +53,7 @@ import com.goodix.ble.gr.lib.dfu.v2.pojo.ImgInfo;
 import com.goodix.ble.gr.lib.dfu.v2.utils.MiscUtils;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 public class GR5xxxDfu2 extends DfuProfile {
@@ -54,10 +62,40 @@ public class GR5xxxDfu2 extends DfuProfile {
 
     private static final byte[] CTRL_POINT_PATTERN = new byte[]{0x44, 0x4F, 0x4F, 0x47};
 
+    public static final int DEFAULT_SEGMENT_SIZE = 1024;
+    // type(1) + address(4) + length(2) + data must fit in the 2-byte length of frame.
+    public static final int MAX_SEGMENT_SIZE = 0xFFFF - 7;
+
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private SharedLeScanner sharedScanner = null;
+
     public void setLogger(ILogger logger) {
         this.logger = logger;
     }
 
+    /**
+     * Find AppBootloader after the jump on the shared scan, e.g. when several devices are upgraded at once.
+     * By default, each jump runs its own scan.
+     */
+    public void setSharedScanner(SharedLeScanner sharedScanner) {
+        this.sharedScanner = sharedScanner;
+    }
+
+    /**
+     * Set the size of data carried by each PROGRAM_FLASH command in normal mode.
+     * The bootloader must be able to receive a segment of this size.
+     */
+    public void setSegmentSize(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new Error("setSegmentSize(): out of range: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
     //任务
     //通用任务
     public DfuChipInfo getChipInfo() throws Throwable {
@@ -274,6 +312,10 @@ public class GR5xxxDfu2 extends DfuProfile {
             final HexSerializer rcvParam = rcvCmd(CmdOpcode.SYSTEM_CONFIG);
             int resp = rcvParam.get(1);
             if (resp != 1) throw new Error("tidyImgList(): Response = " + resp);
+
+            // keep the list same as the one in chip, so that it can be used for next image.
+            imgList.clear();
+            imgList.addAll(cleanImgList);
         }
     }
 
@@ -321,116 +363,125 @@ public class GR5xxxDfu2 extends DfuProfile {
             }
         }
 
-        int paramLen = 9;
-        if (updateFw) {
-            if (dfuFw.isValidDfuFile()) {
-                if (toExtFlash) {
-                    toExtFlash = false;
-                    if (logger != null) {
-                        logger.w(TAG, "programStart(): toExtFlash is ignored.");
+        beginPhase(SessionMetrics.PHASE_ERASE);
+        try {
+            int paramLen = 9;
+            if (updateFw) {
+                if (dfuFw.isValidDfuFile()) {
+                    if (toExtFlash) {
+                        toExtFlash = false;
+                        if (logger != null) {
+                            logger.w(TAG, "programStart(): toExtFlash is ignored.");
+                        }
                     }
+                    paramLen = 41;
+                } else {
+                    throw new Error("programStart(): Invalid firmware file.");
                 }
-                paramLen = 41;
-            } else {
-                throw new Error("programStart(): Invalid firmware file.");
             }
-        }
 
-        final HexSerializer param = new HexSerializer(paramLen);
+            final HexSerializer param = new HexSerializer(paramLen);
 
-        if (toExtFlash) {
-            param.put(1, withFastMode ? 0x03 : 0x01);
-        } else {
-            int type = withFastMode ? 0x02 : 0x00;
-            if (dfuProtocolVersion >= 2){
-                if (dfuFw.isSigned()) {
-                    if (dfuFw.isEncrypted()) {
-                        type |= 0x20; // signed=true, encrypt=true;
-                    } else {
-                        type |= 0x10; // singed=true, encrypt=false;
+            if (toExtFlash) {
+                param.put(1, withFastMode ? 0x03 : 0x01);
+            } else {
+                int type = withFastMode ? 0x02 : 0x00;
+                if (dfuProtocolVersion >= 2){
+                    if (dfuFw.isSigned()) {
+                        if (dfuFw.isEncrypted()) {
+                            type |= 0x20; // signed=true, encrypt=true;
+                        } else {
+                            type |= 0x10; // singed=true, encrypt=false;
+                        }
                     }
                 }
+                // else {type |= 0x00;}  singed=false, encrypt=false;
+                param.put(1, type);
             }
-            // else {type |= 0x00;}  singed=false, encrypt=false;
-            param.put(1, type);
-        }
 
-        if (updateFw) {
-            ImgInfo imgInfo = dfuFw.getImgInfo();
-            if (writeAddress != dfuFw.getImgInfo().bootInfo.loadAddr) {
-                ImgInfo tmpImgInfo = new ImgInfo();
-                tmpImgInfo.copy(imgInfo);
-                tmpImgInfo.bootInfo.loadAddr = writeAddress;
-                imgInfo = tmpImgInfo;
+            if (updateFw) {
+                ImgInfo imgInfo = dfuFw.getImgInfo();
+                if (writeAddress != dfuFw.getImgInfo().bootInfo.loadAddr) {
+                    ImgInfo tmpImgInfo = new ImgInfo();
+                    tmpImgInfo.copy(imgInfo);
+                    tmpImgInfo.bootInfo.loadAddr = writeAddress;
+                    imgInfo = tmpImgInfo;
+                }
+                imgInfo.writeToData(param);
+            } else {
+                param.put(4, writeAddress);
+                param.put(4, dfuFw.getSize());
             }
-            imgInfo.writeToData(param);
-        } else {
-            param.put(4, writeAddress);
-            param.put(4, dfuFw.getData().length);
-        }
 
-        sendCmd(CmdOpcode.PROGRAM_START, param.getBuffer());
-        HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_START);
-        int resp = rcvCmdParam.get(1);
+            sendCmd(CmdOpcode.PROGRAM_START, param.getBuffer());
+            HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_START);
+            int resp = rcvCmdParam.get(1);
 
-        if (resp != 1) {
-            throw new Error("programStart(): Response = " + resp);
-        }
-
-        if (withFastMode) {
-            // FastMode: the phase of erasing flash.
-            int eraseState = rcvCmdParam.get(1);
-            int totalSector = rcvCmdParam.get(2);
-
-            if (eraseState != 0x01) {
-                if (logger != null) {
-                    logger.w(TAG, "programStart(): expected state is Erasing. But state = " + eraseState);
-                }
-            } else {
-                if (logger != null) {
-                    logger.d(TAG, "programStart(): Erasing...");
-                }
+            if (resp != 1) {
+                throw new Error("programStart(): Response = " + resp);
             }
 
-            while (totalSector > 0) {
-                // wait erasing...
-                rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_START);
-                resp = rcvCmdParam.get(1);
-                eraseState = rcvCmdParam.get(1);
-                int erasedCnt = rcvCmdParam.get(2);
+            if (withFastMode) {
+                // FastMode: the phase of erasing flash.
+                int eraseState = rcvCmdParam.get(1);
+                int totalSector = rcvCmdParam.get(2);
 
-//                if (resp != 1 && (eraseState == 0x02 || eraseState == 0x03)) {
-//                    throw new Error("programStart(): Response = " + resp);
-//                }
+                if (eraseState != 0x01) {
+                    if (logger != null) {
+                        logger.w(TAG, "programStart(): expected state is Erasing. But state = " + eraseState);
+                    }
+                } else {
+                    if (logger != null) {
+                        logger.d(TAG, "programStart(): Erasing...");
+                    }
+                }
 
-                switch (eraseState) {
-                    case 0x00:
-                        throw new Error("programStart(): The write address is not 4K aligned.");
-//                    case 0x01:
-//                        if (logger != null) logger.d(TAG, "programStartFast: Start Erasing.");
-//                        break;
-                    case 0x02:
-                        if (logger != null) {
-                            logger.d(TAG, "programStart(): Erasing:" + erasedCnt);
-                        }
-                        if (eraseListener != null) {
-                            eraseListener.onSectorErased(erasedCnt, totalSector);
-                        }
-                        break;
-                    case 0x03:
-                        if (logger != null) logger.d(TAG, "programStartFast: Complete Erase.");
-                        totalSector = 0; // exit while().
-                        break;
-                    case 0x04:
-                        throw new Error("programStart(): The current running firmware area is overlapped.");
-                    case 0x05:
-                        throw new Error("programStart(): Failed to erase.");
-                    case 0x06:
-                        throw new Error("programStart(): The area to be erased does not exist.");
-                    default:
-                        throw new Error("programStart(): Error state：" + eraseState);
+                while (totalSector > 0) {
+                    // wait erasing...
+                    rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_START);
+                    resp = rcvCmdParam.get(1);
+                    eraseState = rcvCmdParam.get(1);
+                    int erasedCnt = rcvCmdParam.get(2);
+
+    //                if (resp != 1 && (eraseState == 0x02 || eraseState == 0x03)) {
+    //                    throw new Error("programStart(): Response = " + resp);
+    //                }
+
+                    switch (eraseState) {
+                        case 0x00:
+                            throw new Error("programStart(): The write address is not 4K aligned.");
+    //                    case 0x01:
+    //                        if (logger != null) logger.d(TAG, "programStartFast: Start Erasing.");
+    //                        break;
+                        case 0x02:
+                            if (logger != null) {
+                                logger.d(TAG, "programStart(): Erasing:" + erasedCnt);
+                            }
+                            if (eraseListener != null) {
+                                eraseListener.onSectorErased(erasedCnt, totalSector);
+                            }
+                            final TraceRecorder tracer = getTracer();
+                            if (tracer != null) {
+                                tracer.counter(TraceRecorder.CAT_DFU, "erasedSectors", erasedCnt);
+                            }
+                            break;
+                        case 0x03:
+                            if (logger != null) logger.d(TAG, "programStartFast: Complete Erase.");
+                            totalSector = 0; // exit while().
+                            break;
+                        case 0x04:
+                            throw new Error("programStart(): The current running firmware area is overlapped.");
+                        case 0x05:
+                            throw new Error("programStart(): Failed to erase.");
+                        case 0x06:
+                            throw new Error("programStart(): The area to be erased does not exist.");
+                        default:
+                            throw new Error("programStart(): Error state：" + eraseState);
+                    }
                 }
             }
+        } finally {
+            endPhase(SessionMetrics.PHASE_ERASE);
         }
     }
 
@@ -447,57 +498,76 @@ public class GR5xxxDfu2 extends DfuProfile {
             }
         }
 
-        int totalBytes = dfuFw.getData().length;
+        int totalBytes = dfuFw.getSize();
         long startTime = System.currentTimeMillis();
         long reportTime = startTime;
 
-        if (withFastMode) {
-            if (progressListener != null) {
-                sendCmdRaw(dfuFw.getData(), new DataProgressListener() {
-                    @Override
-                    public void onDataProcessed(Object data, int processedBytes, int totalBytes, long intervalTime, long totalTime) {
-                        progressListener.onDataProcessed(dfuFw, processedBytes, totalBytes, intervalTime, totalTime);
-                    }
-                });
-            } else {
-                sendCmdRaw(dfuFw.getData(), null);
-            }
-
-            final HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_FLASH_FAST);
-            final int resp = rcvCmdParam.get(1);
-            if (resp != 1) throw new Error("programFlash(): Response = " + resp);
-        } else {
-            int pos = 0;
-            final int MAX_SEGMENT_SIZE = 1024;
-            HexSerializer cmdParam = new HexSerializer(1 + 4 + 2 + MAX_SEGMENT_SIZE);
-
-            while (pos < totalBytes) {
-                int segmentSize = MAX_SEGMENT_SIZE;
-                if (pos + MAX_SEGMENT_SIZE > totalBytes) {
-                    segmentSize = totalBytes - pos;
-                    cmdParam = new HexSerializer(1 + 4 + 2 + segmentSize);
+        beginPhase(SessionMetrics.PHASE_PROGRAM);
+        try {
+            if (withFastMode) {
+                if (progressListener != null) {
+                    sendCmdRaw(dfuFw.getDataSource(), new DataProgressListener() {
+                        @Override
+                        public void onDataProcessed(Object data, int processedBytes, int totalBytes, long intervalTime, long totalTime) {
+                            progressListener.onDataProcessed(dfuFw, processedBytes, totalBytes, intervalTime, totalTime);
+                        }
+                    });
+                } else {
+                    sendCmdRaw(dfuFw.getDataSource(), null);
                 }
-                cmdParam.reset();
-
-                cmdParam.put(1, toExtFlash ? 0x11 : 0x01); //
-                cmdParam.put(4, writeAddress + pos);
-                cmdParam.put(2, segmentSize);
-                cmdParam.put(segmentSize, dfuFw.getData(), pos);
-
-                sendCmd(CmdOpcode.PROGRAM_FLASH, cmdParam.getBuffer());
-                final HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_FLASH);
 
+                final HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_FLASH_FAST);
                 final int resp = rcvCmdParam.get(1);
                 if (resp != 1) throw new Error("programFlash(): Response = " + resp);
+            } else {
+                int pos = 0;
+                final int maxSegmentSize = this.segmentSize;
+                // reference the image if it is in heap, otherwise read it segment by segment.
+                final byte[] fileData = dfuFw.getDataSource().array();
+                final byte[] segmentBuffer = fileData == null ? new byte[maxSegmentSize] : null;
+
+                while (pos < totalBytes) {
+                    int segmentSize = maxSegmentSize;
+                    if (pos + maxSegmentSize > totalBytes) {
+                        segmentSize = totalBytes - pos;
+                    }
 
-                pos += segmentSize;
-                if (progressListener != null) {
-                    long now = System.currentTimeMillis();
+                    // the segment is referenced from the image directly
+                    final HexSerializer cmdParam = frameEncoder.begin(CmdOpcode.PROGRAM_FLASH);
+                    cmdParam.put(1, toExtFlash ? 0x11 : 0x01); //
+                    cmdParam.put(4, writeAddress + pos);
+                    cmdParam.put(2, segmentSize);
+                    if (fileData != null) {
+                        frameEncoder.end(fileData, pos, segmentSize);
+                    } else {
+                        if (dfuFw.readData(pos, segmentBuffer, 0, segmentSize) != segmentSize) {
+                            throw new Error("programFlash(): Failed to read data at " + pos);
+                        }
+                        frameEncoder.end(segmentBuffer, 0, segmentSize);
+                    }
+
+                    sendFrame(frameEncoder, null);
+                    final HexSerializer rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_FLASH);
+
+                    final int resp = rcvCmdParam.get(1);
+                    if (resp != 1) throw new Error("programFlash(): Response = " + resp);
 
-                    progressListener.onDataProcessed(dfuFw, pos, totalBytes, now - reportTime, now - startTime);
-                    reportTime = now;
+                    pos += segmentSize;
+                    if (progressListener != null) {
+                        long now = System.currentTimeMillis();
+
+                        progressListener.onDataProcessed(dfuFw, pos, totalBytes, now - reportTime, now - startTime);
+                        reportTime = now;
+                    }
                 }
             }
+
+            final SessionMetrics metrics = getMetrics();
+            if (metrics != null) {
+                metrics.onPayloadProgrammed(totalBytes);
+            }
+        } finally {
+            endPhase(SessionMetrics.PHASE_PROGRAM);
         }
     }
 
@@ -514,42 +584,47 @@ public class GR5xxxDfu2 extends DfuProfile {
             }
         }
 
-        int resetType;
-        if (updateFw) {
-            resetType = runImmediately ? 0x01 : 0x00; // reset and set as booting FW.
-        } else {
-            resetType = toExtFlash ? 0x12 : 0x02;
-        }
+        beginPhase(SessionMetrics.PHASE_VERIFY);
+        try {
+            int resetType;
+            if (updateFw) {
+                resetType = runImmediately ? 0x01 : 0x00; // reset and set as booting FW.
+            } else {
+                resetType = toExtFlash ? 0x12 : 0x02;
+            }
 
-        final HexSerializer cmdParam = new HexSerializer(1 + 4);
-        cmdParam.put(1, resetType);
-        cmdParam.put(4, dfuFw.getFileChecksum());
+            final HexSerializer cmdParam = new HexSerializer(1 + 4);
+            cmdParam.put(1, resetType);
+            cmdParam.put(4, dfuFw.getFileChecksum());
 
-        sendCmd(CmdOpcode.PROGRAM_END, cmdParam.getBuffer());
+            sendCmd(CmdOpcode.PROGRAM_END, cmdParam.getBuffer());
 
-        HexSerializer rcvCmdParam = null;
+            HexSerializer rcvCmdParam = null;
 
-        try {
-            // Timeout is allowed.
-            rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_END);
-        } catch (TimeoutException ignored) {
-        }catch (Error err){
-            if ((0x01 != resetType) || !err.getMessage().startsWith("Connection is lost")){
-                //continue to throw error out except ConnectionError
-                throw err;
+            try {
+                // Timeout is allowed.
+                rcvCmdParam = rcvCmd(CmdOpcode.PROGRAM_END);
+            } catch (TimeoutException ignored) {
+            }catch (Error err){
+                if ((0x01 != resetType) || !err.getMessage().startsWith("Connection is lost")){
+                    //continue to throw error out except ConnectionError
+                    throw err;
+                }
             }
-        }
 
-        if (rcvCmdParam != null) {
-            final int resp = rcvCmdParam.get(1);
-            if (resp != 1) throw new Error("programEnd(): Response = " + resp);
+            if (rcvCmdParam != null) {
+                final int resp = rcvCmdParam.get(1);
+                if (resp != 1) throw new Error("programEnd(): Response = " + resp);
 
-            if (withFastMode) {
-                final int checksum = rcvCmdParam.get(4);
-                if (checksum != dfuFw.getFileChecksum()) {
-                    throw new Error("programEnd(): Unexpected checksum = " + checksum);
+                if (withFastMode) {
+                    final int checksum = rcvCmdParam.get(4);
+                    if (checksum != dfuFw.getFileChecksum()) {
+                        throw new Error("programEnd(): Unexpected checksum = " + checksum);
+                    }
                 }
             }
+        } finally {
+            endPhase(SessionMetrics.PHASE_VERIFY);
         }
     }
 
@@ -559,118 +634,152 @@ public class GR5xxxDfu2 extends DfuProfile {
         boolean isDoubleBank = dfuFw.getImgInfo().bootInfo.loadAddr != writeAddress;
         // boolean isCopyMode = isDoubleBank;
 
-        if (isAppBootloaderSolution) {
-            enableDfuSchedule();
-
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load chip info...");
-            }
+        beginPhase(SessionMetrics.PHASE_PREFLIGHT);
+        try {
+            if (isAppBootloaderSolution) {
+                enableDfuSchedule();
 
-            DfuChipInfo chipInfo = getChipInfo();
-            final int addressOfSCA = getAddressOfSCA(chipInfo);
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load chip info...");
+                }
 
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load boot info...");
-            }
+                DfuChipInfo chipInfo = getChipInfo();
+                final int addressOfSCA = getAddressOfSCA(chipInfo);
 
-            StartupBootInfo bootloader = getStartupBootInfo(addressOfSCA);
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load boot info...");
+                }
 
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load extra info...");
-            }
+                StartupBootInfo bootloader = getStartupBootInfo(addressOfSCA);
 
-            AppBootloaderExtraInfo extraInfo = getAppBootloaderExtraInfo();
-            if (isDoubleBank && writeAddress == -1) {
-                writeAddress = extraInfo.recommendSaveAddress;
-                final HexString builder = new HexString(128);
-                builder.append("Use recommended address from chip: 0x");
-                builder.appendHex(writeAddress);
-                final String tip = builder.toString();
-                if (logger != null) {
-                    logger.i(TAG, tip);
-                }
                 if (progressCallback != null) {
-                    progressCallback.onDfuProgress(0, 0, tip);
+                    progressCallback.onDfuProgress(0, 0, "Load extra info...");
                 }
-            }
 
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Check overlap...");
-            }
+                AppBootloaderExtraInfo extraInfo = getAppBootloaderExtraInfo();
+                if (isDoubleBank && writeAddress == -1) {
+                    writeAddress = extraInfo.recommendSaveAddress;
+                    final HexString builder = new HexString(128);
+                    builder.append("Use recommended address from chip: 0x");
+                    builder.appendHex(writeAddress);
+                    final String tip = builder.toString();
+                    if (logger != null) {
+                        logger.i(TAG, tip);
+                    }
+                    if (progressCallback != null) {
+                        progressCallback.onDfuProgress(0, 0, tip);
+                    }
+                }
 
-            // check encryption
-            if (dfuFw.isEncrypted() != bootloader.isEncrypted) {
-                throw new Error("updateFirmware(): Encryption is mismatch. FW = " + dfuFw.isEncrypted() + ", CHIP = " + bootloader.isEncrypted);
-            }
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Check overlap...");
+                }
 
-            checkOverlapV2(true, false, dfuFw, writeAddress, addressOfSCA, bootloader.bootInfo, extraInfo.appFwImgInfo.bootInfo);
+                // check encryption
+                if (dfuFw.isEncrypted() != bootloader.isEncrypted) {
+                    throw new Error("updateFirmware(): Encryption is mismatch. FW = " + dfuFw.isEncrypted() + ", CHIP = " + bootloader.isEncrypted);
+                }
 
-            if (isDoubleBank || extraInfo.position == AppBootloaderExtraInfo.CURRENT_FW_IS_APP) {
-                setDfuModeOfChip(isDoubleBank);
-                /* setDfuModeOfChip has no response, so delay sometime */
-                Thread.sleep(500);
-            }
+                checkOverlapV2(true, false, dfuFw, writeAddress, addressOfSCA, bootloader.bootInfo, extraInfo.appFwImgInfo.bootInfo);
 
-            // 如果使用单区模式，且单区处于AppFW，那么会出现一次重启。
-            if (!isDoubleBank && extraInfo.position == AppBootloaderExtraInfo.CURRENT_FW_IS_APP) {
-                if (progressCallback != null) {
-                    progressCallback.onDfuProgress(0, 0, "Jump to AppBootloader...");
+                if (isDoubleBank || extraInfo.position == AppBootloaderExtraInfo.CURRENT_FW_IS_APP) {
+                    setDfuModeOfChip(isDoubleBank);
+                    /* setDfuModeOfChip has no response, so delay sometime */
+                    Thread.sleep(500);
                 }
 
-                String newDeviceMac = changeMacAddress(this.ble.targetDevice.getAddress(), +1);
+                // 如果使用单区模式，且单区处于AppFW，那么会出现一次重启。
+                if (!isDoubleBank && extraInfo.position == AppBootloaderExtraInfo.CURRENT_FW_IS_APP) {
+                    if (progressCallback != null) {
+                        progressCallback.onDfuProgress(0, 0, "Jump to AppBootloader...");
+                    }
 
-                Thread.sleep(100);
-                this.ble.disconnect();
-                Thread.sleep(200);
+                    if (this.ble == null) {
+                        throw new Error("updateFirmware(): Only BLE transport can reconnect to AppBootloader.");
+                    }
 
-                final BlockingLeScanner scanner = new BlockingLeScanner(BlockingBle.appCtx);
-                final BlockingLeScanner.Report report = scanner.scanForDevice(31_000, newDeviceMac);
-                if (report != null) {
-                    final BlockingBle newBle = new BlockingBle(report.device);
-                    newBle.connect();
-                    newBle.discoverServices();
-                    newBle.setMtu(247);
-                    this.bindTo(newBle);
-                    if (progressCallback != null) {
-                        progressCallback.onDfuProgress(0, 0, "Time for bootloader to take a deep breath...");
+                    endPhase(SessionMetrics.PHASE_PREFLIGHT);
+                    beginPhase(SessionMetrics.PHASE_REBOOT);
+                    final SessionMetrics metrics = getMetrics();
+                    final TraceRecorder tracer = getTracer();
+                    final BtsnoopCapture capture = this.ble.getCapture();
+                    final PacketTraceSampler packetTracer = this.ble.getPacketTracer();
+
+                    String newDeviceMac = changeMacAddress(this.ble.targetDevice.getAddress(), +1);
+
+                    Thread.sleep(100);
+                    this.ble.disconnect();
+                    Thread.sleep(200);
+
+                    final BlockingBle newBle = new BlockingBle(newDeviceMac);
+                    newBle.setMetrics(metrics);
+                    newBle.setTracer(tracer);
+                    newBle.setCapture(capture);
+                    newBle.setPacketTracer(packetTracer);
+                    // connect on the first advertisement of AppBootloader
+                    final SharedLeScanner sharedScanner = this.sharedScanner;
+                    final BlockingLeScanner.Report report;
+                    if (sharedScanner != null) {
+                        report = sharedScanner.scanAndConnect(31_000, newBle, BluetoothDevice.PHY_LE_1M_MASK);
+                    } else {
+                        final BlockingLeScanner scanner = new BlockingLeScanner(BlockingBle.appCtx);
+                        report = scanner.scanAndConnect(31_000, newBle, BluetoothDevice.PHY_LE_1M_MASK);
+                    }
+                    if (report != null) {
+                        newBle.awaitConnected(31_000);
+                        newBle.discoverServices();
+                        newBle.setMtu(247);
+                        this.bindTo(newBle);
+                        if (progressCallback != null) {
+                            progressCallback.onDfuProgress(0, 0, "Time for bootloader to take a deep breath...");
+                        }
+                        Thread.sleep(2_000);
+                        endPhase(SessionMetrics.PHASE_REBOOT);
+                    } else {
+                        // not found
+                        throw new Error("updateFirmware(): Not found the advertisement of AppBootloader:" + newDeviceMac);
                     }
-                    Thread.sleep(2_000);
-                } else {
-                    // not found
-                    throw new Error("updateFirmware(): Not found the advertisement of AppBootloader:" + newDeviceMac);
                 }
-            }
 
-        } else {
-            withFastMode = false; // not support
+            } else {
+                withFastMode = false; // not support
 
-            if (ctrlCmd != null) {
-                writeCtrlPoint(ctrlCmd);
-            }
+                // DFU V1 has no recommended address
+                if (writeAddress == -1) {
+                    throw new Error("updateFirmware(): The copy address must be specified for DFU V1.");
+                }
 
-            DfuChipInfo chipInfo = getChipInfo();
-            final int addressOfSCA = getAddressOfSCA(chipInfo);
+                if (ctrlCmd != null) {
+                    writeCtrlPoint(ctrlCmd);
+                }
 
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load boot info...");
-            }
+                DfuChipInfo chipInfo = getChipInfo();
+                final int addressOfSCA = getAddressOfSCA(chipInfo);
 
-            StartupBootInfo runningFw = getStartupBootInfo(addressOfSCA);
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load boot info...");
+                }
 
-            // check encryption
-            if (dfuFw.isEncrypted() != runningFw.isEncrypted) {
-                throw new Error("updateFirmware(): Encryption is mismatch. FW = " + dfuFw.isEncrypted() + ", CHIP = " + runningFw.isEncrypted);
-            }
+                StartupBootInfo runningFw = getStartupBootInfo(addressOfSCA);
 
-            checkOverlapV1(true, false, dfuFw, writeAddress, addressOfSCA, runningFw.bootInfo);
+                // check encryption
+                if (dfuFw.isEncrypted() != runningFw.isEncrypted) {
+                    throw new Error("updateFirmware(): Encryption is mismatch. FW = " + dfuFw.isEncrypted() + ", CHIP = " + runningFw.isEncrypted);
+                }
 
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load ImgInfo list...");
-            }
+                checkOverlapV1(true, false, dfuFw, writeAddress, addressOfSCA, runningFw.bootInfo);
+
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load ImgInfo list...");
+                }
 
-            final ImgInfoList imgInfoList = getImgList(addressOfSCA);
+                final ImgInfoList imgInfoList = getImgList(addressOfSCA);
 
-            tidyImgList(dfuFw.getImgInfo().bootInfo.loadAddr, dfuFw.getData().length, runningFw.bootInfo, imgInfoList.imgList, addressOfSCA);
+                tidyImgList(dfuFw.getImgInfo().bootInfo.loadAddr, dfuFw.getSize(), runningFw.bootInfo, imgInfoList.imgList, addressOfSCA);
+            }
+        } finally {
+            endPhase(SessionMetrics.PHASE_PREFLIGHT);
+            endPhase(SessionMetrics.PHASE_REBOOT); // still open if the jump has failed
         }
 
         //下载数据
@@ -704,7 +813,7 @@ public class GR5xxxDfu2 extends DfuProfile {
                     int percent = usedProgressPercent + (100 - usedProgressPercent) * processedBytes / totalBytes;
                     if (lastReportPercent != percent) {
                         lastReportPercent = percent;
-                        progressCallback.onDfuProgress(percent, (int) (processedBytes * 1000 / totalTime), "Programming...");
+                        progressCallback.onDfuProgress(percent, totalTime > 0 ? (int) (processedBytes * 1000 / totalTime) : 0, "Programming...");
                     }
                 }
             }
@@ -715,8 +824,23 @@ public class GR5xxxDfu2 extends DfuProfile {
 
 
     public void updateResource(boolean toExtFlash, boolean withFastMode, DfuFile dataFile, int writeAddress, byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
-        if (isAppBootloaderSolution) {
-            enableDfuSchedule();
+        final ResourcePreflight preflight = prepareResourceUpdate(ctrlCmd, progressCallback);
+        programResource(preflight, toExtFlash, withFastMode, dataFile, writeAddress, progressCallback);
+    }
+
+    /**
+     * Load the information which is required to update resources.
+     * The result can be used by {@link #programResource} for several resources on the same connection.
+     */
+    public ResourcePreflight prepareResourceUpdate(byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
+        final ResourcePreflight preflight = new ResourcePreflight();
+        beginPhase(SessionMetrics.PHASE_PREFLIGHT);
+        try {
+            if (isAppBootloaderSolution) {
+                enableDfuSchedule();
+            } else if (ctrlCmd != null) {
+                writeCtrlPoint(ctrlCmd);
+            }
 
             // CHIP INFO
             if (progressCallback != null) {
@@ -724,63 +848,55 @@ public class GR5xxxDfu2 extends DfuProfile {
             }
 
             DfuChipInfo chipInfo = getChipInfo();
-            final int addressOfSCA = getAddressOfSCA(chipInfo);
+            preflight.addressOfSCA = getAddressOfSCA(chipInfo);
 
             // BOOT INFO
             if (progressCallback != null) {
                 progressCallback.onDfuProgress(0, 0, "Load boot info...");
             }
 
-            StartupBootInfo bootloader = getStartupBootInfo(addressOfSCA);
+            preflight.startupBootInfo = getStartupBootInfo(preflight.addressOfSCA);
 
-            // EXTRA INFO
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load extra info...");
-            }
+            if (isAppBootloaderSolution) {
+                // EXTRA INFO
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load extra info...");
+                }
+
+                preflight.extraInfo = getAppBootloaderExtraInfo();
+            } else {
+                // IMG INFO LIST
+                if (progressCallback != null) {
+                    progressCallback.onDfuProgress(0, 0, "Load ImgInfo list...");
+                }
 
-            AppBootloaderExtraInfo extraInfo = getAppBootloaderExtraInfo();
+                preflight.imgInfoList = getImgList(preflight.addressOfSCA);
+            }
+        } finally {
+            endPhase(SessionMetrics.PHASE_PREFLIGHT);
+        }
+        return preflight;
+    }
 
+    public void programResource(ResourcePreflight preflight, boolean toExtFlash, boolean withFastMode, DfuFile dataFile, int writeAddress, DfuProgressListener progressCallback) throws Throwable {
+        final int addressOfSCA = preflight.addressOfSCA;
+        if (isAppBootloaderSolution) {
             // CHECK OVERLAP
             if (progressCallback != null) {
                 progressCallback.onDfuProgress(0, 0, "Check overlap...");
             }
 
-            checkOverlapV2(false, toExtFlash, dataFile, writeAddress, addressOfSCA, bootloader.bootInfo, extraInfo.appFwImgInfo.bootInfo);
+            checkOverlapV2(false, toExtFlash, dataFile, writeAddress, addressOfSCA, preflight.startupBootInfo.bootInfo, preflight.extraInfo.appFwImgInfo.bootInfo);
 
             // setDfuModeOfChip(isDoubleBank); not required by updating resource.
         } else {
             withFastMode = false; // not support
 
-            if (ctrlCmd != null) {
-                writeCtrlPoint(ctrlCmd);
-            }
-
-            // CHIP INFO
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load chip info...");
-            }
-
-            DfuChipInfo chipInfo = getChipInfo();
-            final int addressOfSCA = getAddressOfSCA(chipInfo);
-
-            // BOOT INFO
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load boot info...");
-            }
-
-            StartupBootInfo runningFw = getStartupBootInfo(addressOfSCA);
-
             // CHECK OVERLAP
-            checkOverlapV1(false, toExtFlash, dataFile, writeAddress, addressOfSCA, runningFw.bootInfo);
+            checkOverlapV1(false, toExtFlash, dataFile, writeAddress, addressOfSCA, preflight.startupBootInfo.bootInfo);
 
             // TIDY IMG INFO LIST
-            if (progressCallback != null) {
-                progressCallback.onDfuProgress(0, 0, "Load ImgInfo list...");
-            }
-
-            final ImgInfoList imgInfoList = getImgList(addressOfSCA);
-
-            tidyImgList(writeAddress, dataFile.getData().length, runningFw.bootInfo, imgInfoList.imgList, addressOfSCA);
+            tidyImgList(writeAddress, dataFile.getSize(), preflight.startupBootInfo.bootInfo, preflight.imgInfoList.imgList, addressOfSCA);
         }
 
         //下载数据
@@ -814,7 +930,7 @@ public class GR5xxxDfu2 extends DfuProfile {
                     int percent = usedProgressPercent + (100 - usedProgressPercent) * processedBytes / totalBytes;
                     if (lastReportPercent != percent) {
                         lastReportPercent = percent;
-                        progressCallback.onDfuProgress(percent, (int) (processedBytes * 1000 / totalTime), "Programming...");
+                        progressCallback.onDfuProgress(percent, totalTime > 0 ? (int) (processedBytes * 1000 / totalTime) : 0, "Programming...");
                     }
                 }
             }
@@ -823,10 +939,55 @@ public class GR5xxxDfu2 extends DfuProfile {
         programEnd(false, toExtFlash, withFastMode, dataFile, false);
     }
 
+    /**
+     * Update all images in the bundle over current connection.
+     * The information of chip is loaded once for all resources, and adjacent resources are programmed as one region.
+     * The firmware is updated at last, because the chip may reboot after that.
+     *
+     * @param maxMergeGap resources are merged if the gap between them is not larger than it.
+     */
+    public void updateBundle(boolean withFastMode, DfuBundle bundle, int maxMergeGap, byte[] ctrlCmd, DfuProgressListener progressCallback) throws Throwable {
+        final List<DfuBundle.Region> regions = bundle.planResourceRegions(maxMergeGap);
+        final DfuBundle.Image firmware = bundle.getFirmware();
+        // check it before any resource is programmed
+        if (firmware != null && firmware.address == DfuBundle.COPY_ADDRESS_AUTO && !isAppBootloaderSolution) {
+            throw new Error("updateBundle(): The copy address of " + firmware.name + " must be specified for DFU V1.");
+        }
+
+        // a merged region includes the padding between its images
+        long totalSize = firmware != null ? firmware.file.getSize() : 0;
+        for (DfuBundle.Region region : regions) {
+            totalSize += region.file.getSize();
+        }
+        final BundleProgress progress = new BundleProgress(totalSize, regions.size() + (firmware != null ? 1 : 0), progressCallback);
+
+        if (!regions.isEmpty()) {
+            final ResourcePreflight preflight = prepareResourceUpdate(ctrlCmd, progressCallback);
+            if (!isAppBootloaderSolution) {
+                ctrlCmd = null; // has been sent
+            }
+
+            for (DfuBundle.Region region : regions) {
+                final StringBuilder name = new StringBuilder();
+                for (DfuBundle.Image image : region.images) {
+                    if (name.length() > 0) name.append('+');
+                    name.append(image.name);
+                }
+                progress.next(name.toString(), region.file.getSize());
+                programResource(preflight, region.toExtFlash, withFastMode, region.file, region.address, progress);
+            }
+        }
+
+        if (firmware != null) {
+            progress.next(firmware.name, firmware.file.getSize());
+            updateFirmware(withFastMode, firmware.file, firmware.address, ctrlCmd, progress);
+        }
+    }
+
     //tools
     private void checkOverlapV2(boolean isUpdateFw, boolean toExtFlash, DfuFile dfuFile, int writeAddress, int addressOfSCA, BootInfo appBootloader, BootInfo runningAppFw) throws Throwable {
         // 首先不能覆盖SCA和bootloader
-        int writeSize = dfuFile.getData().length;
+        int writeSize = dfuFile.getSize();
         // SCA
         if (BootInfo.hasOverlap(writeAddress, writeSize, addressOfSCA, 0x2000)) {
             throw new Error(createOverlapError("DATA", writeAddress, writeSize, "SCA", addressOfSCA, 0x2000));
@@ -871,7 +1032,7 @@ public class GR5xxxDfu2 extends DfuProfile {
 
     private void checkOverlapV1(boolean isUpdateFw, boolean toExtFlash, DfuFile dfuFile, int writeAddress, int addressOfSCA, BootInfo runningFw) throws Throwable {
         // 首先不能覆盖SCA和bootloader
-        int writeSize = dfuFile.getData().length;
+        int writeSize = dfuFile.getSize();
         // SCA
         if (BootInfo.hasOverlap(writeAddress, writeSize, addressOfSCA, 0x2000)) {
             throw new Error(createOverlapError("DATA", writeAddress, writeSize, "SCA", addressOfSCA, 0x2000));
@@ -967,6 +1128,57 @@ public class GR5xxxDfu2 extends DfuProfile {
         public ImgInfo appFwImgInfo;
     }
 
+    // map the progress of each image to the whole bundle
+    private static class BundleProgress implements DfuProgressListener {
+        private final long totalSize;
+        private final int stepCount;
+        private final DfuProgressListener listener;
+        private long doneSize = 0;
+        private int currentSize = 0;
+        private int step = 0;
+        private String prefix = "";
+
+        BundleProgress(long totalSize, int stepCount, DfuProgressListener listener) {
+            this.totalSize = totalSize > 0 ? totalSize : 1;
+            this.stepCount = stepCount;
+            this.listener = listener;
+        }
+
+        void next(String name, int size) {
+            doneSize += currentSize;
+            currentSize = size;
+            step++;
+            prefix = "[" + step + "/" + stepCount + "] " + name + ": ";
+        }
+
+        @Override
+        public void onDfuStart() {
+        }
+
+        @Override
+        public void onDfuProgress(int percent, int speed, String msg) {
+            if (listener != null) {
+                final int totalPercent = (int) ((doneSize * 100 + (long) currentSize * percent) / totalSize);
+                listener.onDfuProgress(totalPercent, speed, prefix + msg);
+            }
+        }
+
+        @Override
+        public void onDfuComplete() {
+        }
+
+        @Override
+        public void onDfuError(String msg, Error e) {
+        }
+    }
+
+    public static class ResourcePreflight {
+        public int addressOfSCA;
+        public StartupBootInfo startupBootInfo; // AppBootloader for the AppBootloader solution, or the running firmware
+        public AppBootloaderExtraInfo extraInfo; // only for the AppBootloader solution
+        public ImgInfoList imgInfoList; // only for the other solution
+    }
+
     public interface EraseFlashProgressListener {
         void onSectorErased(int erased, int total);
     }
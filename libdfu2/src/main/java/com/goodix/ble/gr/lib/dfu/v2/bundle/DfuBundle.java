@@ -0,0 +1,348 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.bundle;
+
+import com.goodix.ble.gr.lib.dfu.v2.pojo.BootInfo;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.CompositeDataSource;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A firmware and several resources which are updated over one connection.
+ * <p>
+ * A bundle file is a zip which contains the images and a manifest named "manifest.json":
+ * <pre>
+ * {
+ *   "images": [
+ *     { "file": "app_fw.bin", "type": "firmware" },
+ *     { "file": "font.bin", "type": "resource", "address": "0x00200000", "extFlash": true },
+ *     { "file": "icon.bin", "type": "resource", "address": "0x00300000", "extFlash": true }
+ *   ]
+ * }
+ * </pre>
+ * For the firmware, "copyAddress" is optional. It could be an address or "auto" which uses the address recommended by chip.
+ * "auto" is only supported by the AppBootloader solution (DFU V2).
+ * Addresses could be numbers or hex strings.
+ */
+@SuppressWarnings("unused")
+public class DfuBundle {
+    public static final String MANIFEST_NAME = "manifest.json";
+    public static final int COPY_ADDRESS_AUTO = -1;
+
+    public static class Image {
+        public final String name;
+        public final DfuFile file;
+        public final boolean isFirmware;
+        /**
+         * The write address for resource. For firmware, it's the copy address, or the load address if copy mode is not used.
+         */
+        public final int address;
+        public final boolean toExtFlash;
+
+        Image(String name, DfuFile file, boolean isFirmware, int address, boolean toExtFlash) {
+            this.name = name;
+            this.file = file;
+            this.isFirmware = isFirmware;
+            this.address = address;
+            this.toExtFlash = toExtFlash;
+        }
+    }
+
+    /**
+     * Adjacent resources which are programmed by one PROGRAM_START/PROGRAM_END cycle.
+     */
+    public static class Region {
+        public final int address;
+        public final boolean toExtFlash;
+        public final DfuFile file;
+        public final List<Image> images;
+
+        Region(int address, boolean toExtFlash, DfuFile file, List<Image> images) {
+            this.address = address;
+            this.toExtFlash = toExtFlash;
+            this.file = file;
+            this.images = images;
+        }
+    }
+
+    private final ArrayList<Image> images = new ArrayList<>();
+    private String lastError = "success";
+
+    public DfuBundle addFirmware(String name, DfuFile file) {
+        if (file == null || !file.isValidDfuFile()) {
+            throw new Error("addFirmware(): Invalid firmware: " + name);
+        }
+        return addFirmware(name, file, file.getImgInfo().bootInfo.loadAddr);
+    }
+
+    /**
+     * @param copyAddress the address to save the firmware temporarily, or {@link #COPY_ADDRESS_AUTO}
+     *                    which is resolved by the AppBootloader and rejected by DFU V1.
+     */
+    public DfuBundle addFirmware(String name, DfuFile file, int copyAddress) {
+        if (file == null || !file.isValidDfuFile()) {
+            throw new Error("addFirmware(): Invalid firmware: " + name);
+        }
+        if (getFirmware() != null) {
+            throw new Error("addFirmware(): Only one firmware is allowed in a bundle.");
+        }
+        images.add(new Image(name, file, true, copyAddress, false));
+        return this;
+    }
+
+    public DfuBundle addResource(String name, DfuFile file, int address, boolean toExtFlash) {
+        if (file == null || file.getSize() < 1) {
+            throw new Error("addResource(): Empty resource: " + name);
+        }
+        images.add(new Image(name, file, false, address, toExtFlash));
+        return this;
+    }
+
+    public List<Image> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    public Image getFirmware() {
+        for (Image image : images) {
+            if (image.isFirmware) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    public long getTotalSize() {
+        long size = 0;
+        for (Image image : images) {
+            size += image.file.getSize();
+        }
+        return size;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Load the images in a zip file according to its manifest.
+     */
+    public boolean load(InputStream in, boolean closeStream) {
+        if (in == null) {
+            lastError = "Input is null";
+            return false;
+        }
+
+        final HashMap<String, DfuFile> files = new HashMap<>();
+        String manifest = null;
+        try {
+            final ZipInputStream zip = new ZipInputStream(in);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                final DfuFile file = new DfuFile();
+                file.load(zip, false); // resource has no ImgInfo
+                if (MANIFEST_NAME.equals(entry.getName())) {
+                    manifest = new String(file.getData(), Charset.forName("UTF-8"));
+                } else {
+                    files.put(entry.getName(), file);
+                }
+            }
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (closeStream) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        if (manifest == null) {
+            lastError = "Not found " + MANIFEST_NAME;
+            return false;
+        }
+
+        try {
+            final JSONArray list = new JSONObject(manifest).getJSONArray("images");
+            for (int i = 0; i < list.length(); i++) {
+                final JSONObject item = list.getJSONObject(i);
+                final String name = item.getString("file");
+                final DfuFile file = files.get(name);
+                if (file == null) {
+                    lastError = "Not found file in bundle: " + name;
+                    return false;
+                }
+                final String type = item.getString("type");
+                if ("firmware".equals(type)) {
+                    if (!file.isValidDfuFile()) {
+                        lastError = "Invalid firmware " + name + ": " + file.getLastError();
+                        return false;
+                    }
+                    final Object copyAddress = item.opt("copyAddress");
+                    if (copyAddress == null) {
+                        addFirmware(name, file);
+                    } else if ("auto".equals(copyAddress)) {
+                        addFirmware(name, file, COPY_ADDRESS_AUTO);
+                    } else {
+                        addFirmware(name, file, parseAddress(copyAddress));
+                    }
+                } else if ("resource".equals(type)) {
+                    addResource(name, file, parseAddress(item.get("address")), item.optBoolean("extFlash", false));
+                } else {
+                    lastError = "Unknown type of " + name + ": " + type;
+                    return false;
+                }
+            }
+        } catch (JSONException | NumberFormatException e) {
+            lastError = "Invalid manifest: " + e.getMessage();
+            return false;
+        } catch (Error e) {
+            lastError = e.getMessage();
+            return false;
+        }
+
+        if (images.isEmpty()) {
+            lastError = "Empty bundle";
+            return false;
+        }
+        return true;
+    }
+
+    private static int parseAddress(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        String str = String.valueOf(value).trim();
+        if (str.startsWith("0x") || str.startsWith("0X")) {
+            return (int) Long.parseLong(str.substring(2), 16);
+        }
+        return (int) Long.parseLong(str);
+    }
+
+    /**
+     * Sort the resources by flash type and address, and merge the adjacent ones into regions.
+     *
+     * @param maxGap resources are merged if the gap between them is not larger than it. The gap is filled with 0xFF.
+     */
+    public List<Region> planResourceRegions(int maxGap) {
+        final ArrayList<Image> resources = new ArrayList<>();
+        for (Image image : images) {
+            if (!image.isFirmware) {
+                resources.add(image);
+            }
+        }
+        Collections.sort(resources, new Comparator<Image>() {
+            @Override
+            public int compare(Image o1, Image o2) {
+                if (o1.toExtFlash != o2.toExtFlash) {
+                    return o1.toExtFlash ? 1 : -1;
+                }
+                return Long.compare(o1.address & 0xFFFFFFFFL, o2.address & 0xFFFFFFFFL);
+            }
+        });
+
+        // the firmware is written at last, so it must not be overwritten by resources.
+        final Image fw = getFirmware();
+        if (fw != null) {
+            final int fwSize = fw.file.getSize();
+            final int loadAddr = fw.file.getImgInfo().bootInfo.loadAddr;
+            for (Image res : resources) {
+                if (res.toExtFlash) {
+                    continue;
+                }
+                if (BootInfo.hasOverlap(res.address, res.file.getSize(), loadAddr, fwSize)
+                        || (fw.address != COPY_ADDRESS_AUTO && BootInfo.hasOverlap(res.address, res.file.getSize(), fw.address, fwSize))) {
+                    throw new Error("planResourceRegions(): " + res.name + " overlaps the firmware " + fw.name);
+                }
+            }
+        }
+
+        final ArrayList<Region> regions = new ArrayList<>();
+        int i = 0;
+        while (i < resources.size()) {
+            final Image first = resources.get(i);
+            final ArrayList<Image> merged = new ArrayList<>();
+            merged.add(first);
+            long end = (first.address & 0xFFFFFFFFL) + first.file.getSize();
+            int j = i + 1;
+            while (j < resources.size()) {
+                final Image next = resources.get(j);
+                if (next.toExtFlash != first.toExtFlash) {
+                    break;
+                }
+                final long nextStart = next.address & 0xFFFFFFFFL;
+                if (nextStart < end) {
+                    throw new Error("planResourceRegions(): " + next.name + " overlaps " + merged.get(merged.size() - 1).name);
+                }
+                if (nextStart - end > maxGap) {
+                    break;
+                }
+                merged.add(next);
+                end = nextStart + next.file.getSize();
+                j++;
+            }
+
+            final DfuFile regionFile;
+            if (merged.size() == 1) {
+                regionFile = first.file;
+            } else {
+                final CompositeDataSource source = new CompositeDataSource(0xFF);
+                for (Image image : merged) {
+                    source.add(image.address - first.address, image.file.getDataSource());
+                }
+                regionFile = new DfuFile();
+                regionFile.load(source); // no ImgInfo, only for checksum
+            }
+            regions.add(new Region(first.address, first.toExtFlash, regionFile, merged));
+            i = j;
+        }
+        return regions;
+    }
+}
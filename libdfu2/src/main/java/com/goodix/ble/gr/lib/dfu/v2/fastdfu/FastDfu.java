@@ -34,7 +34,11 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 
 import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.BtsnoopCapture;
+import com.goodix.ble.gr.lib.com.ble.PacketTraceSampler;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
 import com.goodix.ble.gr.lib.dfu.v2.DfuProgressListener;
 import com.goodix.ble.gr.lib.dfu.v2.DfuProgressListenerWrapperForUi;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
@@ -45,6 +49,9 @@ public class FastDfu {
     private static final String TAG = "EasyDfu2";
 
     private ILogger logger = null;
+    private TraceRecorder tracer = null;
+    private BtsnoopCapture capture = null;
+    private PacketTraceSampler packetTracer = null;
 
     private Thread currentTask = null;
 
@@ -54,6 +61,27 @@ public class FastDfu {
         this.logger = logger;
     }
 
+    /**
+     * Record the timeline of following tasks. Export it by {@link TraceRecorder#writeChromeTrace(java.io.OutputStream)}.
+     */
+    public void setTracer(TraceRecorder tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Capture the GATT traffic of following tasks. Export it by {@link BtsnoopCapture#writeBtsnoop(java.io.OutputStream)}.
+     */
+    public void setCapture(BtsnoopCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Log the sampled packets of following tasks.
+     */
+    public void setPacketTracer(PacketTraceSampler packetTracer) {
+        this.packetTracer = packetTracer;
+    }
+
     public void setListener(DfuProgressListener listener) {
         this.listenerWrapper.listener = listener;
     }
@@ -69,7 +97,19 @@ public class FastDfu {
 
     //接口函数
     public boolean startDfu(Context ctx, BluetoothDevice target, InputStream file) {
-        if (ctx == null || target == null || file == null) return false;
+        return startDfu(ctx, target, file, null);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startDfu(Context ctx, BluetoothDevice target, DfuFile file) {
+        return startDfu(ctx, target, null, file);
+    }
+
+    private boolean startDfu(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile) {
+        if (ctx == null || target == null || (file == null && loadedFile == null)) return false;
 
         BlockingBle.setup(ctx);
 
@@ -79,11 +119,13 @@ public class FastDfu {
             @Override
             public void run() {
                 final DfuProgressListener listener = FastDfu.this.listenerWrapper;
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 BlockingBle ble = null;
 
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    if (!dfuFile.load(file, true)) {
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile);
+                    if (!dfuFile.isValidDfuFile()) {
                         listener.onDfuError(dfuFile.getLastError(), new Error(dfuFile.getLastError()));
                         return;
                     }
@@ -93,6 +135,10 @@ public class FastDfu {
 
                     ble = new BlockingBle(target);
                     ble.setLogger(FastDfu.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -103,8 +149,10 @@ public class FastDfu {
                     fast.update(true, false, dfuFile, false, 0, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -126,7 +174,19 @@ public class FastDfu {
     }
 
     public boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, InputStream file, int copyAddr) {
-        if (ctx == null || target == null || file == null) return false;
+        return startDfuInCopyMode(ctx, target, file, null, copyAddr);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, DfuFile file, int copyAddr) {
+        return startDfuInCopyMode(ctx, target, null, file, copyAddr);
+    }
+
+    private boolean startDfuInCopyMode(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, int copyAddr) {
+        if (ctx == null || target == null || (file == null && loadedFile == null)) return false;
 
         BlockingBle.setup(ctx);
 
@@ -136,11 +196,13 @@ public class FastDfu {
             @Override
             public void run() {
                 final DfuProgressListener listener = FastDfu.this.listenerWrapper;
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 BlockingBle ble = null;
 
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    if (!dfuFile.load(file, true)) {
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile);
+                    if (!dfuFile.isValidDfuFile()) {
                         listener.onDfuError(dfuFile.getLastError(), new Error(dfuFile.getLastError()));
                         return;
                     }
@@ -150,6 +212,10 @@ public class FastDfu {
 
                     ble = new BlockingBle(target);
                     ble.setLogger(FastDfu.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -160,8 +226,10 @@ public class FastDfu {
                     fast.update(true, false, dfuFile, true, copyAddr, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -183,7 +251,19 @@ public class FastDfu {
     }
 
     public boolean startUpdateResource(Context ctx, BluetoothDevice target, InputStream file, boolean useExtFlash, int rscStartAddress) {
-        if (ctx == null || target == null || file == null) return false;
+        return startUpdateResource(ctx, target, file, null, useExtFlash, rscStartAddress);
+    }
+
+    /**
+     * The file is loaded by caller, e.g. {@link DfuFile#load(java.io.File)} which reads a large image in chunks.
+     * The caller should close the file after the DFU is finished.
+     */
+    public boolean startUpdateResource(Context ctx, BluetoothDevice target, DfuFile file, boolean useExtFlash, int rscStartAddress) {
+        return startUpdateResource(ctx, target, null, file, useExtFlash, rscStartAddress);
+    }
+
+    private boolean startUpdateResource(Context ctx, BluetoothDevice target, InputStream file, DfuFile loadedFile, boolean useExtFlash, int rscStartAddress) {
+        if (ctx == null || target == null || (file == null && loadedFile == null)) return false;
 
         BlockingBle.setup(ctx);
 
@@ -193,15 +273,14 @@ public class FastDfu {
             @Override
             public void run() {
                 final DfuProgressListener listener = FastDfu.this.listenerWrapper;
+                final SessionMetrics metrics = new SessionMetrics();
+                metrics.start();
                 BlockingBle ble = null;
 
                 try {
-                    final DfuFile dfuFile = new DfuFile();
-                    dfuFile.load(file, true);
+                    final DfuFile dfuFile = loadDfuFile(file, loadedFile); // resource file has no ImgInfo
                     String errMsg = null;
-                    if (dfuFile.getData() == null) {
-                        errMsg = "Can't load resource file.";
-                    } else if (dfuFile.getData().length < 1) {
+                    if (dfuFile.getSize() < 1) {
                         errMsg = "Empty resource file.";
                     }
                     if (errMsg != null) {
@@ -214,6 +293,10 @@ public class FastDfu {
 
                     ble = new BlockingBle(target);
                     ble.setLogger(FastDfu.this.logger);
+                    ble.setMetrics(metrics);
+                    ble.setTracer(tracer);
+                    ble.setCapture(capture);
+                    ble.setPacketTracer(packetTracer);
 
                     ble.connect();
                     ble.discoverServices();
@@ -224,8 +307,10 @@ public class FastDfu {
                     fast.update(false, useExtFlash, dfuFile, false, rscStartAddress, listener);
                     Thread.sleep(200); /* waiting for the last cmd arrived */
 
+                    reportMetrics(metrics, null);
                     listener.onDfuComplete();
                 } catch (Throwable e) {
+                    reportMetrics(metrics, e);
                     listener.onDfuError(e.getMessage(), new Error(e));
                     e.printStackTrace();
                 } finally {
@@ -246,4 +331,21 @@ public class FastDfu {
         return true;
     }
 
+    private void reportMetrics(SessionMetrics metrics, Throwable error) {
+        metrics.finish(error);
+        final ILogger logger = this.logger;
+        if (logger != null) {
+            logger.i(TAG, metrics.toString());
+        }
+        listenerWrapper.onDfuMetrics(metrics);
+    }
+
+    private static DfuFile loadDfuFile(InputStream file, DfuFile loadedFile) {
+        if (loadedFile != null) {
+            return loadedFile;
+        }
+        final DfuFile dfuFile = new DfuFile();
+        dfuFile.load(file, true);
+        return dfuFile;
+    }
 }
@@ -35,7 +35,13 @@ import android.bluetooth.BluetoothGattService;
 
 import com.goodix.ble.gr.lib.com.DataProgressListener;
 import com.goodix.ble.gr.lib.com.HexSerializer;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
 import com.goodix.ble.gr.lib.com.ble.BlockingBle;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.dfu.v2.BleDfuTransport;
+import com.goodix.ble.gr.lib.dfu.v2.DfuTransport;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuDataSource;
+import com.goodix.ble.gr.lib.dfu.v2.utils.MiscUtils;
 
 import java.util.List;
 import java.util.UUID;
@@ -48,6 +54,7 @@ public class FastDfuProfile {
 
     protected long defaultTimeout = 3000;
     protected BlockingBle ble = null;
+    protected DfuTransport transport = null;
     protected boolean isAppBootloaderSolution = false;
     protected int dfuProtocolVersion = 0;
     protected final HexSerializer rcvCmdBuf = new HexSerializer(0);
@@ -56,6 +63,9 @@ public class FastDfuProfile {
     BluetoothGattCharacteristic cmdChr;
     BluetoothGattCharacteristic datChr;
 
+    // used to trace the phases
+    private final long[] phaseBeginTime = new long[SessionMetrics.PHASE_COUNT];
+
     synchronized public void bindTo(BlockingBle ble) throws Throwable {
         if (ble == null) {
             throw new Error("bindTo(null)");
@@ -92,6 +102,82 @@ public class FastDfuProfile {
         }
 
         ble.enableNotification(cmdChr, true);
+
+        this.transport = new BleDfuTransport(ble)
+                .setChannel(DfuTransport.CHANNEL_CMD, cmdChr, cmdChr)
+                .setChannel(DfuTransport.CHANNEL_DAT, datChr, null);
+    }
+
+    /**
+     * Bind to a link other than BLE, e.g. a simulated peer.
+     */
+    synchronized public void bindTo(DfuTransport transport) {
+        if (transport == null) {
+            throw new Error("bindTo(null)");
+        }
+
+        if (!transport.isConnected()) {
+            throw new Error("The device is not connected. Please connect and try again.");
+        }
+
+        this.ble = null;
+        this.fastDfuSvc = null;
+        this.cmdChr = null;
+        this.datChr = null;
+        this.transport = transport;
+    }
+
+    public synchronized DfuTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the metrics of the bound connection, or null.
+     */
+    public SessionMetrics getMetrics() {
+        final DfuTransport transport = this.transport;
+        return transport != null ? transport.getMetrics() : null;
+    }
+
+    /**
+     * @return the tracer of the bound connection, or null.
+     */
+    public TraceRecorder getTracer() {
+        final DfuTransport transport = this.transport;
+        return transport != null ? transport.getTracer() : null;
+    }
+
+    protected void beginPhase(int phase) {
+        final SessionMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.beginPhase(phase);
+        }
+        if (phaseBeginTime[phase] == 0) {
+            phaseBeginTime[phase] = System.nanoTime();
+        }
+    }
+
+    protected void endPhase(int phase) {
+        final SessionMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.endPhase(phase);
+        }
+        final long beginTime = phaseBeginTime[phase];
+        if (beginTime != 0) {
+            phaseBeginTime[phase] = 0;
+            final TraceRecorder tracer = getTracer();
+            if (tracer != null) {
+                tracer.complete(TraceRecorder.CAT_DFU, SessionMetrics.getPhaseName(phase), beginTime, 0);
+            }
+        }
+    }
+
+    protected void endOpenPhases() {
+        for (int phase = 0; phase < phaseBeginTime.length; phase++) {
+            if (phaseBeginTime[phase] != 0) {
+                endPhase(phase);
+            }
+        }
     }
 
     public void sendDat(byte[] dat, DataProgressListener listener) throws Throwable {
@@ -99,19 +185,28 @@ public class FastDfuProfile {
             return;
         }
 
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("sendDat(): please call bindTo() firstly.");
         }
 
-        final int properties = datChr.getProperties();
-        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-            ble.writeChrWithoutResponse(datChr, defaultTimeout, dat, 0, dat.length, listener);
-        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
-            ble.writeChrWithResponse(datChr, defaultTimeout, dat, 0, dat.length, listener);
-        } else {
-            throw new Error("sendDat(): DAT<" + datChr.getUuid().toString() + "> is not writable. Properties = " + properties);
+        transport.write(DfuTransport.CHANNEL_DAT, defaultTimeout, dat, 0, dat.length, listener);
+    }
+
+    /**
+     * Send the data source. It is read in chunks if it is not in heap.
+     */
+    public void sendDat(DfuDataSource src, DataProgressListener listener) throws Throwable {
+        if (src == null) {
+            return;
         }
+
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
+            throw new Error("sendDat(): please call bindTo() firstly.");
+        }
+
+        MiscUtils.write(transport, DfuTransport.CHANNEL_DAT, defaultTimeout, src, listener);
     }
 
     public void sendCmd(byte[] cmd) throws Throwable {
@@ -119,28 +214,26 @@ public class FastDfuProfile {
             return;
         }
 
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("sendCmd(): please call bindTo() firstly.");
         }
 
-        final int properties = cmdChr.getProperties();
-        if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) {
-            ble.writeChrWithoutResponse(cmdChr, defaultTimeout, cmd, 0, cmd.length, null);
-        } else if (0 != (properties & BluetoothGattCharacteristic.PROPERTY_WRITE)) {
-            ble.writeChrWithResponse(cmdChr, defaultTimeout, cmd, 0, cmd.length, null);
-        } else {
-            throw new Error("sendCmd(): CMD<" + cmdChr.getUuid().toString() + "> is not writable. Properties = " + properties);
-        }
+        transport.write(DfuTransport.CHANNEL_CMD, defaultTimeout, cmd, 0, cmd.length, null);
     }
 
     public HexSerializer waitAck() throws Throwable {
-        final BlockingBle ble = this.ble;
-        if (ble == null) {
+        final DfuTransport transport = this.transport;
+        if (transport == null) {
             throw new Error("waitAck(): please call bindTo() firstly.");
         }
 
-        final byte[] chunk = ble.readNtf(this.cmdChr, defaultTimeout);
+        final long startTime = System.nanoTime();
+        final byte[] chunk = transport.readNtf(DfuTransport.CHANNEL_CMD, defaultTimeout);
+        final TraceRecorder tracer = transport.getTracer();
+        if (tracer != null) {
+            tracer.complete(TraceRecorder.CAT_DFU, "waitAck", startTime, chunk != null ? chunk.length : 0);
+        }
 
         if (chunk != null) {
             rcvCmdBuf.setBuffer(chunk);
@@ -34,6 +34,8 @@ import com.goodix.ble.gr.lib.com.DataProgressListener;
 import com.goodix.ble.gr.lib.com.HexSerializer;
 import com.goodix.ble.gr.lib.com.HexString;
 import com.goodix.ble.gr.lib.com.ILogger;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
 import com.goodix.ble.gr.lib.dfu.v2.DfuProgressListener;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.BootInfo;
 import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
@@ -117,6 +119,10 @@ public class GR5xxxFastDfu extends FastDfuProfile {
                     if (listener != null) {
                         listener.onDfuProgress(100 * erasedSectorCnt / eraseSectorNum, 0, "Erasing...");
                     }
+                    final TraceRecorder tracer = getTracer();
+                    if (tracer != null) {
+                        tracer.counter(TraceRecorder.CAT_DFU, "erasedSectors", erasedSectorCnt);
+                    }
                     break;
                 case 0x03:
                     if (logger != null) logger.d(TAG, "eraseFlash(): Complete.");
@@ -154,25 +160,24 @@ public class GR5xxxFastDfu extends FastDfuProfile {
             logger.d(TAG, "programFlash() called with: fastDfuVersion = [" + fastDfuVersion + "], dfuFile = [" + dfuFile + "], bufferSize = [" + bufferSize + "], listener = [" + listener + "]");
         }
 
-        final byte[] fileData = dfuFile.getData();
         if (fastDfuVersion >= 3) {
             //发送全部数据
             if (listener != null) {
-                sendDat(fileData, new DataProgressListener() {
+                sendDat(dfuFile.getDataSource(), new DataProgressListener() {
                     @Override
                     public void onDataProcessed(Object data, int processedBytes, int totalBytes, long intervalTime, long totalTime) {
                         listener.onDfuProgress(100 * processedBytes / totalBytes, (int) (processedBytes * 1000L / totalTime), "Program flash...");
                     }
                 });
             } else {
-                sendDat(fileData, null);
+                sendDat(dfuFile.getDataSource(), null);
             }
 
             //编码+发送
             new Cmd(CmdOpcode.FLUSH_FLASH).sendCmd();
 
         } else {
-            final int totalSize = fileData.length;
+            final int totalSize = dfuFile.getSize();
             final long startTime = System.currentTimeMillis();
             int pos = 0;
             byte[] buf = new byte[bufferSize];
@@ -186,7 +191,9 @@ public class GR5xxxFastDfu extends FastDfuProfile {
                 }
 
                 // copy data
-                System.arraycopy(fileData, pos, buf, 0, blockSize);
+                if (dfuFile.readData(pos, buf, 0, blockSize) != blockSize) {
+                    throw new Error("programFlash(): Failed to read data at " + pos);
+                }
                 sendDat(buf, null);
 
                 pos += blockSize;
@@ -215,6 +222,11 @@ public class GR5xxxFastDfu extends FastDfuProfile {
             //编码+发送
             new Cmd(CmdOpcode.FLUSH_FLASH).sendCmd();
         }
+
+        final SessionMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.onPayloadProgrammed(dfuFile.getSize());
+        }
     }
 
 
@@ -247,7 +259,7 @@ public class GR5xxxFastDfu extends FastDfuProfile {
             cmd = new Cmd(CmdOpcode.START_COPY, 40 + 4 + 4);
             dfuFile.getImgInfo().writeToData(cmd);
             cmd.putParam(4, copyAddress);
-            cmd.putParam(4, dfuFile.getData().length);
+            cmd.putParam(4, dfuFile.getSize());
         } else {
             cmd = new Cmd(CmdOpcode.WRITE_BOOT, 40);
             dfuFile.getImgInfo().writeToData(cmd);
@@ -262,7 +274,7 @@ public class GR5xxxFastDfu extends FastDfuProfile {
             logger.d(TAG, "update() called with: updateFw = [" + updateFw + "], toExtFlash = [" + toExtFlash + "], fwFile = [" + fwFile + "], useCopyMode = [" + useCopyMode + "], writeAddress = [" + writeAddress + "], listener = [" + listener + "]");
         }
 
-        final int fileSize = fwFile.getData().length;
+        final int fileSize = fwFile.getSize();
 
         if (updateFw) {
             toExtFlash = false; // ignored if update firmware.
@@ -284,36 +296,50 @@ public class GR5xxxFastDfu extends FastDfuProfile {
             }
         }
 
-        if (listener != null) {
-            listener.onDfuProgress(0, 0, "Get version");
-        }
-        final int fastDfuVersion = getFastDfuVersion();
+        try {
+            beginPhase(SessionMetrics.PHASE_PREFLIGHT);
+            if (listener != null) {
+                listener.onDfuProgress(0, 0, "Get version");
+            }
+            final int fastDfuVersion = getFastDfuVersion();
 
-        if (listener != null) {
-            listener.onDfuProgress(0, 0, "Get size of buffer");
-        }
-        final int bufferSize = getBufferSize(fastDfuVersion);
+            if (listener != null) {
+                listener.onDfuProgress(0, 0, "Get size of buffer");
+            }
+            final int bufferSize = getBufferSize(fastDfuVersion);
 
-        if (listener != null) {
-            if (updateFw) {
-                listener.onDfuProgress(0, 0, "Set flash type as inner-flash");
-            } else {
-                listener.onDfuProgress(0, 0, "Use Ext-flash: " + toExtFlash);
+            if (listener != null) {
+                if (updateFw) {
+                    listener.onDfuProgress(0, 0, "Set flash type as inner-flash");
+                } else {
+                    listener.onDfuProgress(0, 0, "Use Ext-flash: " + toExtFlash);
+                }
             }
-        }
-        setFlashType(toExtFlash);
+            setFlashType(toExtFlash);
+            endPhase(SessionMetrics.PHASE_PREFLIGHT);
 
-        eraseFlash(writeAddress, fileSize, listener);
+            beginPhase(SessionMetrics.PHASE_ERASE);
+            eraseFlash(writeAddress, fileSize, listener);
+            endPhase(SessionMetrics.PHASE_ERASE);
 
-        programFlash(fastDfuVersion, fwFile, bufferSize, listener);
+            beginPhase(SessionMetrics.PHASE_PROGRAM);
+            programFlash(fastDfuVersion, fwFile, bufferSize, listener);
+            endPhase(SessionMetrics.PHASE_PROGRAM);
 
-        // compat GR5515 SDK V1.6.12. JIRA: https://jira.goodix.com/browse/BALPRO-3092
-        Thread.sleep(200);
+            beginPhase(SessionMetrics.PHASE_VERIFY);
+            // compat GR5515 SDK V1.6.12. JIRA: https://jira.goodix.com/browse/BALPRO-3092
+            Thread.sleep(200);
 
-        verifyChecksum(fwFile);
+            verifyChecksum(fwFile);
+            endPhase(SessionMetrics.PHASE_VERIFY);
 
-        if (updateFw) {
-            reboot(fwFile, useCopyMode, writeAddress);
+            if (updateFw) {
+                beginPhase(SessionMetrics.PHASE_REBOOT);
+                reboot(fwFile, useCopyMode, writeAddress);
+                endPhase(SessionMetrics.PHASE_REBOOT);
+            }
+        } finally {
+            endOpenPhases(); // if a step has failed
         }
     }
 
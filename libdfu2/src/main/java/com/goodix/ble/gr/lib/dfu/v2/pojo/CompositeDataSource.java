@@ -0,0 +1,130 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.pojo;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Concatenate several data sources into one region. The gaps between them are filled.
+ * The parts must be added in order and must not overlap.
+ */
+public class CompositeDataSource implements DfuDataSource {
+    private DfuDataSource[] parts = new DfuDataSource[4];
+    private int[] partPositions = new int[4];
+    private int partCount = 0;
+    private int size = 0;
+    private final byte filler;
+
+    /**
+     * @param filler the value for gaps, e.g. 0xFF which is the value of erased flash.
+     */
+    public CompositeDataSource(int filler) {
+        this.filler = (byte) filler;
+    }
+
+    /**
+     * @param pos position of the part in this region. It must not be less than current size.
+     */
+    public CompositeDataSource add(int pos, DfuDataSource part) {
+        if (part == null) {
+            throw new Error("add(): part is null.");
+        }
+        if (pos < size) {
+            throw new Error("add(): The part at " + pos + " overlaps the previous one which ends at " + size);
+        }
+        if (partCount == parts.length) {
+            parts = Arrays.copyOf(parts, partCount * 2);
+            partPositions = Arrays.copyOf(partPositions, partCount * 2);
+        }
+        parts[partCount] = part;
+        partPositions[partCount] = pos;
+        partCount++;
+        size = pos + part.getSize();
+        return this;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int read(int pos, byte[] out, int offset, int size) throws IOException {
+        if (pos < 0 || pos >= this.size || size < 1) {
+            return 0;
+        }
+        if (pos + size > this.size) {
+            size = this.size - pos;
+        }
+
+        final int endPos = pos + size;
+        int curPos = pos;
+        for (int i = 0; i < partCount && curPos < endPos; i++) {
+            final int partStart = partPositions[i];
+            final int partEnd = partStart + parts[i].getSize();
+            if (partEnd <= curPos) {
+                continue;
+            }
+            // gap before the part
+            if (curPos < partStart) {
+                final int gapEnd = Math.min(partStart, endPos);
+                Arrays.fill(out, offset + curPos - pos, offset + gapEnd - pos, filler);
+                curPos = gapEnd;
+            }
+            // the part
+            final int copyEnd = Math.min(partEnd, endPos);
+            while (curPos < copyEnd) {
+                final int ret = parts[i].read(curPos - partStart, out, offset + curPos - pos, copyEnd - curPos);
+                if (ret < 1) {
+                    return curPos - pos;
+                }
+                curPos += ret;
+            }
+        }
+        return curPos - pos;
+    }
+
+    @Override
+    public byte[] array() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < partCount; i++) {
+            parts[i].close();
+        }
+    }
+}
@@ -32,24 +32,98 @@ package com.goodix.ble.gr.lib.dfu.v2.pojo;
 
 import com.goodix.ble.gr.lib.com.HexSerializer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public class DfuFile {
+    // size of chunk for reading the data source
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // ImgInfo is at the end of file, and it may be followed by the signature.
+    private static final int IMG_INFO_TAIL_SIZE = 48;
+    private static final int SIGNATURE_SIZE = 856;
+
     private byte[] data;
+    private DfuDataSource source;
     private ImgInfo imgInfo;
     private String lastError = "success";
     private int fileChecksum;
     private boolean encrypted = false;
     private boolean signed = false;
+    private boolean readonly = false;
+    // a view shares the data source of its owner, which is closed after the owner and all its views are closed.
+    private DfuFile owner = null;
+    private int refCount = 1; // guarded by this
+    private boolean closed = false; // guarded by this
 
+    /**
+     * Get the whole data in heap.
+     * If the file is loaded from a {@link DfuDataSource}, the data is read entirely.
+     * Use {@link #getSize()} and {@link #readData(int, byte[], int, int)} for large files instead.
+     * A read-only view returns a copy of the data for each call.
+     */
     public byte[] getData() {
+        if (owner != null) {
+            final byte[] shared = owner.getData();
+            return Arrays.copyOf(shared, shared.length);
+        }
+        if (data == null) {
+            final DfuDataSource source = this.source;
+            if (source != null) {
+                final byte[] tmp = new byte[source.getSize()];
+                try {
+                    if (readData(0, tmp, 0, tmp.length) == tmp.length) {
+                        data = tmp;
+                    }
+                } catch (IOException e) {
+                    lastError = e.getMessage();
+                    e.printStackTrace();
+                }
+            }
+        }
         if (data == null) {
             data = new byte[0];
         }
         return data;
     }
 
+    public int getSize() {
+        final DfuDataSource source = this.source;
+        if (source != null) {
+            return source.getSize();
+        }
+        return data != null ? data.length : 0;
+    }
+
+    /**
+     * @return the source of data. It is never null.
+     */
+    public DfuDataSource getDataSource() {
+        if (source == null) {
+            source = new ByteArrayDataSource(getData());
+        }
+        return source;
+    }
+
+    /**
+     * Read a chunk of data. It is filled fully unless the end of file is reached.
+     *
+     * @return the count of read bytes.
+     */
+    public int readData(int pos, byte[] out, int offset, int size) throws IOException {
+        final DfuDataSource source = getDataSource();
+        int readSize = 0;
+        while (readSize < size) {
+            final int ret = source.read(pos + readSize, out, offset + readSize, size - readSize);
+            if (ret < 1) {
+                break;
+            }
+            readSize += ret;
+        }
+        return readSize;
+    }
+
     public ImgInfo getImgInfo() {
         return imgInfo;
     }
@@ -74,22 +148,140 @@ public class DfuFile {
         return signed;
     }
 
+    public boolean isReadOnly() {
+        return readonly;
+    }
+
+    /**
+     * Create a view which can be shared by several sessions. The ImgInfo is copied.
+     * The data source is shared but can not be modified through the view, and it is released
+     * after this file and all its views are closed. So each view should be closed after use.
+     * The view can not be loaded again.
+     */
+    public DfuFile asReadOnly() {
+        final DfuFile owner = this.owner != null ? this.owner : this;
+        owner.retain();
+        final DfuFile view = new DfuFile();
+        view.owner = owner;
+        view.source = new ReadOnlyDataSource(owner.getDataSource());
+        if (this.imgInfo != null) {
+            view.imgInfo = new ImgInfo().copy(this.imgInfo);
+        }
+        view.lastError = this.lastError;
+        view.fileChecksum = this.fileChecksum;
+        view.encrypted = this.encrypted;
+        view.signed = this.signed;
+        view.readonly = true;
+        return view;
+    }
+
+    /**
+     * Release the data source, or release the reference of a read-only view to it.
+     * The source is closed when the file and all its views are closed.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (owner != null) {
+            owner.release();
+        } else {
+            release();
+        }
+    }
+
+    private synchronized void retain() {
+        if (refCount < 1) {
+            throw new Error("asReadOnly(): The file is closed.");
+        }
+        refCount++;
+    }
+
+    private void release() {
+        synchronized (this) {
+            if (--refCount > 0) {
+                return;
+            }
+        }
+        final DfuDataSource source = this.source;
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Let the views read the shared source without exposing its array.
+     */
+    private static class ReadOnlyDataSource implements DfuDataSource {
+        private final DfuDataSource source;
+
+        ReadOnlyDataSource(DfuDataSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int getSize() {
+            return source.getSize();
+        }
+
+        @Override
+        public int read(int pos, byte[] out, int offset, int size) throws IOException {
+            return source.read(pos, out, offset, size);
+        }
+
+        @Override
+        public byte[] array() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            // released by DfuFile.close()
+        }
+    }
+
+    /**
+     * The stream is read until its end. Its available() is not used because it is unreliable for content URIs and network streams.
+     * The whole data is kept in heap. For large files, {@link #load(File)} is preferred.
+     */
     public boolean load(InputStream in, boolean closeStream) {
+        if (readonly) {
+            lastError = "The file is read-only";
+            return false;
+        }
         if (in == null) {
             lastError = "Input is null";
             return false;
         }
 
         try {
-            int fileSize = in.available();
-            if (fileSize > 0) {
-                data = new byte[fileSize];
-                int readLen = in.read(data);
-                if (readLen == fileSize) {
-                    return load(data);
-                } else {
-                    lastError = "Can't load all data from stream";
+            byte[] buf = new byte[CHUNK_SIZE];
+            int size = 0;
+            while (true) {
+                if (size == buf.length) {
+                    // check the end of stream before growing the buffer
+                    final int b = in.read();
+                    if (b < 0) {
+                        break;
+                    }
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    buf[size++] = (byte) b;
+                }
+                final int readLen = in.read(buf, size, buf.length - size);
+                if (readLen < 0) {
+                    break;
                 }
+                size += readLen;
+            }
+            if (size > 0) {
+                return load(size == buf.length ? buf : Arrays.copyOf(buf, size));
             } else {
                 lastError = "Input size is zero";
             }
@@ -108,49 +300,140 @@ public class DfuFile {
         return false;
     }
 
+    /**
+     * Read the file in chunks. It is kept open until {@link #close()} is called, even if it is not a valid DFU file,
+     * because a resource file has no ImgInfo.
+     */
+    public boolean load(File file) {
+        if (readonly) {
+            lastError = "The file is read-only";
+            return false;
+        }
+        if (file == null) {
+            lastError = "load(null)";
+            return false;
+        }
+
+        try {
+            return load(new FileDataSource(file));
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     public boolean load(byte[] dat) {
         if (dat == null) {
             lastError = "load(null)";
             return false;
         }
 
+        if (readonly) {
+            lastError = "The file is read-only";
+            return false;
+        }
+
+        final boolean ret = load(new ByteArrayDataSource(dat));
+        data = dat;
+        return ret;
+    }
+
+    /**
+     * The checksum is calculated while reading the source in chunks, and only the tail is read for ImgInfo.
+     */
+    public boolean load(DfuDataSource src) {
+        if (readonly) {
+            lastError = "The file is read-only";
+            return false;
+        }
+        if (src == null) {
+            lastError = "load(null)";
+            return false;
+        }
+        synchronized (this) {
+            if (refCount > 1) {
+                lastError = "The file is shared by views";
+                return false;
+            }
+            refCount = 1;
+            closed = false;
+        }
+
         imgInfo = null; // 最后用于判断是否是有效的DFU文件
         encrypted = false;
         signed = false;
+        data = null;
+        source = src;
 
-        int fileSize = dat.length;
+        int fileSize = src.getSize();
         if (fileSize > 0) {
-            data = dat;
-            // 计算校验和
-            fileChecksum = 0;
-            for (int i = 0; i < fileSize; i++) {
-                fileChecksum += 0xFF & data[i];
-            }
-            // 读取 ImgInfo 先按未加密的读取，不行再按加密的读取
-            HexSerializer reader = new HexSerializer(data);
-            reader.setPos(fileSize - 48);
-            if (reader.get(2) == 0x4744) {
-                reader.setPos(fileSize - 48);
-            } else {
-                reader.setPos(fileSize - 48 - 856);
-                if (reader.get(2) == 0x4744) {
-                    encrypted = true;
-                    signed = true;
-                    // 进一步判断是否加密
-                    reader.setPos(fileSize - (256 + 520 + 8)); // 定位到reserved区域
-                    int rsv = reader.get(4);
-                    if (rsv == 0x4E474953) {
-                        encrypted = false; // 仅加签未加密
+            try {
+                // 计算校验和
+                fileChecksum = 0;
+                final byte[] array = src.array();
+                if (array != null) {
+                    fileChecksum = HexSerializer.calcChecksum(array, 0, fileSize);
+                } else {
+                    final byte[] chunk = new byte[Math.min(CHUNK_SIZE, fileSize)];
+                    int pos = 0;
+                    while (pos < fileSize) {
+                        final int readSize = readData(pos, chunk, 0, Math.min(chunk.length, fileSize - pos));
+                        if (readSize < 1) {
+                            lastError = "Can't load all data from source";
+                            return false;
+                        }
+                        fileChecksum += HexSerializer.calcChecksum(chunk, 0, readSize);
+                        pos += readSize;
+                    }
+                }
+
+                // 只读取文件末尾
+                final int tailSize = Math.min(fileSize, IMG_INFO_TAIL_SIZE + SIGNATURE_SIZE);
+                final int tailPos = fileSize - tailSize;
+                final byte[] tail;
+                final int tailOffset;
+                if (array != null) {
+                    tail = array;
+                    tailOffset = tailPos;
+                } else {
+                    tail = new byte[tailSize];
+                    tailOffset = 0;
+                    if (readData(tailPos, tail, 0, tailSize) != tailSize) {
+                        lastError = "Can't load the tail of file";
+                        return false;
                     }
-                    reader.setPos(fileSize - 48 - 856);
+                }
+                // 读取 ImgInfo 先按未加密的读取，不行再按加密的读取
+                HexSerializer reader = new HexSerializer(tail);
+                reader.setRange(tailOffset, tailSize);
+                reader.setPos(tailSize - 48);
+                if (reader.get(2) == 0x4744) {
+                    reader.setPos(tailSize - 48);
                 } else {
-                    lastError = "Can't find image information data";
-                    return false;
+                    reader.setPos(tailSize - 48 - 856);
+                    if (reader.get(2) == 0x4744) {
+                        encrypted = true;
+                        signed = true;
+                        // 进一步判断是否加密
+                        reader.setPos(tailSize - (256 + 520 + 8)); // 定位到reserved区域
+                        int rsv = reader.get(4);
+                        if (rsv == 0x4E474953) {
+                            encrypted = false; // 仅加签未加密
+                        }
+                        reader.setPos(tailSize - 48 - 856);
+                    } else {
+                        lastError = "Can't find image information data";
+                        return false;
+                    }
                 }
+                imgInfo = new ImgInfo();
+                imgInfo.readFromData(reader);
+                return true;
+            } catch (IOException e) {
+                lastError = e.getMessage();
+                e.printStackTrace();
             }
-            imgInfo = new ImgInfo();
-            imgInfo.readFromData(reader);
-            return true;
         } else {
             lastError = "Input size is zero";
         }
@@ -0,0 +1,244 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+
+package com.goodix.ble.gr.lib.dfu.v2.pojo;
+
+import com.goodix.ble.gr.lib.com.HexString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of parsed DFU files, so that the same image is not read and parsed again for every DFU.
+ * <p>
+ * The key could be the URI of file or {@link #contentKey(byte[])}. The least recently used files are
+ * evicted when the total size exceeds the budget. Read-only views are returned, which can be shared by sessions.
+ * Each view should be closed after use. The file of an evicted entry is closed after all its views are closed:
+ * <pre>
+ * easyDfu.startDfu(ctx, device, cache, uri.toString(), () -> contentResolver.openInputStream(uri));
+ * </pre>
+ */
+@SuppressWarnings("unused")
+public class DfuFileCache {
+    public interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
+    private final long budget;
+    private final LinkedHashMap<String, DfuFile> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes = 0;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long loadFailureCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param budget the max total size of cached files in bytes.
+     */
+    public DfuFileCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return a read-only view of the cached file, or null if it is not cached.
+     */
+    public DfuFile get(String key) {
+        synchronized (this) {
+            final DfuFile file = files.get(key);
+            if (file != null) {
+                hitCount++;
+                return file.asReadOnly();
+            }
+            missCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Get the cached file, or load it from the stream if it is missing.
+     * The stream is closed after loading. A resource file without ImgInfo can be cached too.
+     *
+     * @return a read-only view, or null if the stream could not be read.
+     */
+    public DfuFile get(String key, StreamOpener opener) {
+        final DfuFile cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // load without the lock, so that other files can be accessed meanwhile.
+        final DfuFile file = new DfuFile();
+        try {
+            file.load(opener.open(), true);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (file.getSize() < 1) {
+            synchronized (this) {
+                loadFailureCount++;
+            }
+            return null;
+        }
+        return put(key, file);
+    }
+
+    /**
+     * Cache the file. It should not be used by the caller later except through the returned view.
+     * If the key has been cached by another thread, the existing one is kept.
+     *
+     * @return a read-only view of the cached file.
+     */
+    public DfuFile put(String key, DfuFile file) {
+        if (key == null || file == null) {
+            throw new Error("put(): key and file are required.");
+        }
+
+        final long size = file.getSize();
+        final DfuFile view;
+        synchronized (this) {
+            final DfuFile exist = files.get(key);
+            if (exist != null) {
+                if (exist != file) {
+                    file.close();
+                }
+                return exist.asReadOnly();
+            }
+
+            view = file.asReadOnly();
+            if (size > budget) {
+                // too large to be cached, but it can be used once, and it is released with the view.
+                file.close();
+                return view;
+            }
+
+            files.put(key, file);
+            usedBytes += size;
+            trimToBudget();
+        }
+        return view;
+    }
+
+    public synchronized void remove(String key) {
+        final DfuFile file = files.remove(key);
+        if (file != null) {
+            usedBytes -= file.getSize();
+            file.close();
+        }
+    }
+
+    public synchronized void clear() {
+        for (DfuFile file : files.values()) {
+            file.close();
+        }
+        files.clear();
+        usedBytes = 0;
+    }
+
+    private void trimToBudget() {
+        final Iterator<Map.Entry<String, DfuFile>> it = files.entrySet().iterator();
+        while (usedBytes > budget && it.hasNext()) {
+            final DfuFile eldest = it.next().getValue();
+            it.remove();
+            usedBytes -= eldest.getSize();
+            eldest.close();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * @return SHA-256 of the content in hex, which can be used as the key.
+     */
+    public static String contentKey(byte[] content) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexString.toHexString(digest.digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error("contentKey(): SHA-256 is not supported.", e);
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized float getHitRate() {
+        final long total = hitCount + missCount;
+        return total > 0 ? (float) hitCount / total : 0f;
+    }
+
+    public synchronized void resetMetrics() {
+        hitCount = 0;
+        missCount = 0;
+        loadFailureCount = 0;
+        evictionCount = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DfuFileCache{" +
+                "files=" + files.size() +
+                ", usedBytes=" + usedBytes +
+                ", budget=" + budget +
+                ", hit=" + hitCount +
+                ", miss=" + missCount +
+                ", eviction=" + evictionCount +
+                '}';
+    }
+}
@@ -0,0 +1,136 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.pojo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read a DFU file through {@link FileChannel}. Only the requested chunk is loaded into heap.
+ * <p>
+ * The file can also be memory-mapped, which avoids a system call for each chunk.
+ * Positional reads are used, so one instance can be shared by several readers.
+ */
+public class FileDataSource implements DfuDataSource {
+    private final FileChannel channel;
+    private final Closeable owner;
+    private final int size;
+    private final MappedByteBuffer mappedBuffer;
+
+    public FileDataSource(File file) throws IOException {
+        this(file, false);
+    }
+
+    public FileDataSource(File file, boolean memoryMapped) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            this.channel = in.getChannel();
+            this.owner = in;
+            this.size = checkSize(channel.size());
+            this.mappedBuffer = memoryMapped ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param owner it is closed with this data source. It could be null, and then the channel is closed.
+     */
+    public FileDataSource(FileChannel channel, Closeable owner, boolean memoryMapped) throws IOException {
+        if (channel == null) {
+            throw new IOException("channel is null");
+        }
+        this.channel = channel;
+        this.owner = owner != null ? owner : channel;
+        this.size = checkSize(channel.size());
+        this.mappedBuffer = memoryMapped ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+    }
+
+    private static int checkSize(long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File is too large: " + size);
+        }
+        return (int) size;
+    }
+
+    public boolean isMemoryMapped() {
+        return mappedBuffer != null;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public int read(int pos, byte[] out, int offset, int size) throws IOException {
+        if (pos < 0 || pos >= this.size || size < 1) {
+            return 0;
+        }
+        if (pos + size > this.size) {
+            size = this.size - pos;
+        }
+
+        if (mappedBuffer != null) {
+            // a view is required because the position of buffer is shared.
+            final ByteBuffer view = mappedBuffer.duplicate();
+            view.position(pos);
+            view.get(out, offset, size);
+            return size;
+        }
+
+        final ByteBuffer dst = ByteBuffer.wrap(out, offset, size);
+        int readSize = 0;
+        while (readSize < size) {
+            final int ret = channel.read(dst, pos + readSize);
+            if (ret < 0) {
+                break;
+            }
+            readSize += ret;
+        }
+        return readSize;
+    }
+
+    @Override
+    public byte[] array() {
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        owner.close();
+    }
+}
@@ -30,9 +30,51 @@
 
 package com.goodix.ble.gr.lib.dfu.v2.utils;
 
+import com.goodix.ble.gr.lib.com.DataProgressListener;
 import com.goodix.ble.gr.lib.com.HexString;
+import com.goodix.ble.gr.lib.dfu.v2.DfuTransport;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuDataSource;
 
 public class MiscUtils {
+    // max size of chunk for streaming a data source
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Write the whole data source to the channel.
+     * If the data is not in heap, it is read in chunks. The size of chunk is a multiple of the packet size,
+     * so that the packets on air are the same as writing the data at once.
+     */
+    static public void write(DfuTransport transport, int channel, long timeout, DfuDataSource src, DataProgressListener listener) throws Throwable {
+        final byte[] array = src.array();
+        if (array != null) {
+            transport.write(channel, timeout, array, 0, array.length, listener);
+            return;
+        }
+
+        final int totalSize = src.getSize();
+        final int packetSize = Math.max(transport.getMtu() - 3, 1);
+        final byte[] chunk = new byte[Math.max(STREAM_CHUNK_SIZE / packetSize, 1) * packetSize];
+        final long startTime = System.currentTimeMillis();
+
+        int pos = 0;
+        while (pos < totalSize) {
+            final int readSize = src.read(pos, chunk, 0, Math.min(chunk.length, totalSize - pos));
+            if (readSize < 1) {
+                throw new Error("write(): Failed to read data at " + pos);
+            }
+
+            final int chunkPos = pos;
+            final DataProgressListener chunkListener = listener == null ? null : new DataProgressListener() {
+                @Override
+                public void onDataProcessed(Object data, int processedBytes, int totalBytes, long intervalTime, long totalTime) {
+                    listener.onDataProcessed(src, chunkPos + processedBytes, totalSize, intervalTime, System.currentTimeMillis() - startTime);
+                }
+            };
+            transport.write(channel, timeout, chunk, 0, readSize, chunkListener);
+            pos += readSize;
+        }
+    }
+
     static public StringBuilder appendOverlapInfo(StringBuilder out, int addr, int size) {
         out.append("<0x");
         HexString.toHexString(addr, 4, true, null, out);
@@ -0,0 +1,225 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import com.goodix.ble.gr.lib.dfu.v2.fastdfu.GR5xxxFastDfu;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedFastDfuPeer;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedGR5xxx;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedLink;
+import com.goodix.ble.gr.lib.dfu.v2.sim.ThroughputReport;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sweep image size, MTU, segment size, connection interval and packet loss for every way to update.
+ * <p>
+ * A quick matrix runs with the unit tests. The full matrix runs with {@code -Ddfu.benchmark=full}.
+ * The report is written to {@code build/reports/dfu-benchmark}. With {@code -Ddfu.benchmark.baseline=<csv>},
+ * the test fails if the throughput of any case drops more than {@link #TOLERANCE} from the baseline.
+ */
+public class DfuThroughputBenchmark {
+    private static final String TOOL_FW = "dfu2";
+    private static final String TOOL_FW_FAST = "dfu2-fast";
+    private static final String TOOL_RES = "dfu2-res";
+    private static final String TOOL_RES_FAST = "dfu2-res-fast";
+    private static final String TOOL_FAST_DFU = "fast-dfu";
+
+    private static final int LOAD_ADDRESS = 0x0022_0000;
+    // in the external flash, beyond the SCA and bootloader which are also checked
+    private static final int RESOURCE_ADDRESS = 0x0100_0000;
+    private static final int PACKETS_PER_EVENT = 6;
+    private static final double TOLERANCE = 0.02;
+
+    private static class Case {
+        final String tool;
+        final int imageSize;
+        final int mtu;
+        final int segmentSize;
+        final double interval;
+        final double lossRate;
+
+        Case(String tool, int imageSize, int mtu, int segmentSize, double interval, double lossRate) {
+            this.tool = tool;
+            this.imageSize = imageSize;
+            this.mtu = mtu;
+            this.segmentSize = segmentSize;
+            this.interval = interval;
+            this.lossRate = lossRate;
+        }
+
+        String name() {
+            return String.format(Locale.US, "%s/%dK/mtu%d/seg%d/%.1fms/loss%.3f", tool, imageSize / 1024, mtu, segmentSize, interval, lossRate);
+        }
+    }
+
+    private static List<Case> buildMatrix(boolean full) {
+        final int[] imageSizes = full ? new int[]{64 * 1024, 1024 * 1024, 16 * 1024 * 1024} : new int[]{64 * 1024};
+        final int[] mtuList = full ? new int[]{23, 128, 247} : new int[]{23, 247};
+        final int[] segmentSizes = full ? new int[]{256, 1024, 4096} : new int[]{1024};
+        final double[] intervals = full ? new double[]{7.5, 30} : new double[]{15};
+        final double[] lossRates = full ? new double[]{0, 0.02} : new double[]{0, 0.02};
+        final String[] tools = {TOOL_FW, TOOL_FW_FAST, TOOL_RES, TOOL_RES_FAST, TOOL_FAST_DFU};
+
+        final List<Case> matrix = new ArrayList<>();
+        for (String tool : tools) {
+            // the segment size only matters to the normal mode
+            final boolean segmented = tool.equals(TOOL_FW) || tool.equals(TOOL_RES);
+            for (int imageSize : imageSizes) {
+                for (int mtu : mtuList) {
+                    for (int segmentSize : segmented ? segmentSizes : new int[]{0}) {
+                        for (double interval : intervals) {
+                            for (double lossRate : lossRates) {
+                                matrix.add(new Case(tool, imageSize, mtu, segmentSize, interval, lossRate));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return matrix;
+    }
+
+    private static DfuFile buildFile(Case c) {
+        final DfuFile file = new DfuFile();
+        if (c.tool.equals(TOOL_RES) || c.tool.equals(TOOL_RES_FAST)) {
+            final byte[] dat = new byte[c.imageSize];
+            new Random(c.imageSize).nextBytes(dat);
+            file.load(dat); // false, a resource has no ImgInfo
+        } else {
+            // the image size includes the tail of ImgInfo
+            assertTrue(file.load(SimulatedGR5xxx.buildFirmware(LOAD_ADDRESS, c.imageSize - 48, c.imageSize)));
+        }
+        return file;
+    }
+
+    private static ThroughputReport.Row run(Case c, ThreadMXBean cpu) throws Throwable {
+        final DfuFile file = buildFile(c);
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedFastDfuPeer fastDfuChip = new SimulatedFastDfuPeer();
+        final boolean isFastDfu = c.tool.equals(TOOL_FAST_DFU);
+        final SimulatedLink link = new SimulatedLink(isFastDfu ? fastDfuChip : chip, c.name().hashCode())
+                .setMtu(c.mtu)
+                .setLatency(c.interval)
+                .setConnectionInterval(c.interval, PACKETS_PER_EVENT)
+                .setPacketLossRate(c.lossRate);
+
+        final long startCpu = cpu.getCurrentThreadCpuTime();
+        final long startTime = System.nanoTime();
+        int writeAddress = LOAD_ADDRESS;
+        if (isFastDfu) {
+            final GR5xxxFastDfu dfu = new GR5xxxFastDfu();
+            dfu.bindTo(link);
+            dfu.update(true, false, file, false, LOAD_ADDRESS, null);
+        } else {
+            final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+            dfu.bindTo(link, true);
+            if (c.segmentSize > 0) {
+                dfu.setSegmentSize(c.segmentSize);
+            }
+            switch (c.tool) {
+                case TOOL_FW:
+                case TOOL_FW_FAST:
+                    dfu.updateFirmware(c.tool.equals(TOOL_FW_FAST), file, LOAD_ADDRESS, null, null);
+                    break;
+                default:
+                    writeAddress = RESOURCE_ADDRESS;
+                    dfu.updateResource(true, c.tool.equals(TOOL_RES_FAST), file, writeAddress, null, null);
+                    break;
+            }
+            assertEquals(0, chip.getChecksumErrorCount());
+        }
+        final long hostTime = System.nanoTime() - startTime; // includes the real Thread.sleep() of the protocol
+        final long cpuTime = cpu.getCurrentThreadCpuTime() - startCpu;
+
+        final byte[] expected = new byte[file.getSize()];
+        file.readData(0, expected, 0, expected.length);
+        assertArrayEquals(c.name(), expected, (isFastDfu ? fastDfuChip.flash : chip.flash).read(writeAddress, expected.length));
+
+        final ThroughputReport.Row row = new ThroughputReport.Row();
+        row.name = c.name();
+        row.tool = c.tool;
+        row.imageSize = c.imageSize;
+        row.mtu = c.mtu;
+        row.segmentSize = c.segmentSize;
+        row.interval = c.interval;
+        row.lossRate = c.lossRate;
+        row.virtualTime = link.now() / 1e9;
+        row.throughput = file.getSize() / 1024.0 / row.virtualTime;
+        row.hostTime = hostTime / 1e6;
+        row.cpuPerByte = (double) cpuTime / file.getSize();
+        row.packets = link.getSentPacketCount();
+        row.retransmissions = link.getLostPacketCount();
+        row.timeouts = link.getTimeoutCount();
+        return row;
+    }
+
+    @Test
+    public void throughputMatrix() throws Throwable {
+        final boolean full = "full".equals(System.getProperty("dfu.benchmark"));
+        final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+        final ThroughputReport report = new ThroughputReport();
+
+        for (Case c : buildMatrix(full)) {
+            final ThroughputReport.Row row = run(c, cpu);
+            System.out.println(String.format(Locale.US, "%-50s %8.1f KB/s %8.1f ms (host %8.1f ms) %6.1f ns/B",
+                    row.name, row.throughput, row.virtualTime * 1e3, row.hostTime, row.cpuPerByte));
+            report.add(row);
+        }
+
+        final File dir = new File(System.getProperty("dfu.benchmark.output", "build/reports/dfu-benchmark"));
+        report.writeCsv(new File(dir, "results.csv"));
+        report.writeHtml(new File(dir, "results.html"), "DFU throughput (" + (full ? "full" : "quick") + ")");
+
+        final String baselinePath = System.getProperty("dfu.benchmark.baseline");
+        if (baselinePath != null) {
+            final HashMap<String, Double> baseline = ThroughputReport.readThroughput(new File(baselinePath));
+            final StringBuilder regressions = new StringBuilder();
+            for (ThroughputReport.Row row : report.rows) {
+                final Double expected = baseline.get(row.name);
+                if (expected != null && row.throughput < expected * (1 - TOLERANCE)) {
+                    regressions.append(String.format(Locale.US, "\n%s: %.1f KB/s, baseline %.1f KB/s", row.name, row.throughput, expected));
+                }
+            }
+            assertEquals("Throughput regressions:" + regressions, 0, regressions.length());
+        }
+    }
+}
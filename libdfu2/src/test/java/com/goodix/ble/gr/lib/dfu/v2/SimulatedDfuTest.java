@@ -0,0 +1,228 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2;
+
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.dfu.v2.fastdfu.GR5xxxFastDfu;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedFastDfuPeer;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedGR5xxx;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedLink;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run the whole update against a simulated chip. The time is virtual, so the throughput only depends on the link model.
+ */
+public class SimulatedDfuTest {
+    private static final int LOAD_ADDRESS = 0x0022_0000;
+    private static final int BIN_SIZE = 200 * 1024 + 123;
+
+    private static DfuFile loadFirmware() {
+        final DfuFile file = new DfuFile();
+        assertTrue(file.load(SimulatedGR5xxx.buildFirmware(LOAD_ADDRESS, BIN_SIZE, 1)));
+        return file;
+    }
+
+    private static void report(String name, DfuFile file, SimulatedLink link) {
+        final long elapsed = link.now();
+        System.out.println(String.format(Locale.US, "%s: %d bytes in %.3f s, %.1f KB/s, %d packets, %d retransmitted, %d timeouts",
+                name, file.getSize(), elapsed / 1e9, file.getSize() * 1e9 / 1024 / elapsed,
+                link.getSentPacketCount(), link.getLostPacketCount(), link.getTimeoutCount()));
+    }
+
+    private static void assertProgrammed(DfuFile file, byte[] flash) throws Exception {
+        final byte[] expected = new byte[file.getSize()];
+        file.readData(0, expected, 0, expected.length);
+        assertArrayEquals(expected, flash);
+    }
+
+    private SimulatedLink updateFirmware(boolean fastMode, double packetLossRate) throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedLink link = new SimulatedLink(chip, 42)
+                .setMtu(247)
+                .setLatency(15)
+                .setJitter(5)
+                .setPacketLossRate(packetLossRate);
+        final DfuFile file = loadFirmware();
+
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(link, true);
+        dfu.updateFirmware(fastMode, file, LOAD_ADDRESS, null, null);
+
+        assertEquals(0, chip.getChecksumErrorCount());
+        assertEquals(1, chip.getProgramEndCount());
+        assertProgrammed(file, chip.flash.read(LOAD_ADDRESS, file.getSize()));
+        return link;
+    }
+
+    @Test
+    public void updateFirmware() throws Throwable {
+        report("DFU v2", loadFirmware(), updateFirmware(false, 0));
+    }
+
+    @Test
+    public void updateFirmwareWithFastMode() throws Throwable {
+        report("DFU v2 fast mode", loadFirmware(), updateFirmware(true, 0));
+    }
+
+    @Test
+    public void updateFirmwareOverLossyLink() throws Throwable {
+        final SimulatedLink link = updateFirmware(true, 0.05);
+        assertTrue(link.getLostPacketCount() > 0);
+        report("DFU v2 fast mode, 5% loss", loadFirmware(), link);
+    }
+
+    @Test
+    public void updateFirmwareToBackupBank() throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedLink link = new SimulatedLink(chip);
+        final DfuFile file = loadFirmware();
+
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(link, true);
+        dfu.updateFirmware(false, file, -1, null, null);
+
+        assertEquals(1, chip.getDfuMode() & 0x0F);
+        assertProgrammed(file, chip.flash.read(chip.recommendSaveAddress, file.getSize()));
+        report("DFU v2 double bank", file, link);
+    }
+
+    @Test
+    public void updateByFastDfu() throws Throwable {
+        for (int version = 2; version <= 3; version++) {
+            final SimulatedFastDfuPeer chip = new SimulatedFastDfuPeer();
+            chip.version = version;
+            final SimulatedLink link = new SimulatedLink(chip, 42).setMtu(247).setLatency(15);
+            final DfuFile file = loadFirmware();
+
+            final GR5xxxFastDfu dfu = new GR5xxxFastDfu();
+            dfu.bindTo(link);
+            dfu.update(true, false, file, false, LOAD_ADDRESS, null);
+
+            assertNotNull(chip.getBootImgInfo());
+            assertEquals(LOAD_ADDRESS, chip.getBootImgInfo().bootInfo.loadAddr);
+            assertProgrammed(file, chip.flash.read(LOAD_ADDRESS, file.getSize()));
+            report("Fast DFU v" + version, file, link);
+        }
+    }
+
+    @Test
+    public void phasesAreClosedWhenUpdateFails() throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedLink link = new SimulatedLink(chip);
+        final SessionMetrics metrics = new SessionMetrics();
+        metrics.start();
+        link.setMetrics(metrics);
+
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(link, true);
+        Error error = null;
+        try {
+            dfu.updateFirmware(false, loadFirmware(), LOAD_ADDRESS, null, new DfuProgressListener() {
+                @Override
+                public void onDfuStart() {
+                }
+
+                @Override
+                public void onDfuProgress(int percent, int speed, String message) {
+                    if (percent >= 50) {
+                        link.setConnected(false);
+                    }
+                }
+
+                @Override
+                public void onDfuComplete() {
+                }
+
+                @Override
+                public void onDfuError(String message, Error error) {
+                }
+            });
+        } catch (Error e) {
+            error = e;
+        }
+        assertNotNull("The link is dropped while programming.", error);
+
+        // a phase left open would keep growing until the next operation of a reused session
+        final long programTime = metrics.getPhaseTime(SessionMetrics.PHASE_PROGRAM);
+        final long preflightTime = metrics.getPhaseTime(SessionMetrics.PHASE_PREFLIGHT);
+        assertTrue(programTime > 0);
+        Thread.sleep(20);
+        assertEquals(programTime, metrics.getPhaseTime(SessionMetrics.PHASE_PROGRAM));
+        assertEquals(preflightTime, metrics.getPhaseTime(SessionMetrics.PHASE_PREFLIGHT));
+        assertEquals(0, metrics.getPhaseTime(SessionMetrics.PHASE_VERIFY));
+    }
+
+    @Test
+    public void disconnected() throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedLink link = new SimulatedLink(chip);
+
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(link, true);
+        final long[] packetsAtLoss = {-1};
+        Error error = null;
+        try {
+            dfu.updateFirmware(false, loadFirmware(), LOAD_ADDRESS, null, new DfuProgressListener() {
+                @Override
+                public void onDfuStart() {
+                }
+
+                @Override
+                public void onDfuProgress(int percent, int speed, String message) {
+                    // drop the link in the middle of the transfer
+                    if (percent > 0 && packetsAtLoss[0] < 0) {
+                        packetsAtLoss[0] = link.getSentPacketCount();
+                        link.setConnected(false);
+                    }
+                }
+
+                @Override
+                public void onDfuComplete() {
+                }
+
+                @Override
+                public void onDfuError(String message, Error error) {
+                }
+            });
+        } catch (Error e) {
+            error = e;
+        }
+        assertNotNull("The link is dropped while transferring.", error);
+        assertTrue(packetsAtLoss[0] > 0);
+        assertEquals("No packet is sent after the loss.", packetsAtLoss[0], link.getSentPacketCount());
+        assertEquals(0, chip.getProgramEndCount());
+    }
+}
@@ -0,0 +1,280 @@
+package com.goodix.ble.gr.lib.dfu.v2.bundle;
+
+import com.goodix.ble.gr.lib.dfu.v2.DfuProgressListener;
+import com.goodix.ble.gr.lib.dfu.v2.GR5xxxDfu2;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.DfuFile;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedGR5xxx;
+import com.goodix.ble.gr.lib.dfu.v2.sim.SimulatedLink;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DfuBundleTest {
+    private static final int LOAD_ADDRESS = 0x0022_0000;
+    private static final int EXT_ADDRESS = 0x0100_0000;
+
+    private static DfuFile resource(int size, int seed) {
+        final byte[] dat = new byte[size];
+        for (int i = 0; i < size; i++) {
+            dat[i] = (byte) (seed + i);
+        }
+        final DfuFile file = new DfuFile();
+        file.load(dat); // false, a resource has no ImgInfo
+        return file;
+    }
+
+    private static DfuFile firmware() {
+        final DfuFile file = new DfuFile();
+        assertTrue(file.load(SimulatedGR5xxx.buildFirmware(LOAD_ADDRESS, 8 * 1024, 1)));
+        return file;
+    }
+
+    private static byte[] read(DfuFile file) throws Exception {
+        final byte[] dat = new byte[file.getSize()];
+        assertEquals(dat.length, file.readData(0, dat, 0, dat.length));
+        return dat;
+    }
+
+    /**
+     * @param entries pairs of the entry name and its content, a String is the manifest
+     */
+    private static ByteArrayInputStream zip(Object... entries) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ZipOutputStream zip = new ZipOutputStream(out);
+        for (int i = 0; i < entries.length; i += 2) {
+            zip.putNextEntry(new ZipEntry((String) entries[i]));
+            final Object content = entries[i + 1];
+            if (content instanceof String) {
+                zip.write(((String) content).getBytes(Charset.forName("UTF-8")));
+            } else {
+                zip.write(read((DfuFile) content));
+            }
+            zip.closeEntry();
+        }
+        zip.close();
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    @Test
+    public void load_readsFirmwareAndResourcesOfManifest() throws Exception {
+        final DfuFile fw = firmware();
+        final DfuFile font = resource(300, 1);
+        final DfuFile icon = resource(200, 2);
+        final String manifest = "{\"images\": ["
+                + "{\"file\": \"app_fw.bin\", \"type\": \"firmware\", \"copyAddress\": \"auto\"},"
+                + "{\"file\": \"res/font.bin\", \"type\": \"resource\", \"address\": \"0x01000000\", \"extFlash\": true},"
+                + "{\"file\": \"icon.bin\", \"type\": \"resource\", \"address\": 2097152}"
+                + "]}";
+
+        final DfuBundle bundle = new DfuBundle();
+        assertTrue(bundle.getLastError(), bundle.load(zip(
+                "app_fw.bin", fw,
+                "res/font.bin", font,
+                DfuBundle.MANIFEST_NAME, manifest,
+                "icon.bin", icon), true));
+
+        final List<DfuBundle.Image> images = bundle.getImages();
+        assertEquals(3, images.size());
+
+        final DfuBundle.Image firmware = bundle.getFirmware();
+        assertSame(images.get(0), firmware);
+        assertEquals("app_fw.bin", firmware.name);
+        assertEquals(DfuBundle.COPY_ADDRESS_AUTO, firmware.address);
+        assertEquals(LOAD_ADDRESS, firmware.file.getImgInfo().bootInfo.loadAddr);
+        assertArrayEquals(read(fw), read(firmware.file));
+
+        final DfuBundle.Image first = images.get(1);
+        assertFalse(first.isFirmware);
+        assertEquals("res/font.bin", first.name);
+        assertEquals(EXT_ADDRESS, first.address);
+        assertTrue(first.toExtFlash);
+        assertArrayEquals(read(font), read(first.file));
+
+        final DfuBundle.Image second = images.get(2);
+        assertEquals(0x0020_0000, second.address);
+        assertFalse(second.toExtFlash); // extFlash is optional
+        assertArrayEquals(read(icon), read(second.file));
+
+        assertEquals(fw.getSize() + 500, bundle.getTotalSize());
+    }
+
+    @Test
+    public void load_failsOnMissingFile() throws Exception {
+        final String manifest = "{\"images\": ["
+                + "{\"file\": \"font.bin\", \"type\": \"resource\", \"address\": \"0x01000000\"},"
+                + "{\"file\": \"icon.bin\", \"type\": \"resource\", \"address\": \"0x01001000\"}"
+                + "]}";
+
+        final DfuBundle bundle = new DfuBundle();
+        assertFalse(bundle.load(zip(
+                DfuBundle.MANIFEST_NAME, manifest,
+                "font.bin", resource(100, 1)), true));
+        assertEquals("Not found file in bundle: icon.bin", bundle.getLastError());
+    }
+
+    @Test
+    public void load_failsOnUnknownType() throws Exception {
+        final String manifest = "{\"images\": ["
+                + "{\"file\": \"font.bin\", \"type\": \"font\", \"address\": \"0x01000000\"}"
+                + "]}";
+
+        final DfuBundle bundle = new DfuBundle();
+        assertFalse(bundle.load(zip(
+                DfuBundle.MANIFEST_NAME, manifest,
+                "font.bin", resource(100, 1)), true));
+        assertEquals("Unknown type of font.bin: font", bundle.getLastError());
+    }
+
+    @Test
+    public void load_failsWithoutManifest() throws Exception {
+        final DfuBundle bundle = new DfuBundle();
+        assertFalse(bundle.load(zip("font.bin", resource(100, 1)), true));
+        assertEquals("Not found " + DfuBundle.MANIFEST_NAME, bundle.getLastError());
+    }
+
+    @Test
+    public void adjacentResources_areSortedAndMergedWithPadding() throws Exception {
+        final DfuBundle bundle = new DfuBundle()
+                .addResource("c", resource(16, 3), EXT_ADDRESS + 200, true)
+                .addResource("a", resource(100, 1), EXT_ADDRESS, true)
+                .addResource("b", resource(50, 2), EXT_ADDRESS + 100, true); // no gap after "a"
+
+        final List<DfuBundle.Region> regions = bundle.planResourceRegions(64);
+        assertEquals(1, regions.size());
+        final DfuBundle.Region region = regions.get(0);
+        assertEquals(EXT_ADDRESS, region.address);
+        assertEquals(3, region.images.size());
+        assertEquals("a", region.images.get(0).name);
+        assertEquals("c", region.images.get(2).name);
+        assertEquals(216, region.file.getSize());
+
+        final byte[] dat = read(region.file);
+        assertEquals((byte) 1, dat[0]);
+        assertEquals((byte) 2, dat[100]);
+        for (int i = 150; i < 200; i++) {
+            assertEquals((byte) 0xFF, dat[i]);
+        }
+        assertEquals((byte) 3, dat[200]);
+    }
+
+    @Test
+    public void largeGapAndFlashType_splitRegions() {
+        final DfuBundle bundle = new DfuBundle()
+                .addResource("ext", resource(10, 0), 0x0008_0000, true)
+                .addResource("far", resource(10, 0), 0x0008_0000 + 10 + 65, false)
+                .addResource("near", resource(10, 0), 0x0008_0000, false);
+
+        final List<DfuBundle.Region> regions = bundle.planResourceRegions(64);
+        assertEquals(3, regions.size());
+        // the inner flash goes first, the same address in the external flash is not merged
+        assertFalse(regions.get(0).toExtFlash);
+        assertEquals("near", regions.get(0).images.get(0).name);
+        assertEquals("far", regions.get(1).images.get(0).name);
+        assertTrue(regions.get(2).toExtFlash);
+        // a single image is not copied into a composite
+        assertSame(bundle.getImages().get(0).file, regions.get(2).file);
+
+        assertEquals(2, bundle.planResourceRegions(65).size());
+    }
+
+    @Test(expected = Error.class)
+    public void overlappedResources_areRejected() {
+        new DfuBundle()
+                .addResource("a", resource(100, 0), EXT_ADDRESS, true)
+                .addResource("b", resource(100, 0), EXT_ADDRESS + 99, true)
+                .planResourceRegions(0);
+    }
+
+    @Test
+    public void resourceOverlappingFirmware_isRejected() {
+        final DfuFile fw = firmware();
+        try {
+            new DfuBundle()
+                    .addFirmware("fw", fw)
+                    .addResource("res", resource(16, 0), LOAD_ADDRESS + 16, false)
+                    .planResourceRegions(0);
+            fail("overlaps the load address");
+        } catch (Error expected) {
+            // expected
+        }
+        try {
+            new DfuBundle()
+                    .addFirmware("fw", fw, 0x0030_0000)
+                    .addResource("res", resource(16, 0), 0x0030_0000, false)
+                    .planResourceRegions(0);
+            fail("overlaps the copy address");
+        } catch (Error expected) {
+            // expected
+        }
+        // the same resource in the external flash is fine
+        assertEquals(1, new DfuBundle()
+                .addFirmware("fw", fw, DfuBundle.COPY_ADDRESS_AUTO)
+                .addResource("res", resource(16, 0), LOAD_ADDRESS, true)
+                .planResourceRegions(0).size());
+    }
+
+    @Test
+    public void updateBundle_reportsProgressUpTo100Percent() throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final SimulatedLink link = new SimulatedLink(chip);
+        final DfuFile fw = firmware();
+        final DfuFile a = resource(3000, 1);
+        final DfuFile b = resource(2000, 2);
+        final DfuBundle bundle = new DfuBundle()
+                .addFirmware("fw", fw)
+                .addResource("a", a, EXT_ADDRESS, true)
+                .addResource("b", b, EXT_ADDRESS + 3000 + 1000, true); // 1000 bytes of padding
+
+        final int[] maxPercent = {0};
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(link, true);
+        dfu.updateBundle(false, bundle, 4096, null, new DfuProgressListener() {
+            @Override
+            public void onDfuStart() {
+            }
+
+            @Override
+            public void onDfuProgress(int percent, int speed, String message) {
+                maxPercent[0] = Math.max(maxPercent[0], percent);
+            }
+
+            @Override
+            public void onDfuComplete() {
+            }
+
+            @Override
+            public void onDfuError(String message, Error error) {
+            }
+        });
+
+        assertEquals(100, maxPercent[0]);
+        assertEquals(2, chip.getProgramEndCount());
+        assertArrayEquals(read(b), chip.flash.read(EXT_ADDRESS + 4000, 2000));
+    }
+
+    @Test
+    public void autoCopyAddress_isRejectedByDfuV1BeforeProgramming() throws Throwable {
+        final SimulatedGR5xxx chip = new SimulatedGR5xxx();
+        final DfuBundle bundle = new DfuBundle()
+                .addFirmware("fw", firmware(), DfuBundle.COPY_ADDRESS_AUTO)
+                .addResource("a", resource(100, 1), EXT_ADDRESS, true);
+
+        final GR5xxxDfu2 dfu = new GR5xxxDfu2();
+        dfu.bindTo(new SimulatedLink(chip), false);
+        try {
+            dfu.updateBundle(false, bundle, 0, null, null);
+            fail("auto copy address on DFU V1");
+        } catch (Error expected) {
+            assertTrue(expected.getMessage().contains("copy address"));
+        }
+        assertEquals(0, chip.getProgramEndCount());
+    }
+}
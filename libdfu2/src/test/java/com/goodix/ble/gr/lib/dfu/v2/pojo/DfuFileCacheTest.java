@@ -0,0 +1,115 @@
+package com.goodix.ble.gr.lib.dfu.v2.pojo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DfuFileCacheTest {
+    /**
+     * A source which is not in heap, like a FileDataSource, and counts how many times it is closed.
+     */
+    private static class CountingSource implements DfuDataSource {
+        final byte[] data;
+        int closeCount = 0;
+
+        CountingSource(int size) {
+            data = new byte[size];
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte) i;
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return data.length;
+        }
+
+        @Override
+        public int read(int pos, byte[] out, int offset, int size) {
+            size = Math.min(size, data.length - pos);
+            System.arraycopy(data, pos, out, offset, size);
+            return size;
+        }
+
+        @Override
+        public byte[] array() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            closeCount++;
+        }
+    }
+
+    private static DfuFile load(CountingSource source) {
+        final DfuFile file = new DfuFile();
+        file.load(source); // a resource without ImgInfo is still loaded
+        return file;
+    }
+
+    @Test
+    public void evictedFile_isClosedAfterItsLastView() {
+        final DfuFileCache cache = new DfuFileCache(150);
+        final CountingSource first = new CountingSource(100);
+        final DfuFile view1 = cache.put("a", load(first));
+        final DfuFile view2 = cache.get("a");
+        assertNotNull(view2);
+
+        cache.put("b", load(new CountingSource(100))).close(); // evicts "a"
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.get("a"));
+        assertEquals(0, first.closeCount);
+
+        view1.close();
+        view1.close(); // closing twice releases once
+        assertEquals(0, first.closeCount);
+        view2.close();
+        assertEquals(1, first.closeCount);
+    }
+
+    @Test
+    public void removedAndClearedFiles_areClosed() {
+        final DfuFileCache cache = new DfuFileCache(1000);
+        final CountingSource a = new CountingSource(10);
+        final CountingSource b = new CountingSource(10);
+        cache.put("a", load(a)).close();
+        cache.put("b", load(b)).close();
+
+        cache.remove("a");
+        assertEquals(1, a.closeCount);
+        cache.clear();
+        assertEquals(1, b.closeCount);
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void oversizedFile_isReleasedWithItsView() {
+        final DfuFileCache cache = new DfuFileCache(10);
+        final CountingSource source = new CountingSource(100);
+        final DfuFile view = cache.put("a", load(source));
+        assertEquals(0, cache.getFileCount());
+        assertEquals(0, source.closeCount);
+        view.close();
+        assertEquals(1, source.closeCount);
+    }
+
+    @Test
+    public void view_doesNotExposeSharedData() {
+        final DfuFileCache cache = new DfuFileCache(1000);
+        final DfuFile original = new DfuFile();
+        original.load(new byte[]{1, 2, 3});
+        final DfuFile view = cache.put("a", original);
+
+        assertNull(view.getDataSource().array());
+        view.getData()[0] = 9;
+        final DfuFile another = cache.get("a");
+        assertNotNull(another);
+        assertArrayEquals(new byte[]{1, 2, 3}, another.getData());
+        view.close();
+        another.close();
+    }
+}
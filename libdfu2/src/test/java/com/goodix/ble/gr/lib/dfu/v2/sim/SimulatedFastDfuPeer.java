@@ -0,0 +1,179 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.sim;
+
+import com.goodix.ble.gr.lib.com.HexEndian;
+import com.goodix.ble.gr.lib.com.HexSerializer;
+import com.goodix.ble.gr.lib.dfu.v2.DfuTransport;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.ImgInfo;
+
+/**
+ * A GR5xxx running the Fast DFU service, backed by a {@link SimulatedFlash}.
+ * Each packet of CMD channel is a command, and the data of DAT channel is programmed sequentially.
+ */
+public class SimulatedFastDfuPeer implements SimulatedLink.Peer {
+    private static final int CMD_HEADER = 0x474f4f44;
+
+    private static final int ERASE_FLASH = 0X01;
+    private static final int FLUSH_FLASH = 0X02;
+    private static final int VERIFY_CHECKSUM = 0x03;
+    private static final int WRITE_BOOT = 0X04;
+    private static final int SELECT_FLASH_TYPE = 0X05;
+    private static final int START_COPY = 0X08;
+    private static final int GET_BUFFER_SIZE = 0X09;
+    private static final int NEXT_BUFFER = 0X0A;
+    private static final int GET_VERSION = 0x0B;
+
+    public final SimulatedFlash flash = new SimulatedFlash();
+    public int version = 3;
+    /**
+     * Only used by the version before 3, which acknowledges each buffer.
+     */
+    public int bufferSize = 4096;
+    /**
+     * Time to erase a sector in nanoseconds.
+     */
+    public long sectorEraseTime = 2_000_000;
+
+    private int writeAddress;
+    private int writeSize;
+    private int writtenSize = 0;
+    private int bufferedSize = 0;
+    private boolean extFlash = false;
+    private ImgInfo bootImgInfo = null;
+    private int copyAddress = -1;
+
+    public boolean isExtFlash() {
+        return extFlash;
+    }
+
+    /**
+     * @return the ImgInfo of WRITE_BOOT or START_COPY, or null.
+     */
+    public ImgInfo getBootImgInfo() {
+        return bootImgInfo;
+    }
+
+    public int getCopyAddress() {
+        return copyAddress;
+    }
+
+    @Override
+    public void onWrite(SimulatedLink link, int channel, byte[] packet, int size) {
+        if (channel == DfuTransport.CHANNEL_DAT) {
+            onData(link, packet, size);
+            return;
+        }
+        if (channel != DfuTransport.CHANNEL_CMD || size < 5 || HexEndian.fromByte(packet, 0, 4, false) != CMD_HEADER) {
+            return;
+        }
+
+        final HexSerializer param = new HexSerializer(packet);
+        param.setRange(5, size - 5);
+        param.setPos(0);
+
+        final int opcode = packet[4] & 0xFF;
+        switch (opcode) {
+            case GET_VERSION:
+                reply(link, 0, new byte[]{GET_VERSION, (byte) version});
+                break;
+            case GET_BUFFER_SIZE: {
+                final HexSerializer ack = new HexSerializer(5);
+                ack.put(1, GET_BUFFER_SIZE);
+                ack.put(4, bufferSize);
+                reply(link, 0, ack.getBuffer());
+                break;
+            }
+            case SELECT_FLASH_TYPE:
+                extFlash = param.get(1) != 0;
+                reply(link, 0, new byte[]{SELECT_FLASH_TYPE, 1});
+                break;
+            case ERASE_FLASH:
+                onErase(link, param.get(4), param.get(4));
+                break;
+            case FLUSH_FLASH:
+                reply(link, 0, new byte[]{FLUSH_FLASH, 1});
+                break;
+            case VERIFY_CHECKSUM: {
+                final HexSerializer ack = new HexSerializer(5);
+                ack.put(1, VERIFY_CHECKSUM);
+                ack.put(4, flash.checksum(writeAddress, writtenSize));
+                reply(link, 0, ack.getBuffer());
+                break;
+            }
+            case WRITE_BOOT:
+                bootImgInfo = new ImgInfo().readFromData(param);
+                break; // reboot, no response
+            case START_COPY:
+                bootImgInfo = new ImgInfo().readFromData(param);
+                copyAddress = param.get(4);
+                break; // reboot, no response
+            default:
+                break;
+        }
+    }
+
+    private void onErase(SimulatedLink link, int addr, int size) {
+        if (addr % SimulatedFlash.SECTOR_SIZE != 0) {
+            reply(link, 0, new byte[]{ERASE_FLASH, 0x00});
+            return;
+        }
+        writeAddress = addr;
+        writeSize = size;
+        writtenSize = 0;
+        bufferedSize = 0;
+
+        final int sectorCount = SimulatedFlash.sectorCountOf(addr, size);
+        reply(link, 0, new byte[]{ERASE_FLASH, 0x01, (byte) sectorCount, (byte) (sectorCount >> 8)});
+        for (int i = 1; i <= sectorCount; i++) {
+            flash.erase(addr + (i - 1) * SimulatedFlash.SECTOR_SIZE, SimulatedFlash.SECTOR_SIZE);
+            reply(link, sectorEraseTime * i, new byte[]{ERASE_FLASH, 0x02, (byte) i, (byte) (i >> 8)});
+        }
+        reply(link, sectorEraseTime * sectorCount, new byte[]{ERASE_FLASH, 0x03});
+    }
+
+    private void onData(SimulatedLink link, byte[] packet, int size) {
+        final int copySize = Math.min(size, writeSize - writtenSize);
+        if (copySize <= 0) {
+            return;
+        }
+        flash.write(writeAddress + writtenSize, packet, 0, copySize);
+        writtenSize += copySize;
+        bufferedSize += copySize;
+        if (version < 3 && (bufferedSize >= bufferSize || writtenSize == writeSize)) {
+            bufferedSize = 0;
+            reply(link, 0, new byte[]{NEXT_BUFFER});
+        }
+    }
+
+    private void reply(SimulatedLink link, long delay, byte[] ack) {
+        link.notify(DfuTransport.CHANNEL_CMD, ack, delay);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.sim;
+
+import com.goodix.ble.gr.lib.com.HexSerializer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A sparse NOR flash in memory. Erased bytes are 0xFF.
+ */
+public class SimulatedFlash {
+    public static final int SECTOR_SIZE = 4096;
+
+    private final HashMap<Integer, byte[]> sectors = new HashMap<>();
+    private int erasedSectorCount = 0;
+    private long writtenBytes = 0;
+
+    public synchronized void write(int addr, byte[] dat, int offset, int size) {
+        while (size > 0) {
+            final byte[] sector = getSector(addr, true);
+            final int posInSector = (int) ((addr & 0xFFFF_FFFFL) % SECTOR_SIZE);
+            final int copySize = Math.min(size, SECTOR_SIZE - posInSector);
+            System.arraycopy(dat, offset, sector, posInSector, copySize);
+            addr += copySize;
+            offset += copySize;
+            size -= copySize;
+            writtenBytes += copySize;
+        }
+    }
+
+    public synchronized void read(int addr, byte[] out, int offset, int size) {
+        while (size > 0) {
+            final byte[] sector = getSector(addr, false);
+            final int posInSector = (int) ((addr & 0xFFFF_FFFFL) % SECTOR_SIZE);
+            final int copySize = Math.min(size, SECTOR_SIZE - posInSector);
+            if (sector != null) {
+                System.arraycopy(sector, posInSector, out, offset, copySize);
+            } else {
+                Arrays.fill(out, offset, offset + copySize, (byte) 0xFF);
+            }
+            addr += copySize;
+            offset += copySize;
+            size -= copySize;
+        }
+    }
+
+    public byte[] read(int addr, int size) {
+        final byte[] out = new byte[size];
+        read(addr, out, 0, size);
+        return out;
+    }
+
+    /**
+     * Erase the sectors which cover the range.
+     *
+     * @return the count of erased sectors.
+     */
+    public synchronized int erase(int addr, int size) {
+        final int count = sectorCountOf(addr, size);
+        int sectorAddr = addr - (int) ((addr & 0xFFFF_FFFFL) % SECTOR_SIZE);
+        for (int i = 0; i < count; i++) {
+            sectors.remove(sectorAddr / SECTOR_SIZE);
+            sectorAddr += SECTOR_SIZE;
+        }
+        erasedSectorCount += count;
+        return count;
+    }
+
+    public static int sectorCountOf(int addr, int size) {
+        final long begin = (addr & 0xFFFF_FFFFL) / SECTOR_SIZE;
+        final long end = ((addr & 0xFFFF_FFFFL) + size + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        return (int) (end - begin);
+    }
+
+    /**
+     * The same algorithm as the checksum of DFU file.
+     */
+    public int checksum(int addr, int size) {
+        return HexSerializer.calcChecksum(read(addr, size), 0, size);
+    }
+
+    public synchronized int getErasedSectorCount() {
+        return erasedSectorCount;
+    }
+
+    public synchronized long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    private byte[] getSector(int addr, boolean create) {
+        final int key = (int) ((addr & 0xFFFF_FFFFL) / SECTOR_SIZE);
+        byte[] sector = sectors.get(key);
+        if (sector == null && create) {
+            sector = new byte[SECTOR_SIZE];
+            Arrays.fill(sector, (byte) 0xFF);
+            sectors.put(key, sector);
+        }
+        return sector;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.sim;
+
+import com.goodix.ble.gr.lib.com.HexEndian;
+import com.goodix.ble.gr.lib.com.HexSerializer;
+import com.goodix.ble.gr.lib.dfu.v2.DfuFrameEncoder;
+import com.goodix.ble.gr.lib.dfu.v2.DfuTransport;
+import com.goodix.ble.gr.lib.dfu.v2.GR5xxxDfu2.CmdOpcode;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.BootInfo;
+import com.goodix.ble.gr.lib.dfu.v2.pojo.ImgInfo;
+
+import java.util.Random;
+
+/**
+ * A GR5xxx running the bootloader of DFU protocol v2, backed by a {@link SimulatedFlash}.
+ * The frames are parsed from the packets of CMD channel and answered by notifications.
+ */
+public class SimulatedGR5xxx implements SimulatedLink.Peer {
+    public static final int STACK_SVN_GR5526 = 0xF83A64D9;
+    public static final int ADDRESS_OF_SCA = 0x0020_0000;
+    public static final int POSITION_BOOTLOADER = 0;
+    public static final int POSITION_APP = 1;
+
+    public final SimulatedFlash flash = new SimulatedFlash();
+    public final BootInfo bootloader = new BootInfo();
+    public final ImgInfo appFw = new ImgInfo();
+    public int stackSVN = STACK_SVN_GR5526;
+    public int position = POSITION_BOOTLOADER;
+    public int recommendSaveAddress = 0x0030_0000;
+    public boolean encrypted = false;
+    /**
+     * Time to erase a sector in nanoseconds.
+     */
+    public long sectorEraseTime = 2_000_000;
+    /**
+     * Time to program a segment before answering it in nanoseconds.
+     */
+    public long programTime = 200_000;
+
+    // received frame
+    private final byte[] frame = new byte[DfuFrameEncoder.HEADER_SIZE + 0xFFFF + DfuFrameEncoder.CHECKSUM_SIZE];
+    private int frameSize = 0;
+    // raw data of fast mode
+    private int rawAddress;
+    private int rawRemain = 0;
+
+    private int programAddress;
+    private int programSize;
+    private int ctrlPointWriteCount = 0;
+    private int dfuMode = 0;
+    private int checksumErrorCount = 0;
+    private int programEndCount = 0;
+
+    public SimulatedGR5xxx() {
+        bootloader.binSize = 0xC000;
+        bootloader.loadAddr = 0x0020_4000;
+        bootloader.runAddr = bootloader.loadAddr;
+        bootloader.checksum = 0x12345678;
+
+        appFw.pattern = ImgInfo.VALID_PATTERN;
+        appFw.version = 1;
+        appFw.comments = "app";
+        appFw.bootInfo.binSize = 0x4_0000;
+        appFw.bootInfo.loadAddr = 0x0022_0000;
+        appFw.bootInfo.runAddr = appFw.bootInfo.loadAddr;
+
+        // the boot info at the beginning of SCA, and the empty image list at 0x40.
+        final HexSerializer sca = new HexSerializer(24);
+        bootloader.writeToData(sca);
+        flash.write(ADDRESS_OF_SCA, sca.getBuffer(), 0, 24);
+    }
+
+    /**
+     * Build an unsigned firmware file: the binary followed by ImgInfo and 8 reserved bytes.
+     */
+    public static byte[] buildFirmware(int loadAddress, int binSize, long seed) {
+        final byte[] file = new byte[binSize + 48];
+        final Random random = new Random(seed);
+        for (int i = 0; i < binSize; i++) {
+            file[i] = (byte) random.nextInt();
+        }
+        final ImgInfo info = new ImgInfo();
+        info.pattern = ImgInfo.VALID_PATTERN;
+        info.version = 2;
+        info.comments = "sim";
+        info.bootInfo.binSize = binSize;
+        info.bootInfo.checksum = HexSerializer.calcChecksum(file, 0, binSize);
+        info.bootInfo.loadAddr = loadAddress;
+        info.bootInfo.runAddr = loadAddress;
+        final HexSerializer tail = new HexSerializer(file);
+        tail.setPos(binSize);
+        info.writeToData(tail);
+        return file;
+    }
+
+    public int getCtrlPointWriteCount() {
+        return ctrlPointWriteCount;
+    }
+
+    public int getDfuMode() {
+        return dfuMode;
+    }
+
+    public int getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    public int getProgramEndCount() {
+        return programEndCount;
+    }
+
+    @Override
+    public void onWrite(SimulatedLink link, int channel, byte[] packet, int size) {
+        if (channel == DfuTransport.CHANNEL_CTRL) {
+            ctrlPointWriteCount++;
+            return;
+        }
+        if (channel != DfuTransport.CHANNEL_CMD) {
+            return;
+        }
+
+        int pos = 0;
+        while (pos < size) {
+            if (rawRemain > 0) {
+                final int copySize = Math.min(rawRemain, size - pos);
+                flash.write(rawAddress, packet, pos, copySize);
+                rawAddress += copySize;
+                rawRemain -= copySize;
+                pos += copySize;
+                if (rawRemain == 0) {
+                    reply(link, CmdOpcode.PROGRAM_FLASH_FAST, programTime, new byte[]{1});
+                }
+                continue;
+            }
+
+            // header first, then the parameter and checksum
+            final int frameEnd = frameSize < DfuFrameEncoder.HEADER_SIZE ? DfuFrameEncoder.HEADER_SIZE
+                    : DfuFrameEncoder.HEADER_SIZE + HexEndian.fromByte(frame, 4, 2, false) + DfuFrameEncoder.CHECKSUM_SIZE;
+            final int copySize = Math.min(frameEnd - frameSize, size - pos);
+            System.arraycopy(packet, pos, frame, frameSize, copySize);
+            frameSize += copySize;
+            pos += copySize;
+
+            if (frameSize == DfuFrameEncoder.HEADER_SIZE) {
+                if (HexEndian.fromByte(frame, 0, 2, false) != DfuFrameEncoder.FRAME_MAGIC) {
+                    // lost the boundary of frames, drop it
+                    frameSize = 0;
+                    checksumErrorCount++;
+                }
+            } else if (frameSize == frameEnd) {
+                onFrame(link);
+                frameSize = 0;
+            }
+        }
+    }
+
+    private void onFrame(SimulatedLink link) {
+        final int opcode = HexEndian.fromByte(frame, 2, 2, false);
+        final int paramSize = HexEndian.fromByte(frame, 4, 2, false);
+        final int checksum = HexEndian.fromByte(frame, DfuFrameEncoder.HEADER_SIZE + paramSize, 2, false);
+        if ((HexSerializer.calcChecksum(frame, 2, 4 + paramSize) & 0xFFFF) != checksum) {
+            checksumErrorCount++;
+            return; // the host will time out
+        }
+
+        final HexSerializer param = new HexSerializer(frame);
+        param.setRange(DfuFrameEncoder.HEADER_SIZE, paramSize);
+        param.setPos(0);
+
+        switch (opcode) {
+            case CmdOpcode.GET_INFO: {
+                final HexSerializer ack = new HexSerializer(1 + 17);
+                ack.put(1, 1);
+                ack.put(1, 1).put(1, 0).put(2, 100).put(4, stackSVN);
+                ack.put(1, 1).put(1, 0).put(2, 100).put(4, 0);
+                ack.put(1, 2); // dfu version
+                reply(link, opcode, 0, ack.getBuffer());
+                break;
+            }
+            case CmdOpcode.SYSTEM_CONFIG: {
+                final int op = param.get(1);
+                final int addr = param.get(4);
+                final int len = param.get(2);
+                final HexSerializer ack = new HexSerializer(1 + 1 + 4 + 2 + ((op & 0x0F) == 0 ? len : 0));
+                ack.put(1, 1);
+                ack.put(1, op | (encrypted ? 0x10 : 0x00));
+                ack.put(4, addr);
+                ack.put(2, len);
+                if ((op & 0x0F) == 0) {
+                    ack.put(flash.read(addr, len));
+                } else {
+                    flash.write(addr, frame, DfuFrameEncoder.HEADER_SIZE + param.getPos(), len);
+                }
+                reply(link, opcode, 0, ack.getBuffer());
+                break;
+            }
+            case CmdOpcode.GET_FW_INFO: {
+                final HexSerializer ack = new HexSerializer(1 + 4 + 1 + ImgInfo.IMG_INFO_SIZE);
+                ack.put(1, 1);
+                ack.put(4, recommendSaveAddress);
+                ack.put(1, position);
+                appFw.writeToData(ack);
+                reply(link, opcode, 0, ack.getBuffer());
+                break;
+            }
+            case CmdOpcode.SET_DFU_MODE:
+                dfuMode = param.get(1);
+                break; // no response
+            case CmdOpcode.PROGRAM_START:
+                onProgramStart(link, param, paramSize);
+                break;
+            case CmdOpcode.PROGRAM_FLASH: {
+                param.get(1); // type
+                final int addr = param.get(4);
+                final int len = param.get(2);
+                flash.write(addr, frame, DfuFrameEncoder.HEADER_SIZE + param.getPos(), len);
+                reply(link, opcode, programTime, new byte[]{1});
+                break;
+            }
+            case CmdOpcode.PROGRAM_END: {
+                param.get(1); // reset type
+                programEndCount++;
+                final HexSerializer ack = new HexSerializer(1 + 4);
+                ack.put(1, 1);
+                ack.put(4, flash.checksum(programAddress, programSize));
+                reply(link, opcode, 0, ack.getBuffer());
+                break;
+            }
+            default:
+                break; // not supported, no response
+        }
+    }
+
+    private void onProgramStart(SimulatedLink link, HexSerializer param, int paramSize) {
+        final int type = param.get(1);
+        final boolean fastMode = (type & 0x0F) == 0x02 || (type & 0x0F) == 0x03;
+        if (paramSize >= 1 + ImgInfo.IMG_INFO_SIZE) {
+            final ImgInfo info = new ImgInfo().readFromData(param);
+            programAddress = info.bootInfo.loadAddr;
+            // the whole file is programmed: binary, ImgInfo and the optional signature
+            programSize = info.bootInfo.binSize + 48 + ((type & 0x30) != 0 ? 856 : 0);
+        } else {
+            programAddress = param.get(4);
+            programSize = param.get(4);
+        }
+
+        final int sectorCount = SimulatedFlash.sectorCountOf(programAddress, programSize);
+        if (!fastMode) {
+            flash.erase(programAddress, programSize);
+            reply(link, CmdOpcode.PROGRAM_START, sectorEraseTime * sectorCount, new byte[]{1});
+            return;
+        }
+
+        if (programAddress % SimulatedFlash.SECTOR_SIZE != 0) {
+            reply(link, CmdOpcode.PROGRAM_START, 0, new byte[]{1, 0x00, 0, 0});
+            return;
+        }
+        reply(link, CmdOpcode.PROGRAM_START, 0, new byte[]{1, 0x01, (byte) sectorCount, (byte) (sectorCount >> 8)});
+        for (int i = 1; i <= sectorCount; i++) {
+            flash.erase(programAddress + (i - 1) * SimulatedFlash.SECTOR_SIZE, SimulatedFlash.SECTOR_SIZE);
+            reply(link, CmdOpcode.PROGRAM_START, sectorEraseTime * i, new byte[]{1, 0x02, (byte) i, (byte) (i >> 8)});
+        }
+        reply(link, CmdOpcode.PROGRAM_START, sectorEraseTime * sectorCount, new byte[]{1, 0x03, (byte) sectorCount, (byte) (sectorCount >> 8)});
+
+        rawAddress = programAddress;
+        rawRemain = programSize;
+    }
+
+    private void reply(SimulatedLink link, int opcode, long delay, byte[] param) {
+        final DfuFrameEncoder encoder = new DfuFrameEncoder();
+        encoder.begin(opcode);
+        encoder.end(param, 0, param.length);
+        link.notify(DfuTransport.CHANNEL_CMD, encoder.toByteArray(), delay);
+    }
+}
@@ -0,0 +1,414 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.sim;
+
+import com.goodix.ble.gr.lib.com.DataProgressListener;
+import com.goodix.ble.gr.lib.com.TraceRecorder;
+import com.goodix.ble.gr.lib.com.ble.SessionMetrics;
+import com.goodix.ble.gr.lib.dfu.v2.DfuTransport;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A BLE link to a simulated peer. It runs on a virtual clock, so a transfer of minutes takes milliseconds,
+ * and the result does not depend on the load of the host.
+ * <p>
+ * Each packet costs its air time on the PHY. A lost packet is retransmitted by the link layer in the next
+ * connection event, which costs the latency once more. The notifications of the peer are ready after
+ * the latency plus a random jitter.
+ */
+public class SimulatedLink implements DfuTransport {
+    public interface Peer {
+        /**
+         * Called when a packet has arrived at the peer. {@link SimulatedLink#now()} is the time of arrival.
+         */
+        void onWrite(SimulatedLink link, int channel, byte[] packet, int size);
+    }
+
+    // preamble + access address + LL header + MIC-less CRC + L2CAP header + ATT header
+    private static final int PACKET_OVERHEAD = 1 + 4 + 2 + 3 + 4 + 3;
+    private static final long IFS = 150_000; // ns
+    private static final int EMPTY_PDU_SIZE = 1 + 4 + 2 + 3;
+
+    private final Peer peer;
+    private final Random random;
+
+    private int mtu = 247;
+    private int phyRate = 1_000_000;
+    private long latency = 15_000_000;
+    private long jitter = 0;
+    private double packetLossRate = 0;
+    private boolean connected = true;
+    private long connectionInterval = 0;
+    private int packetsPerEvent = 0;
+    private long currentEvent = -1;
+    private int packetsInEvent = 0;
+
+    private long now = 0;
+    private final byte[] packetBuf = new byte[512];
+    private final List<ArrayDeque<Ntf>> ntfQueues = new ArrayList<>(CHANNEL_COUNT);
+    private final int[] ntfReadPos = new int[CHANNEL_COUNT];
+
+    private long sentPacketCount = 0;
+    private long sentBytes = 0;
+    private long lostPacketCount = 0;
+    private long ntfCount = 0;
+    private long timeoutCount = 0;
+
+    private SessionMetrics metrics;
+    private TraceRecorder tracer;
+
+    public SimulatedLink(Peer peer) {
+        this(peer, 0);
+    }
+
+    public SimulatedLink(Peer peer, long seed) {
+        this.peer = peer;
+        this.random = new Random(seed);
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            ntfQueues.add(new ArrayDeque<Ntf>());
+        }
+    }
+
+    public SimulatedLink setMtu(int mtu) {
+        if (mtu < 23 || mtu > 512) {
+            throw new Error("setMtu(): out of range: " + mtu);
+        }
+        this.mtu = mtu;
+        return this;
+    }
+
+    /**
+     * @param phyRate 1_000_000 for LE 1M, 2_000_000 for LE 2M.
+     */
+    public SimulatedLink setPhyRate(int phyRate) {
+        this.phyRate = phyRate;
+        return this;
+    }
+
+    /**
+     * @param latency in milliseconds. It is about one or two connection intervals on a real link.
+     */
+    public SimulatedLink setLatency(double latency) {
+        this.latency = (long) (latency * 1_000_000);
+        return this;
+    }
+
+    /**
+     * @param jitter in milliseconds. A uniform random delay in [0, jitter) is added to the latency.
+     */
+    public SimulatedLink setJitter(double jitter) {
+        this.jitter = (long) (jitter * 1_000_000);
+        return this;
+    }
+
+    /**
+     * Limit the packets sent in a connection event. The next packet waits for the next event.
+     *
+     * @param interval        in milliseconds. 0 means no limit, which is the default.
+     * @param packetsPerEvent how many packets the controller of both sides can exchange in an event.
+     */
+    public SimulatedLink setConnectionInterval(double interval, int packetsPerEvent) {
+        if (interval < 0 || (interval > 0 && packetsPerEvent < 1)) {
+            throw new Error("setConnectionInterval(): interval = " + interval + ", packetsPerEvent = " + packetsPerEvent);
+        }
+        this.connectionInterval = (long) (interval * 1_000_000);
+        this.packetsPerEvent = packetsPerEvent;
+        this.currentEvent = -1;
+        return this;
+    }
+
+    /**
+     * @param packetLossRate in [0, 1).
+     */
+    public SimulatedLink setPacketLossRate(double packetLossRate) {
+        if (packetLossRate < 0 || packetLossRate >= 1) {
+            throw new Error("setPacketLossRate(): out of range: " + packetLossRate);
+        }
+        this.packetLossRate = packetLossRate;
+        return this;
+    }
+
+    public void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    public SimulatedLink setMetrics(SessionMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public SimulatedLink setTracer(TraceRecorder tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    /**
+     * @return the virtual time in nanoseconds.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Let the time pass, e.g. for the processing of peer.
+     */
+    public void advance(long nanos) {
+        now += nanos;
+    }
+
+    /**
+     * Post a notification from the peer. It is split into packets of (MTU - 3) bytes.
+     *
+     * @param delay in nanoseconds, the processing time before sending it.
+     */
+    public void notify(int channel, byte[] data, long delay) {
+        long readyTime = now + delay + latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+        final int packetSize = mtu - 3;
+        for (int pos = 0; pos < data.length || pos == 0; pos += packetSize) {
+            final int size = Math.min(packetSize, data.length - pos);
+            final byte[] packet = new byte[size];
+            System.arraycopy(data, pos, packet, 0, size);
+            readyTime += airTimeOf(size);
+            enqueueNtf(channel, packet, readyTime);
+            if (data.length == 0) {
+                break;
+            }
+        }
+    }
+
+    public long getSentPacketCount() {
+        return sentPacketCount;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getLostPacketCount() {
+        return lostPacketCount;
+    }
+
+    public long getNtfCount() {
+        return ntfCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public int getMtu() {
+        return mtu;
+    }
+
+    @Override
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public TraceRecorder getTracer() {
+        return tracer;
+    }
+
+    @Override
+    public void write(int channel, long timeout, byte[] dat, int offsetInDat, int writeSize, DataProgressListener listener) throws Throwable {
+        write(channel, timeout, new byte[][]{dat}, new int[]{offsetInDat}, new int[]{writeSize}, 1, listener);
+    }
+
+    @Override
+    public void write(int channel, long timeout, byte[][] pieces, int[] offsetsInPieces, int[] sizesOfPieces, int pieceCount, DataProgressListener listener) throws Throwable {
+        checkConnection();
+
+        int totalSize = 0;
+        for (int i = 0; i < pieceCount; i++) {
+            if (pieces[i] != null) {
+                totalSize += sizesOfPieces[i];
+            }
+        }
+
+        final long startTime = now;
+        long reportTime = startTime;
+        final int packetSize = mtu - 3;
+        int processed = 0;
+        int piece = 0;
+        int posInPiece = 0;
+        while (processed < totalSize) {
+            // gather a packet
+            int size = 0;
+            while (size < packetSize && piece < pieceCount) {
+                final int remain = pieces[piece] == null ? 0 : sizesOfPieces[piece] - posInPiece;
+                if (remain <= 0) {
+                    piece++;
+                    posInPiece = 0;
+                    continue;
+                }
+                final int copySize = Math.min(remain, packetSize - size);
+                System.arraycopy(pieces[piece], offsetsInPieces[piece] + posInPiece, packetBuf, size, copySize);
+                posInPiece += copySize;
+                size += copySize;
+            }
+
+            checkConnection(); // the link could be lost between two packets of a write
+            waitForConnectionEvent();
+            now += airTimeOf(size);
+            while (packetLossRate > 0 && random.nextDouble() < packetLossRate) {
+                lostPacketCount++;
+                now += latency + airTimeOf(size);
+            }
+            sentPacketCount++;
+            sentBytes += size;
+            final SessionMetrics metrics = this.metrics;
+            if (metrics != null) {
+                metrics.onPacketSent(size);
+            }
+
+            peer.onWrite(this, channel, packetBuf, size);
+
+            processed += size;
+            if (listener != null) {
+                listener.onDataProcessed(pieces, processed, totalSize, (now - reportTime) / 1_000_000, (now - startTime) / 1_000_000);
+                reportTime = now;
+            }
+        }
+    }
+
+    @Override
+    public int readNtf(int channel, long timeout, byte[] outBuf, int offsetInBuf, int readSize) throws Throwable {
+        checkConnection();
+
+        final long deadline = now + timeout * 1_000_000;
+        int read = 0;
+        while (read < readSize) {
+            final Ntf ntf = ntfQueues.get(channel).peek();
+            if (ntf == null || ntf.readyTime > deadline) {
+                now = deadline;
+                timeoutCount++;
+                return read;
+            }
+            now = Math.max(now, ntf.readyTime);
+
+            final int copySize = Math.min(readSize - read, ntf.data.length - ntfReadPos[channel]);
+            System.arraycopy(ntf.data, ntfReadPos[channel], outBuf, offsetInBuf + read, copySize);
+            read += copySize;
+            ntfReadPos[channel] += copySize;
+            if (ntfReadPos[channel] == ntf.data.length) {
+                dequeueNtf(channel);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public byte[] readNtf(int channel, long timeout) throws Throwable {
+        checkConnection();
+
+        final long deadline = now + timeout * 1_000_000;
+        final Ntf ntf = ntfQueues.get(channel).peek();
+        if (ntf == null || ntf.readyTime > deadline) {
+            now = deadline;
+            timeoutCount++;
+            return null;
+        }
+        now = Math.max(now, ntf.readyTime);
+        dequeueNtf(channel);
+        return ntf.data;
+    }
+
+    /**
+     * @return the air time of a packet and its empty acknowledgement in nanoseconds.
+     */
+    public long airTimeOf(int payloadSize) {
+        final long bits = (payloadSize + PACKET_OVERHEAD + EMPTY_PDU_SIZE) * 8L;
+        return bits * 1_000_000_000L / phyRate + IFS * 2;
+    }
+
+    private void waitForConnectionEvent() {
+        if (connectionInterval <= 0) {
+            return;
+        }
+        final long event = now / connectionInterval;
+        if (event != currentEvent) {
+            currentEvent = event;
+            packetsInEvent = 0;
+        }
+        if (packetsInEvent == packetsPerEvent) {
+            currentEvent++;
+            packetsInEvent = 0;
+            now = currentEvent * connectionInterval;
+        }
+        packetsInEvent++;
+    }
+
+    private void checkConnection() {
+        if (!connected) {
+            throw new Error("Connection is lost.");
+        }
+    }
+
+    private void enqueueNtf(int channel, byte[] packet, long readyTime) {
+        final ArrayDeque<Ntf> queue = ntfQueues.get(channel);
+        // the packets of a channel are delivered in order
+        final Ntf last = queue.peekLast();
+        if (last != null) {
+            readyTime = Math.max(readyTime, last.readyTime);
+        }
+        queue.add(new Ntf(packet, readyTime));
+        ntfCount++;
+    }
+
+    private void dequeueNtf(int channel) {
+        final Ntf ntf = ntfQueues.get(channel).poll();
+        ntfReadPos[channel] = 0;
+        final SessionMetrics metrics = this.metrics;
+        if (metrics != null && ntf != null) {
+            metrics.onPacketReceived(ntf.data.length);
+        }
+    }
+
+    private static class Ntf {
+        final byte[] data;
+        final long readyTime;
+
+        Ntf(byte[] data, long readyTime) {
+            this.data = data;
+            this.readyTime = readyTime;
+        }
+    }
+}
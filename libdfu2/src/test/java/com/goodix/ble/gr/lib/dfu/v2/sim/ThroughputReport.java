@@ -0,0 +1,164 @@
+/*
+  *****************************************************************************************
+  Copyright (c) 2019 GOODIX
+  All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are met:
+  * Redistributions of source code must retain the above copyright
+  notice, this list of conditions and the following disclaimer.
+  * Redistributions in binary form must reproduce the above copyright
+  notice, this list of conditions and the following disclaimer in the
+  documentation and/or other materials provided with the distribution.
+  * Neither the name of GOODIX nor the names of its contributors may be used
+  to endorse or promote products derived from this software without
+  specific prior written permission.
+
+  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+  ARE DISCLAIMED. IN NO EVENT SHALL COPYRIGHT HOLDERS AND CONTRIBUTORS BE
+  LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+  CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+  SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+  INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+  CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+  POSSIBILITY OF SUCH DAMAGE.
+  *****************************************************************************************
+  */
+package com.goodix.ble.gr.lib.dfu.v2.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rows of a throughput benchmark, written as CSV and HTML.
+ * The CSV of a previous run can be loaded as the baseline to find regressions.
+ */
+public class ThroughputReport {
+    public static final String CSV_HEADER = "case,tool,image_size,mtu,segment_size,interval_ms,loss_rate,"
+            + "virtual_time_s,throughput_kbps,host_time_ms,cpu_ns_per_byte,packets,retransmissions,timeouts";
+
+    public static class Row {
+        public String name;
+        public String tool;
+        public int imageSize;
+        public int mtu;
+        public int segmentSize;
+        public double interval;
+        public double lossRate;
+
+        public double virtualTime; // second
+        public double throughput; // KB/s in virtual time
+        public double hostTime; // ms, includes the fixed sleeps of the protocol
+        public double cpuPerByte; // ns
+        public long packets;
+        public long retransmissions;
+        public long timeouts;
+
+        public String toCsv() {
+            return String.format(Locale.US, "%s,%s,%d,%d,%d,%.2f,%.3f,%.6f,%.3f,%.1f,%.2f,%d,%d,%d",
+                    name, tool, imageSize, mtu, segmentSize, interval, lossRate,
+                    virtualTime, throughput, hostTime, cpuPerByte, packets, retransmissions, timeouts);
+        }
+    }
+
+    public final List<Row> rows = new ArrayList<>();
+
+    public void add(Row row) {
+        rows.add(row);
+    }
+
+    public void writeCsv(File file) throws IOException {
+        try (Writer out = open(file)) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+            for (Row row : rows) {
+                out.write(row.toCsv());
+                out.write('\n');
+            }
+        }
+    }
+
+    public void writeHtml(File file, String title) throws IOException {
+        double maxThroughput = 0;
+        for (Row row : rows) {
+            maxThroughput = Math.max(maxThroughput, row.throughput);
+        }
+
+        try (Writer out = open(file)) {
+            out.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+            out.write(title);
+            out.write("</title>\n<style>"
+                    + "body{font-family:sans-serif}table{border-collapse:collapse}"
+                    + "th,td{border:1px solid #ccc;padding:2px 6px;text-align:right}td.l{text-align:left}"
+                    + ".bar{background:#4a90d9;height:10px}"
+                    + "</style></head><body>\n<h1>");
+            out.write(title);
+            out.write("</h1>\n<p>Throughput is measured in virtual time of the simulated link, so it is reproducible."
+                    + " Host time and CPU depend on the host, the host time also includes the fixed sleeps of the protocol.</p>\n<table>\n<tr>");
+            for (String col : CSV_HEADER.split(",")) {
+                out.write("<th>");
+                out.write(col);
+                out.write("</th>");
+            }
+            out.write("<th></th></tr>\n");
+            for (Row row : rows) {
+                final String[] cells = row.toCsv().split(",");
+                out.write("<tr>");
+                for (int i = 0; i < cells.length; i++) {
+                    out.write(i < 2 ? "<td class=\"l\">" : "<td>");
+                    out.write(cells[i]);
+                    out.write("</td>");
+                }
+                final int width = maxThroughput > 0 ? (int) (200 * row.throughput / maxThroughput) : 0;
+                out.write("<td class=\"l\"><div class=\"bar\" style=\"width:" + width + "px\"></div></td></tr>\n");
+            }
+            out.write("</table>\n</body></html>\n");
+        }
+    }
+
+    /**
+     * @return throughput of each case in a CSV written by {@link #writeCsv(File)}.
+     */
+    public static HashMap<String, Double> readThroughput(File file) throws IOException {
+        final HashMap<String, Double> result = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            final List<String> header = Arrays.asList(in.readLine().split(","));
+            final int nameCol = header.indexOf("case");
+            final int throughputCol = header.indexOf("throughput_kbps");
+            if (nameCol < 0 || throughputCol < 0) {
+                throw new IOException("Not a throughput report: " + file);
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] cells = line.split(",");
+                if (cells.length > throughputCol) {
+                    result.put(cells[nameCol], Double.parseDouble(cells[throughputCol]));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Writer open(File file) throws IOException {
+        final File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        return new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    }
+}